@@ -0,0 +1,20 @@
+#!/bin/bash
+# compares startup time and memory of the tomcat (war) and the standalone image, build both first:
+# ./build.sh && STANDALONE=true ./build.sh
+# throughput of both deployments: gradle loadtest -Pargs="--server war|standalone --workload pull"
+set -e
+TAG=${1:-latest}
+CONFIG=${CONFIG:-$(pwd)/local/config.yaml}
+for IMAGE in docker-registry-auth-proxy:$TAG docker-registry-auth-proxy-standalone:$TAG; do
+  START=$(date +%s%N)
+  ID=$(docker run -d -p 127.0.0.1:18080:8080 -v $CONFIG:/config.yaml -e DOCKER_PROXY_CONFIG=/config.yaml $IMAGE)
+  until curl -s -o /dev/null http://127.0.0.1:18080/v2/; do
+    sleep 0.05
+  done
+  READY=$(( ($(date +%s%N) - START) / 1000000 ))
+  sleep 5
+  MEM=$(docker stats --no-stream --format '{{.MemUsage}}' $ID)
+  SIZE=$(docker image inspect --format '{{.Size}}' $IMAGE)
+  echo "$IMAGE: first response after $READY ms, memory $MEM, image $(( SIZE / 1024 / 1024 )) MiB"
+  docker rm -f $ID > /dev/null
+done
@@ -2,6 +2,16 @@
 set -e
 set -x
 TAG=${1:-latest}
-gradle clean docker
-( cd build/docker && docker build -t docker-registry-auth-proxy:$TAG . )
+# JDK=21 VIRTUAL_THREADS=true ./build.sh for a java 21 image with virtual threads
+JDK=${JDK:-17}
+VIRTUAL_THREADS=${VIRTUAL_THREADS:-false}
+# STANDALONE=true ./build.sh for the slim image of the standalone distribution (embedded tomcat)
+if [ "$STANDALONE" = "true" ]; then
+  gradle clean dockerStandalone -PjavaVersion=$JDK
+  ( cd build/docker-standalone && docker build -f Dockerfile.standalone --build-arg JDK=$JDK -t docker-registry-auth-proxy-standalone:$TAG . )
+  docker tag docker-registry-auth-proxy-standalone:$TAG agebe/docker-registry-auth-proxy-standalone:$TAG
+  exit 0
+fi
+gradle clean docker -PjavaVersion=$JDK
+( cd build/docker && docker build --build-arg JDK=$JDK --build-arg VIRTUAL_THREADS=$VIRTUAL_THREADS -t docker-registry-auth-proxy:$TAG . )
 docker tag docker-registry-auth-proxy:$TAG agebe/docker-registry-auth-proxy:$TAG
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streaming catalog filter of {@link PH3CatalogHandler} for a restricted user on catalogs of varying size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CatalogBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  private int repositories;
+
+  private byte[] catalog;
+
+  private User user;
+
+  @Setup
+  public void setup() {
+    StringBuilder json = new StringBuilder("{\"repositories\":[");
+    for(int i=0;i<repositories;i++) {
+      if(i > 0) {
+        json.append(',');
+      }
+      json.append("\"team-%d/service-%d\"".formatted(i % 100, i));
+    }
+    json.append("]}");
+    catalog = json.toString().getBytes(StandardCharsets.UTF_8);
+    user = new User("bench", null, Role.READER, List.of("team-1/*", "team-42/*", "*/service-7"));
+  }
+
+  @Benchmark
+  public void userCatalog() throws Exception {
+    JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(catalog), StandardCharsets.UTF_8));
+    JsonWriter writer = new JsonWriter(Writer.nullWriter());
+    PH3CatalogHandler.userCatalog(user, reader, writer);
+    writer.flush();
+  }
+
+}
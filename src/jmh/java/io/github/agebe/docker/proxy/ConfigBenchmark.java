@@ -0,0 +1,64 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Parses a configuration file with a varying number of users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConfigBenchmark {
+
+  @Param({"10", "1000"})
+  private int users;
+
+  private File file;
+
+  @Setup
+  public void setup() throws Exception {
+    StringBuilder yaml = new StringBuilder("registry: http://localhost:5000\nusers:\n");
+    for(int i=0;i<users;i++) {
+      yaml.append("  - name: user%d\n    password: secret%d\n    role: reader\n    repos:\n".formatted(i, i));
+      yaml.append("      - team-%d/*\n      - library/*\n".formatted(i));
+    }
+    file = File.createTempFile("config", ".yaml");
+    Files.writeString(file.toPath(), yaml);
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Benchmark
+  public Config parse() {
+    return Config.parse(file);
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mindrot.jbcrypt.BCrypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Password verification, plain text and bcrypt (cost 10, as created by htpasswd -B), and the
+ * verified-credential cache lookup that replaces the bcrypt check for repeated requests.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PasswordBenchmark {
+
+  private static final String SECRET = "secret";
+
+  private Password plain;
+
+  private Password bcrypt;
+
+  private CredentialCache cache;
+
+  private User user;
+
+  private String authorization;
+
+  @Setup
+  public void setup() {
+    plain = new Password(SECRET);
+    bcrypt = new Password(BCrypt.hashpw(SECRET, BCrypt.gensalt(10)));
+    user = new User("bench", bcrypt, Role.READER, List.of());
+    authorization = "Basic " + Base64.getEncoder().encodeToString(("bench:" + SECRET).getBytes());
+    cache = new CredentialCache();
+    cache.verified(authorization, user);
+  }
+
+  @Benchmark
+  public boolean plain() {
+    return plain.test(SECRET);
+  }
+
+  @Benchmark
+  public boolean bcrypt() {
+    return bcrypt.test(SECRET);
+  }
+
+  @Benchmark
+  public boolean cached() {
+    return cache.isVerified(authorization, user);
+  }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import io.github.agebe.rproxy.RequestStatus;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * The 401 and 403 rejection path of {@link PHAbstractHandler}, run with the gc profiler to see the
+ * allocations per rejected request (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RejectBenchmark {
+
+  private static class Handler extends PHAbstractHandler {
+    @Override
+    protected RequestStatus process(HttpServletRequest request, HttpServletResponse response) {
+      return unauthorized(request, response);
+    }
+  }
+
+  // only the methods used by the rejection path are implemented, the servlet container recycles its
+  // responses so the stub is reused as well
+  private static class Response extends HttpServletResponseWrapper {
+
+    private final ServletOutputStream out = new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+      }
+    };
+
+    private Response() {
+      super(unsupported(HttpServletResponse.class));
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+    }
+
+    @Override
+    public void setStatus(int sc) {
+    }
+
+    @Override
+    public void setContentLength(int len) {
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      return out;
+    }
+
+  }
+
+  private Handler handler;
+
+  private HttpServletRequest request;
+
+  private HttpServletResponse response;
+
+  @Setup
+  public void setup() {
+    handler = new Handler();
+    request = new HttpServletRequestWrapper(unsupported(HttpServletRequest.class));
+    response = new Response();
+  }
+
+  private static <T> T unsupported(Class<T> type) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+      throw new UnsupportedOperationException(method.getName());
+    }));
+  }
+
+  @Benchmark
+  public RequestStatus unauthorized() {
+    return handler.unauthorized(request, response);
+  }
+
+  @Benchmark
+  public RequestStatus denied() {
+    return handler.denied(response, "access denied");
+  }
+
+  @Benchmark
+  public RequestStatus deniedRepository() {
+    return handler.denied(response, "access denied, repository 'team-1/service-1'");
+  }
+
+}
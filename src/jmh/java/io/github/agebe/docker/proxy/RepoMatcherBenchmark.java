@@ -0,0 +1,103 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.hrakaroo.glob.GlobPattern;
+
+/**
+ * Compares the precompiled {@link RepoMatcher} (with and without the per-user decision cache) against
+ * compiling every glob pattern on each check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RepoMatcherBenchmark {
+
+  @Param({"10", "100", "1000"})
+  private int patterns;
+
+  private List<String> globs;
+
+  private RepoMatcher matcher;
+
+  private User user;
+
+  private String[] repos;
+
+  @Setup
+  public void setup() {
+    globs = new ArrayList<>();
+    for(int i=0;i<patterns;i++) {
+      switch(i % 3) {
+      case 0 -> globs.add("team-%d/app".formatted(i));
+      case 1 -> globs.add("project-%d/*".formatted(i));
+      default -> globs.add("*/service-%d".formatted(i));
+      }
+    }
+    matcher = new RepoMatcher(globs);
+    user = new User("bench", null, Role.READER, globs);
+    repos = new String[] {
+        "team-0/app",
+        "project-%d/nginx".formatted(patterns - (patterns % 3) - 2),
+        "other/service-2",
+        "library/ubuntu",
+        "project-x/nginx",
+    };
+  }
+
+  private boolean compileEachTime(String repo) {
+    for(String pattern : globs) {
+      if(GlobPattern.compile(pattern).matches(repo)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Benchmark
+  public void compileEachTime(Blackhole bh) {
+    for(String repo : repos) {
+      bh.consume(compileEachTime(repo));
+    }
+  }
+
+  @Benchmark
+  public void precompiled(Blackhole bh) {
+    for(String repo : repos) {
+      bh.consume(matcher.matches(repo));
+    }
+  }
+
+  @Benchmark
+  public void decisionCache(Blackhole bh) {
+    for(String repo : repos) {
+      bh.consume(user.canAccessRepo(repo));
+    }
+  }
+
+}
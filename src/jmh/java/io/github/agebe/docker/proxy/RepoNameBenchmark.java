@@ -0,0 +1,47 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Repository name extraction from request uris in {@link PH3RepoAccessHandler}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RepoNameBenchmark {
+
+  private final String[] uris = {
+      "/v2/library/ubuntu/manifests/22.04",
+      "/v2/team/project/service/blobs/sha256:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef",
+      "/v2/app/tags/list",
+  };
+
+  @Benchmark
+  public void repoName(Blackhole bh) {
+    for(String uri : uris) {
+      bh.consume(PH3RepoAccessHandler.getRepoName(uri));
+    }
+  }
+
+}
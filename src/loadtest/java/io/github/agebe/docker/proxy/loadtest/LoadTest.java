@@ -0,0 +1,383 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy.loadtest;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.stream.Stream;
+
+import io.github.agebe.docker.proxy.Config;
+import io.github.agebe.docker.proxy.FakeRegistry;
+import io.github.agebe.docker.proxy.ServerConfig;
+import io.github.agebe.docker.proxy.Standalone;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+import org.mindrot.jbcrypt.BCrypt;
+
+/**
+ * End-to-end load test, runs fully offline. Starts a {@link FakeRegistry}, deploys the proxy war into an
+ * embedded tomcat pointing at it and drives pull, push, catalog or long running blob stream workloads
+ * with concurrent clients. Reports throughput, latency percentiles, cpu and heap of the process (proxy,
+ * fake registry and clients share the jvm, compare runs rather than absolute numbers).
+ * <pre>
+ * gradle loadtest -Pargs="--workload mixed --clients 50 --duration 30"
+ * </pre>
+ * Options (defaults in brackets): --workload pull|push|catalog|streams|mixed [mixed], --clients [50],
+ * --duration seconds [30], --threads tomcat connector threads [200], --repos [10000], --layers [5],
+ * --layer-size bytes [1048576], --throttle-ms delay per 64k chunk served by the registry [0],
+ * --extra-config yaml appended to the generated configuration, --server war|standalone deploy the war or run
+ * the {@link Standalone} embedded server with the same connector settings [war]. Set -Dtomcat.virtualThreads=true (java
+ * 21+) to run the connector on virtual threads, e.g. to compare concurrent stream capacity with
+ * --workload streams --clients 1000 --throttle-ms 50.
+ */
+public class LoadTest {
+
+  private static final String PASSWORD = "secret";
+
+  private final Map<String, String> options;
+
+  private final HttpClient client = HttpClient.newBuilder()
+      .followRedirects(HttpClient.Redirect.NEVER)
+      .connectTimeout(Duration.ofSeconds(10))
+      .build();
+
+  private FakeRegistry registry;
+
+  private String proxy;
+
+  private final List<String> readers = new ArrayList<>();
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final LongAccumulator maxInFlight = new LongAccumulator(Math::max, 0);
+
+  private byte[] uploadBlob;
+
+  private String uploadDigest;
+
+  public LoadTest(Map<String, String> options) {
+    super();
+    this.options = options;
+  }
+
+  private int intOption(String name, int def) {
+    return Integer.parseInt(options.getOrDefault(name, Integer.toString(def)));
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for(int i=0;i+1<args.length;i+=2) {
+      options.put(args[i].replaceFirst("^--", ""), args[i+1]);
+    }
+    new LoadTest(options).run();
+  }
+
+  private void run() throws Exception {
+    String workload = options.getOrDefault("workload", "mixed");
+    int clients = intOption("clients", 50);
+    int duration = intOption("duration", 30);
+    List<String> repositories = Stream.iterate(0, i -> i + 1)
+        .limit(intOption("repos", 10000))
+        .map(i -> "team-%d/service-%d".formatted(i % 50, i))
+        .toList();
+    registry = new FakeRegistry(repositories, intOption("layers", 5), intOption("layer-size", 1024 * 1024),
+        intOption("throttle-ms", 0));
+    writeConfig();
+    uploadBlob = new byte[64 * 1024];
+    ThreadLocalRandom.current().nextBytes(uploadBlob);
+    uploadDigest = "sha256:" + HexFormat.of().formatHex(
+        MessageDigest.getInstance("SHA-256").digest(uploadBlob));
+    String server = options.getOrDefault("server", "war");
+    long startup = System.nanoTime();
+    Runnable stop = server.equals("standalone") ? startStandalone() : startTomcat();
+    startup = System.nanoTime() - startup;
+    try {
+      System.out.printf("workload '%s', %d clients, %d s, registry %s, proxy %s (%s, startup %d ms, rss %d MiB), "
+          + "java %s, virtual threads %s%n",
+          workload, clients, duration, registry.url(), proxy, server, TimeUnit.NANOSECONDS.toMillis(startup),
+          rss() / (1024 * 1024), Runtime.version(), System.getProperty("tomcat.virtualThreads", "false"));
+      // warm up
+      drive(workload, Math.min(clients, 10), Math.min(duration, 5), false);
+      drive(workload, clients, duration, true);
+    } finally {
+      stop.run();
+      registry.close();
+    }
+    System.exit(0);
+  }
+
+  private void writeConfig() throws Exception {
+    String cfg = System.getenv("DOCKER_PROXY_CONFIG");
+    if(cfg == null) {
+      throw new IllegalStateException("DOCKER_PROXY_CONFIG not set");
+    }
+    String bcrypt = BCrypt.hashpw(PASSWORD, BCrypt.gensalt(10));
+    StringBuilder yaml = new StringBuilder();
+    yaml.append("registry: ").append(registry.url()).append('\n');
+    yaml.append("users:\n");
+    yaml.append("  - name: admin\n    password: ").append(PASSWORD).append("\n    role: admin\n");
+    yaml.append("  - name: writer\n    password: '").append(bcrypt).append("'\n    role: writer\n");
+    for(int i=0;i<10;i++) {
+      String name = "reader" + i;
+      readers.add(name);
+      yaml.append("  - name: ").append(name).append("\n    password: '").append(bcrypt).append("'\n");
+      yaml.append("    role: reader\n    repos:\n      - team-%d/*\n      - team-%d/*\n".formatted(i, i + 10));
+    }
+    if(options.getOrDefault("server", "war").equals("standalone")) {
+      yaml.append("server:\n  port: 0\n  threads: ").append(intOption("threads", 200)).append('\n');
+      yaml.append("  virtualThreads: ").append(System.getProperty("tomcat.virtualThreads", "false")).append('\n');
+    }
+    String extra = options.get("extra-config");
+    if(extra != null) {
+      yaml.append(Files.readString(Path.of(extra)));
+    }
+    Path path = Path.of(cfg);
+    Files.createDirectories(path.toAbsolutePath().getParent());
+    Files.writeString(path, yaml);
+  }
+
+  private Runnable startTomcat() throws Exception {
+    String war = System.getProperty("loadtest.war");
+    Path base = Files.createTempDirectory("loadtest-tomcat");
+    Tomcat tomcat = new Tomcat();
+    tomcat.setBaseDir(base.toString());
+    tomcat.getHost().setAppBase(base.toString());
+    tomcat.setPort(0);
+    Connector connector = tomcat.getConnector();
+    connector.setProperty("maxThreads", Integer.toString(intOption("threads", 200)));
+    connector.setProperty("useVirtualThreads", System.getProperty("tomcat.virtualThreads", "false"));
+    Context ctx = tomcat.addWebapp("", new File(war).getAbsolutePath());
+    // the proxy classes are on the classpath for the standalone server, tomcat must not pick them up
+    ((StandardJarScanner)ctx.getJarScanner()).setScanClassPath(false);
+    tomcat.start();
+    proxy = "http://127.0.0.1:" + connector.getLocalPort();
+    return () -> {
+      try {
+        tomcat.stop();
+        tomcat.destroy();
+      } catch(LifecycleException e) {
+        throw new RuntimeException(e);
+      }
+    };
+  }
+
+  private Runnable startStandalone() throws Exception {
+    ServerConfig cfg = Config.parse(new File(System.getenv("DOCKER_PROXY_CONFIG"))).getServer();
+    Standalone standalone = Standalone.start(cfg, new File(System.getProperty("proxy.webapp")));
+    proxy = "http://127.0.0.1:" + standalone.getPort();
+    return standalone::stop;
+  }
+
+  /**
+   * @return resident set size of the process in bytes, 0 if unknown (linux only)
+   */
+  private static long rss() {
+    try {
+      for(String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+        if(line.startsWith("VmRSS:")) {
+          return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+        }
+      }
+    } catch(Exception e) {
+      // not linux
+    }
+    return 0;
+  }
+
+  private void drive(String workload, int clients, int seconds, boolean report) throws Exception {
+    ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+    LongAccumulator maxHeap = new LongAccumulator(Math::max, 0);
+    sampler.scheduleAtFixedRate(() -> maxHeap.accumulate(
+        ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()), 0, 200, TimeUnit.MILLISECONDS);
+    com.sun.management.OperatingSystemMXBean os =
+        (com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean();
+    long cpuStart = os.getProcessCpuTime();
+    long gcStart = gcMillis();
+    long registryStart = registry.requests();
+    maxInFlight.reset();
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos(seconds);
+    List<Recorder> recorders = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for(int i=0;i<clients;i++) {
+      Recorder recorder = new Recorder();
+      recorders.add(recorder);
+      int id = i;
+      Thread t = new Thread(() -> {
+        while(System.nanoTime() < end) {
+          iteration(workload, id, recorder);
+        }
+      }, "client-" + i);
+      t.start();
+      threads.add(t);
+    }
+    for(Thread t : threads) {
+      t.join();
+    }
+    double elapsed = (System.nanoTime() - start) / 1e9;
+    sampler.shutdownNow();
+    if(!report) {
+      return;
+    }
+    Recorder total = new Recorder();
+    recorders.forEach(total::merge);
+    System.out.println();
+    total.report(elapsed);
+    double cpuSeconds = (os.getProcessCpuTime() - cpuStart) / 1e9;
+    System.out.println();
+    System.out.printf("throughput        %.1f req/s (%d requests in %.1f s)%n", total.getCount() / elapsed,
+        total.getCount(), elapsed);
+    System.out.printf("upstream requests %d%n", registry.requests() - registryStart);
+    System.out.printf("max in flight     %d%n", maxInFlight.get());
+    System.out.printf("cpu               %.1f s, %.0f%% of %d cores%n", cpuSeconds,
+        100 * cpuSeconds / (elapsed * os.getAvailableProcessors()), os.getAvailableProcessors());
+    System.out.printf("heap              max used %d MiB, gc %d ms%n", maxHeap.get() / (1024 * 1024),
+        gcMillis() - gcStart);
+    System.out.printf("rss               %d MiB%n", rss() / (1024 * 1024));
+  }
+
+  private static long gcMillis() {
+    return ManagementFactory.getGarbageCollectorMXBeans().stream()
+        .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+        .sum();
+  }
+
+  private void iteration(String workload, int id, Recorder recorder) {
+    String w = workload;
+    if(w.equals("mixed")) {
+      int r = ThreadLocalRandom.current().nextInt(100);
+      w = r < 70 ? "pull" : (r < 80 ? "catalog" : "push");
+    }
+    switch(w) {
+    case "pull" -> pull(id, recorder);
+    case "push" -> push(id, recorder);
+    case "catalog" -> catalog(id, recorder);
+    case "streams" -> streams(id, recorder);
+    default -> throw new IllegalArgumentException("unknown workload " + w);
+    }
+  }
+
+  private String auth(String user) {
+    return "Basic " + Base64.getEncoder().encodeToString((user + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private String reader(int id) {
+    return readers.get(id % readers.size());
+  }
+
+  private String readerRepo(int id) {
+    // readers can access team-i/* and team-(i+10)/*
+    int team = id % readers.size();
+    return "team-%d/service-%d".formatted(team, team + (50 * ThreadLocalRandom.current().nextInt(Math.max(1, registry.repositories().size() / 50))));
+  }
+
+  private void pull(int id, Recorder recorder) {
+    String user = reader(id);
+    String repo = readerRepo(id);
+    call(recorder, "v2-unauthorized", "GET", "/v2/", null, null, 401);
+    call(recorder, "v2", "GET", "/v2/", user, null, 200);
+    call(recorder, "manifest-head", "HEAD", "/v2/%s/manifests/latest".formatted(repo), user, null, 200);
+    call(recorder, "manifest-get", "GET", "/v2/%s/manifests/latest".formatted(repo), user, null, 200);
+    for(String digest : registry.layerDigests()) {
+      call(recorder, "blob-get", "GET", "/v2/%s/blobs/%s".formatted(repo, digest), user, null, 200);
+    }
+  }
+
+  private void push(int id, Recorder recorder) {
+    String repo = "team-%d/service-%d".formatted(id % 50, id % 50);
+    call(recorder, "blob-head", "HEAD", "/v2/%s/blobs/%s".formatted(repo, registry.layerDigests().get(0)),
+        "writer", null, 200);
+    HttpResponse<InputStream> r = call(recorder, "upload-start", "POST", "/v2/%s/blobs/uploads/".formatted(repo),
+        "writer", new byte[0], 202);
+    String location = r != null ? r.headers().firstValue("Location").orElse(null) : null;
+    if(location == null) {
+      return;
+    }
+    String path = location.startsWith("http") ? URI.create(location).getPath() : location;
+    call(recorder, "upload-patch", "PATCH", path, "writer", uploadBlob, 202);
+    call(recorder, "upload-put", "PUT", path + "?digest=" + uploadDigest, "writer", new byte[0], 201);
+    call(recorder, "manifest-put", "PUT", "/v2/%s/manifests/latest".formatted(repo), "writer",
+        "{\"schemaVersion\":2}".getBytes(), 201);
+  }
+
+  private void catalog(int id, Recorder recorder) {
+    String user = reader(id);
+    String path = "/v2/_catalog?n=100";
+    for(int page=0;(page<3) && (path!=null);page++) {
+      HttpResponse<InputStream> r = call(recorder, "catalog-page", "GET", path, user, null, 200);
+      path = r != null ? r.headers().firstValue("Link").map(l -> l.substring(1, l.indexOf('>'))).orElse(null) : null;
+    }
+  }
+
+  private void streams(int id, Recorder recorder) {
+    String digest = registry.layerDigests().get(id % registry.layerDigests().size());
+    call(recorder, "blob-stream", "GET", "/v2/%s/blobs/%s".formatted(readerRepo(id), digest), reader(id), null, 200);
+  }
+
+  private HttpResponse<InputStream> call(Recorder recorder, String operation, String method, String path, String user,
+      byte[] body, int expected) {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(proxy + path))
+        .timeout(Duration.ofSeconds(120))
+        .method(method, body != null ? BodyPublishers.ofByteArray(body) : BodyPublishers.noBody());
+    if(user != null) {
+      builder.header("Authorization", auth(user));
+    }
+    long start = System.nanoTime();
+    maxInFlight.accumulate(inFlight.incrementAndGet());
+    try {
+      HttpResponse<InputStream> r = client.send(builder.build(), BodyHandlers.ofInputStream());
+      try(InputStream in = r.body()) {
+        in.transferTo(OutputStream.nullOutputStream());
+      }
+      recorder.record(operation, System.nanoTime() - start, r.statusCode() == expected);
+      return r;
+    } catch(Exception e) {
+      recorder.record(operation, System.nanoTime() - start, false);
+      return null;
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latency samples per operation, one recorder per client thread, merged for the report.
+ */
+public class Recorder {
+
+  private static class Samples {
+    private long[] nanos = new long[1024];
+    private int size;
+    private long errors;
+
+    private void add(long value) {
+      if(size == nanos.length) {
+        nanos = Arrays.copyOf(nanos, size * 2);
+      }
+      nanos[size++] = value;
+    }
+  }
+
+  private final Map<String, Samples> samples = new TreeMap<>();
+
+  public void record(String operation, long nanos, boolean ok) {
+    Samples s = samples.computeIfAbsent(operation, k -> new Samples());
+    s.add(nanos);
+    if(!ok) {
+      s.errors++;
+    }
+  }
+
+  public void merge(Recorder other) {
+    other.samples.forEach((op, s) -> {
+      Samples mine = samples.computeIfAbsent(op, k -> new Samples());
+      for(int i=0;i<s.size;i++) {
+        mine.add(s.nanos[i]);
+      }
+      mine.errors += s.errors;
+    });
+  }
+
+  public long getCount() {
+    return samples.values().stream().mapToLong(s -> s.size).sum();
+  }
+
+  public void report(double seconds) {
+    System.out.printf("%-18s %10s %10s %8s %9s %9s %9s %9s %9s%n",
+        "operation", "count", "req/s", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+    samples.forEach((op, s) -> {
+      long[] sorted = Arrays.copyOf(s.nanos, s.size);
+      Arrays.sort(sorted);
+      System.out.printf("%-18s %10d %10.1f %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+          op, s.size, s.size / seconds, s.errors,
+          percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), percentile(sorted, 0.999),
+          sorted.length > 0 ? sorted[sorted.length-1] / 1e6 : 0);
+    });
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    if(sorted.length == 0) {
+      return 0;
+    }
+    int idx = (int)Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(idx, sorted.length-1))] / 1e6;
+  }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for the audit log, see {@link AuditLog}.
+ * <pre>
+ * audit:
+ *   enabled: true
+ *   file: /var/log/docker-proxy/audit.jsonl
+ *   bufferSize: 8192
+ *   batchSize: 512
+ *   maxFileSize: 104857600
+ *   maxFiles: 5
+ *   block: false
+ * </pre>
+ */
+public class AuditConfig {
+
+  static final AuditConfig DEFAULT = new AuditConfig();
+
+  private boolean enabled = false;
+
+  private String file;
+
+  // events, rounded up to a power of two
+  private int bufferSize = 8192;
+
+  // events written per flush
+  private int batchSize = 512;
+
+  // bytes, the file is rotated once exceeded
+  private long maxFileSize = 100L * 1024 * 1024;
+
+  // rotated files kept, file.1 ... file.n
+  private int maxFiles = 5;
+
+  // block requests while the buffer is full instead of dropping events
+  private boolean block = false;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public String getFile() {
+    return file;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public long getMaxFileSize() {
+    return maxFileSize;
+  }
+
+  public int getMaxFiles() {
+    return maxFiles;
+  }
+
+  public boolean isBlock() {
+    return block;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, file, bufferSize, batchSize, maxFileSize, maxFiles, block);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    AuditConfig other = (AuditConfig)obj;
+    return (enabled == other.enabled)
+        && Objects.equals(file, other.file)
+        && (bufferSize == other.bufferSize)
+        && (batchSize == other.batchSize)
+        && (maxFileSize == other.maxFileSize)
+        && (maxFiles == other.maxFiles)
+        && (block == other.block);
+  }
+
+  @Override
+  public String toString() {
+    return "AuditConfig [enabled=" + enabled + ", file=" + file + ", bufferSize=" + bufferSize + ", batchSize="
+        + batchSize + ", maxFileSize=" + maxFileSize + ", maxFiles=" + maxFiles + ", block=" + block + "]";
+  }
+
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Asynchronous audit log, one JSON line per request. Request threads put events into a bounded lock-free
+ * ring buffer, a background thread writes them in batches and rotates the file by size. If the buffer is
+ * full events are dropped (and counted) or, if configured, the request thread waits for free space.
+ */
+public class AuditLog implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(AuditLog.class);
+
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+  private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private static final Gson gson = new GsonBuilder()
+      .disableHtmlEscaping()
+      .disableJdkUnsafe()
+      .create();
+
+  private static final LongAdder written = new LongAdder();
+
+  private static final LongAdder dropped = new LongAdder();
+
+  private static volatile AuditLog instance;
+
+  private static AuditConfig instanceConfig;
+
+  static {
+    Config.addListener(AuditLog::configure);
+  }
+
+  public static record Event(String time, String remote, String user, String method, String uri, String repo,
+      String reference, String decision, int status, long bytesIn, long bytesOut, double durationMs) {};
+
+  private final AuditConfig config;
+
+  private final Path file;
+
+  private final AtomicReferenceArray<Event> ring;
+
+  private final int mask;
+
+  // next slot to claim by producers
+  private final AtomicLong tail = new AtomicLong();
+
+  // next slot to read by the writer thread
+  private final AtomicLong head = new AtomicLong();
+
+  private final Thread writer;
+
+  private volatile boolean running = true;
+
+  private Writer out;
+
+  private long size;
+
+  private AuditLog(AuditConfig config) throws IOException {
+    super();
+    this.config = config;
+    this.file = Path.of(config.getFile());
+    int capacity = Integer.highestOneBit(Math.max(2, config.getBufferSize()) - 1) << 1;
+    this.ring = new AtomicReferenceArray<>(capacity);
+    this.mask = capacity - 1;
+    if(file.toAbsolutePath().getParent() != null) {
+      Files.createDirectories(file.toAbsolutePath().getParent());
+    }
+    open();
+    this.writer = new Thread(this::run, "audit-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  private static synchronized void configure(Config config) {
+    AuditConfig cfg = config.getAudit();
+    if(cfg.equals(instanceConfig)) {
+      return;
+    }
+    instanceConfig = cfg;
+    AuditLog old = instance;
+    instance = null;
+    if(old != null) {
+      old.close();
+    }
+    if(!cfg.isEnabled() || StringUtils.isBlank(cfg.getFile())) {
+      if(cfg.isEnabled()) {
+        log.warn("audit log enabled but no file configured");
+      }
+      return;
+    }
+    try {
+      instance = new AuditLog(cfg);
+      log.info("audit log '{}'", cfg);
+    } catch(Exception e) {
+      log.warn("failed to setup audit log '{}', audit log disabled", cfg, e);
+    }
+  }
+
+  /**
+   * @return the audit log or {@code null} if disabled
+   */
+  public static AuditLog get() {
+    return instance;
+  }
+
+  /**
+   * Close the current audit log, remaining events are written.
+   */
+  public static synchronized void shutdown() {
+    AuditLog old = instance;
+    instance = null;
+    instanceConfig = null;
+    if(old != null) {
+      old.close();
+    }
+  }
+
+  public static String decision(int status) {
+    return switch(status) {
+    case 401 -> "unauthorized";
+    case 403 -> "denied";
+    case 429 -> "throttled";
+    default -> "allowed";
+    };
+  }
+
+  /**
+   * Queue the event, never blocks unless configured to.
+   */
+  public void add(Event event) {
+    while(true) {
+      long t = tail.get();
+      if((t - head.get()) > mask) {
+        // full
+        if(!config.isBlock() || !running) {
+          dropped.increment();
+          return;
+        }
+        LockSupport.parkNanos(FULL_PARK_NANOS);
+        continue;
+      }
+      if(tail.compareAndSet(t, t + 1)) {
+        ring.lazySet((int)(t & mask), event);
+        return;
+      }
+    }
+  }
+
+  private void run() {
+    StringBuilder batch = new StringBuilder();
+    while(running || (head.get() != tail.get())) {
+      int count = 0;
+      long h = head.get();
+      while(count < config.getBatchSize()) {
+        int slot = (int)(h & mask);
+        Event event = ring.get(slot);
+        if(event == null) {
+          // empty or claimed but not yet published
+          break;
+        }
+        ring.lazySet(slot, null);
+        h++;
+        head.lazySet(h);
+        batch.append(gson.toJson(event)).append('\n');
+        count++;
+      }
+      if(count == 0) {
+        if(running) {
+          LockSupport.parkNanos(IDLE_PARK_NANOS);
+        } else if(head.get() != tail.get()) {
+          // a producer claimed a slot but didn't publish yet
+          Thread.onSpinWait();
+        }
+        continue;
+      }
+      write(batch);
+      written.add(count);
+      batch.setLength(0);
+    }
+    try {
+      out.close();
+    } catch(IOException e) {
+      log.warn("failed to close audit log '{}'", file, e);
+    }
+  }
+
+  private void write(StringBuilder batch) {
+    try {
+      out.append(batch);
+      out.flush();
+      size += batch.length();
+      if(size >= config.getMaxFileSize()) {
+        rotate();
+      }
+    } catch(IOException e) {
+      log.warn("failed to write audit log '{}'", file, e);
+    }
+  }
+
+  private void open() throws IOException {
+    out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+        StandardOpenOption.APPEND);
+    size = Files.size(file);
+  }
+
+  private void rotate() throws IOException {
+    out.close();
+    Files.deleteIfExists(rotated(config.getMaxFiles()));
+    for(int i=config.getMaxFiles()-1;i>=1;i--) {
+      Path p = rotated(i);
+      if(Files.exists(p)) {
+        Files.move(p, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    if(config.getMaxFiles() > 0) {
+      Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file);
+    }
+    open();
+  }
+
+  private Path rotated(int i) {
+    return file.resolveSibling(file.getFileName() + "." + i);
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(10));
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public static long getWritten() {
+    return written.sum();
+  }
+
+  public static long getDropped() {
+    return dropped.sum();
+  }
+
+  static Event event(String remote, String user, String method, String uri, int status, long bytesIn,
+      long bytesOut, long nanos) {
+    String repo = null;
+    String reference = null;
+    if(StringUtils.startsWith(uri, "/v2/") && StringUtils.containsAny(uri, "/blobs/", "/manifests/", "/tags/")) {
+      repo = PH3RepoAccessHandler.getRepoName(uri);
+      reference = StringUtils.substringAfterLast(uri, "/");
+    }
+    return new Event(Instant.now().toString(), remote, user, method, uri, repo, StringUtils.stripToNull(reference),
+        decision(status), status, bytesIn, bytesOut, nanos / 1e6);
+  }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exponential backoff per source address and per user name after repeated authentication failures.
+ * While a source or user is backed off its requests are rejected before the password check, so a
+ * client looping with wrong credentials can't keep the cpus busy with bcrypt. A successful login resets
+ * the user name, the source address is only forgotten after the configured window without failures.
+ * Only requests that need a password check are subject to the backoff and counted, credentials answered
+ * by the {@link CredentialCache} pass, so established sessions aren't locked out by failures of others.
+ */
+public class AuthBackoff {
+
+  private static final Logger log = LoggerFactory.getLogger(AuthBackoff.class);
+
+  private static volatile AuthBackoff instance;
+
+  private static AuthBackoffConfig instanceConfig;
+
+  static {
+    Config.addListener(AuthBackoff::configure);
+  }
+
+  private static class Failures {
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile long blockedUntil;
+  }
+
+  private final AuthBackoffConfig config;
+
+  // "ip:" + address or "user:" + name -> failures
+  private final TtlCache<String, Failures> failures;
+
+  private AuthBackoff(AuthBackoffConfig config) {
+    super();
+    this.config = config;
+    this.failures = new TtlCache<>(config.getSize(), Duration.ofSeconds(config.getWindow()));
+  }
+
+  private static synchronized void configure(Config config) {
+    AuthBackoffConfig cfg = config.getAuthBackoff();
+    if(cfg.equals(instanceConfig)) {
+      return;
+    }
+    instanceConfig = cfg;
+    instance = cfg.isEnabled() ? new AuthBackoff(cfg) : null;
+    log.info("auth backoff '{}'", cfg);
+  }
+
+  /**
+   * @return the auth backoff or {@code null} if disabled
+   */
+  public static AuthBackoff get() {
+    return instance;
+  }
+
+  /**
+   * @return nanos until the source address or user name may try again, 0 if not backed off
+   */
+  public long blocked(String address, String name) {
+    long now = System.nanoTime();
+    return Math.max(remaining(failures.get("ip:" + address), now), remaining(failures.get("user:" + name), now));
+  }
+
+  private long remaining(Failures f, long now) {
+    return f != null ? Math.max(0, f.blockedUntil - now) : 0;
+  }
+
+  public void failure(String address, String name) {
+    failure("ip:" + address);
+    failure("user:" + name);
+  }
+
+  private void failure(String key) {
+    Failures f = failures.get(key);
+    if(f == null) {
+      f = new Failures();
+    }
+    // (re)put to extend the window
+    failures.put(key, f);
+    int count = f.count.incrementAndGet();
+    if(count >= config.getMaxFailures()) {
+      int exponent = Math.min(20, count - config.getMaxFailures());
+      long delay = Math.min(config.getMaxDelay(), config.getDelay() << exponent);
+      f.blockedUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(delay);
+      log.debug("authentication backoff '{}', {} failures, {} s", key, count, delay);
+    }
+  }
+
+  public void success(String name) {
+    failures.remove("user:" + name);
+  }
+
+  public int size() {
+    return failures.size();
+  }
+
+}
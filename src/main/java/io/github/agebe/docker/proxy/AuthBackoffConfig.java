@@ -0,0 +1,103 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for the backoff after repeated authentication failures, see {@link AuthBackoff}.
+ * <pre>
+ * authBackoff:
+ *   enabled: true
+ *   maxFailures: 5
+ *   delay: 1
+ *   maxDelay: 300
+ *   window: 900
+ *   size: 100000
+ * </pre>
+ */
+public class AuthBackoffConfig {
+
+  static final AuthBackoffConfig DEFAULT = new AuthBackoffConfig();
+
+  private boolean enabled = false;
+
+  // failures per source address or user name before the backoff starts
+  private int maxFailures = 5;
+
+  // seconds, first backoff, doubled with every further failure
+  private long delay = 1;
+
+  // seconds
+  private long maxDelay = 300;
+
+  // seconds failures are remembered after the last one
+  private long window = 900;
+
+  // source addresses and user names tracked
+  private int size = 100000;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getMaxFailures() {
+    return maxFailures;
+  }
+
+  public long getDelay() {
+    return delay;
+  }
+
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  public long getWindow() {
+    return window;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, maxFailures, delay, maxDelay, window, size);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    AuthBackoffConfig other = (AuthBackoffConfig)obj;
+    return (enabled == other.enabled)
+        && (maxFailures == other.maxFailures)
+        && (delay == other.delay)
+        && (maxDelay == other.maxDelay)
+        && (window == other.window)
+        && (size == other.size);
+  }
+
+  @Override
+  public String toString() {
+    return "AuthBackoffConfig [enabled=" + enabled + ", maxFailures=" + maxFailures + ", delay=" + delay
+        + ", maxDelay=" + maxDelay + ", window=" + window + ", size=" + size + "]";
+  }
+
+}
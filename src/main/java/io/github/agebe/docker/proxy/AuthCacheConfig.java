@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+/**
+ * Settings for the verified-credential cache and the failed-credential cache, see {@link CredentialCache}.
+ * <pre>
+ * authCache:
+ *   enabled: true
+ *   size: 10000
+ *   ttl: 300
+ *   negativeSize: 10000
+ *   negativeTtl: 60
+ * </pre>
+ */
+public class AuthCacheConfig {
+
+  static final AuthCacheConfig DEFAULT = new AuthCacheConfig();
+
+  private boolean enabled = true;
+
+  private int size = 10000;
+
+  // seconds
+  private long ttl = 300;
+
+  // failed credentials, 0 to disable
+  private int negativeSize = 10000;
+
+  // seconds
+  private long negativeTtl = 60;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public long getTtl() {
+    return ttl;
+  }
+
+  public int getNegativeSize() {
+    return negativeSize;
+  }
+
+  public long getNegativeTtl() {
+    return negativeTtl;
+  }
+
+  @Override
+  public String toString() {
+    return "AuthCacheConfig [enabled=" + enabled + ", size=" + size + ", ttl=" + ttl + ", negativeSize="
+        + negativeSize + ", negativeTtl=" + negativeTtl + "]";
+  }
+
+}
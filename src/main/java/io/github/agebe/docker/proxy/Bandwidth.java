@@ -0,0 +1,62 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bandwidth budget shared by background transfers. Transfers reserve time for the bytes they have read
+ * and sleep if they are ahead of the budget, bursts of up to one second worth of bytes are allowed.
+ */
+public class Bandwidth {
+
+  private final double nanosPerByte;
+
+  private final long burstNanos = TimeUnit.SECONDS.toNanos(1);
+
+  // time at which the budget is used up
+  private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+
+  /**
+   * @param bytesPerSecond budget, must be positive
+   */
+  public Bandwidth(long bytesPerSecond) {
+    super();
+    this.nanosPerByte = (double)TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+  }
+
+  /**
+   * Account for the transferred bytes, blocks until they fit into the budget.
+   */
+  public void acquire(long bytes) {
+    long cost = (long)(bytes * nanosPerByte);
+    long now;
+    long next;
+    while(true) {
+      now = System.nanoTime();
+      long current = tat.get();
+      next = Math.max(current == Long.MIN_VALUE ? now : current, now) + cost;
+      if(tat.compareAndSet(current, next)) {
+        break;
+      }
+    }
+    long wait = next - now - burstNanos;
+    if(wait > 0) {
+      LockSupport.parkNanos(wait);
+    }
+  }
+
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Content addressable on-disk cache for blobs. Blobs are immutable and addressed by their digest so
+ * they are cached without expiry, bounded by a maximum size with least recently used eviction. Fills
+ * are written to a temporary file while being streamed to the client and only published after the
+ * sha256 has been verified.
+ */
+public class BlobCache {
+
+  private static final Logger log = LoggerFactory.getLogger(BlobCache.class);
+
+  private static final Pattern DIGEST = Pattern.compile("sha256:[a-f0-9]{64}");
+
+  private static volatile BlobCache instance;
+
+  private static BlobCacheConfig instanceConfig;
+
+  static {
+    Config.addListener(BlobCache::configure);
+  }
+
+  private static class Entry {
+    private final Path path;
+    private final long size;
+    private volatile long lastAccess;
+
+    private Entry(Path path, long size, long lastAccess) {
+      this.path = path;
+      this.size = size;
+      this.lastAccess = lastAccess;
+    }
+  }
+
+  private final BlobCacheConfig config;
+
+  private final Path blobDir;
+
+  private final Path tmpDir;
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  private final AtomicLong totalSize = new AtomicLong();
+
+  // repository/digest combinations the registry confirmed
+  private final TtlCache<String, Boolean> linked = new TtlCache<>(10000, Duration.ofMinutes(10));
+
+  // cache fills are coalesced, the spool file is linked into the cache once complete
+  private final Coalescer coalescer;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder fills = new LongAdder();
+
+  private final LongAdder evictions = new LongAdder();
+
+  BlobCache(BlobCacheConfig config) throws IOException {
+    super();
+    this.config = config;
+    Path dir = Path.of(config.getDirectory());
+    this.blobDir = dir.resolve("sha256");
+    this.tmpDir = dir.resolve("tmp");
+    Files.createDirectories(blobDir);
+    Files.createDirectories(tmpDir);
+    this.coalescer = new Coalescer(tmpDir);
+    scan();
+  }
+
+  private static synchronized void configure(Config config) {
+    BlobCacheConfig cfg = config.getBlobCache();
+    if(cfg.equals(instanceConfig)) {
+      return;
+    }
+    instanceConfig = cfg;
+    if(!cfg.isEnabled() || StringUtils.isBlank(cfg.getDirectory())) {
+      if(cfg.isEnabled()) {
+        log.warn("blob cache enabled but no directory configured");
+      }
+      instance = null;
+      return;
+    }
+    try {
+      instance = new BlobCache(cfg);
+      log.info("blob cache '{}', {} blobs, {} bytes", cfg, instance.entries.size(), instance.totalSize.get());
+    } catch(Exception e) {
+      log.warn("failed to setup blob cache '{}', cache disabled", cfg, e);
+      instance = null;
+    }
+  }
+
+  /**
+   * @return the blob cache or {@code null} if disabled
+   */
+  public static BlobCache get() {
+    return instance;
+  }
+
+  public static boolean isDigest(String s) {
+    return (s != null) && DIGEST.matcher(s).matches();
+  }
+
+  private void scan() throws IOException {
+    try(Stream<Path> tmp = Files.list(tmpDir)) {
+      for(Path p : tmp.toList()) {
+        Files.deleteIfExists(p);
+      }
+    }
+    try(Stream<Path> files = Files.walk(blobDir)) {
+      for(Path p : files.filter(Files::isRegularFile).toList()) {
+        String digest = "sha256:" + p.getFileName();
+        if(isDigest(digest)) {
+          long size = Files.size(p);
+          entries.put(digest, new Entry(p, size, Files.getLastModifiedTime(p).toMillis()));
+          totalSize.addAndGet(size);
+        }
+      }
+    }
+    evict();
+  }
+
+  private Path path(String digest) {
+    String hex = StringUtils.substringAfter(digest, ":");
+    return blobDir.resolve(hex.substring(0, 2)).resolve(hex);
+  }
+
+  /**
+   * @return the path to the cached blob or {@code null} if not cached
+   */
+  public Path lookup(String digest) {
+    Entry entry = entries.get(digest);
+    if((entry == null) || !Files.exists(entry.path)) {
+      return null;
+    }
+    entry.lastAccess = System.currentTimeMillis();
+    return entry.path;
+  }
+
+  public boolean contains(String digest) {
+    return entries.containsKey(digest);
+  }
+
+  /**
+   * Serve a blob GET or HEAD request from the cache, filling the cache on a GET miss.
+   * @return {@code false} if the request has not been handled and should be forwarded instead
+   */
+  public boolean serve(String url, String repo, String digest, HttpServletRequest request,
+      HttpServletResponse response) throws Exception {
+    if(!isDigest(digest) || (request.getHeader("Range") != null)) {
+      return false;
+    }
+    boolean head = "HEAD".equalsIgnoreCase(request.getMethod());
+    Entry entry = entries.get(digest);
+    // opened before the content length is sent, an eviction from here on only unlinks the file and the
+    // open channel still reads the whole blob
+    FileChannel channel = entry != null ? open(entry.path) : null;
+    if(channel != null) {
+      try(channel) {
+        if(!isLinked(url, repo, digest, request)) {
+          // let the registry answer, most likely blob unknown
+          return false;
+        }
+        hits.increment();
+        entry.lastAccess = System.currentTimeMillis();
+        sendFile(channel, entry.size, digest, head, response);
+        return true;
+      }
+    }
+    misses.increment();
+    if(head) {
+      return false;
+    }
+    fill(url, repo, digest, request, response);
+    return true;
+  }
+
+  private boolean isLinked(String url, String repo, String digest, HttpServletRequest request) throws Exception {
+    if(!config.isVerifyRepo()) {
+      return true;
+    }
+    String key = repo + "@" + digest;
+    if(linked.get(key) != null) {
+      return true;
+    }
+    Upstream upstream = Upstream.get();
+    HttpResponse<InputStream> r = upstream.send(upstream.request(url, request)
+        .method("HEAD", BodyPublishers.noBody())
+        .build());
+    r.body().close();
+    int status = r.statusCode();
+    if((status == HttpServletResponse.SC_OK) || ((status >= 300) && (status < 400))) {
+      linked.put(key, Boolean.TRUE);
+      return true;
+    } else {
+      log.debug("blob '{}' not available in repository '{}', status '{}'", digest, repo, status);
+      return false;
+    }
+  }
+
+  /**
+   * @return the open file or {@code null} if it has been evicted
+   */
+  private static FileChannel open(Path path) throws IOException {
+    try {
+      return FileChannel.open(path);
+    } catch(NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  private void sendFile(FileChannel channel, long size, String digest, boolean head,
+      HttpServletResponse response) throws IOException {
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setHeader("Content-Type", "application/octet-stream");
+    response.setHeader("Docker-Content-Digest", digest);
+    response.setHeader("Docker-Distribution-Api-Version", "registry/2.0");
+    response.setHeader("Etag", "\"" + digest + "\"");
+    response.setContentLengthLong(size);
+    if(head) {
+      return;
+    }
+    WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+    long position = 0;
+    while(position < size) {
+      position += channel.transferTo(position, size - position, out);
+    }
+  }
+
+  private void fill(String url, String repo, String digest, HttpServletRequest request,
+      HttpServletResponse response) throws Exception {
+    // the spool file is in the cache directory, blobs from other repositories aren't shared
+    coalescer.fetch(fillKey(repo, digest), url, request, response, completion(repo, digest));
+  }
+
+  /**
+   * Fills are keyed by repository and digest, not by url, so fills routed to different registry replicas
+   * are still coalesced.
+   */
+  private static String fillKey(String repo, String digest) {
+    return "/v2/" + repo + "/blobs/" + digest;
+  }
+
+  private Coalescer.Completion completion(String repo, String digest) {
+    return flight -> {
+      String actual = flight.getDigest();
+      if(!actual.equals(digest)) {
+        log.warn("blob digest mismatch, expected '{}', actual '{}', not caching", digest, actual);
+        return;
+      }
+      publish(digest, flight.getSpool(), flight.getSize());
+      if(config.isVerifyRepo()) {
+        linked.put(repo + "@" + digest, Boolean.TRUE);
+      }
+    };
+  }
+
+  /**
+   * Fill the cache in the background, client requests for the blob arriving in the meantime follow the
+   * fetch.
+   * @param bandwidth limits the download rate until a client request follows, may be {@code null}
+   * @return {@code false} if the blob is already cached or being fetched
+   */
+  public boolean prefetch(String url, String repo, String digest, Bandwidth bandwidth) throws Exception {
+    if(contains(digest)) {
+      return false;
+    }
+    return coalescer.fetch(fillKey(repo, digest), url, bandwidth, completion(repo, digest));
+  }
+
+  private void publish(String digest, Path tmp, long size) throws IOException {
+    Path target = path(digest);
+    Files.createDirectories(target.getParent());
+    // link, the temporary file might still be read by coalesced requests and gets deleted by its owner
+    Path link = tmpDir.resolve(tmp.getFileName() + ".link");
+    try {
+      Files.createLink(link, tmp);
+    } catch(UnsupportedOperationException | IOException e) {
+      Files.copy(tmp, link, StandardCopyOption.REPLACE_EXISTING);
+    }
+    Files.move(link, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    Entry previous = entries.put(digest, new Entry(target, size, System.currentTimeMillis()));
+    totalSize.addAndGet(size - (previous != null ? previous.size : 0));
+    fills.increment();
+    log.debug("cached blob '{}', {} bytes", digest, size);
+    if(totalSize.get() > config.getMaxSize()) {
+      evict();
+    }
+  }
+
+  private synchronized void evict() {
+    long max = config.getMaxSize();
+    if(totalSize.get() <= max) {
+      return;
+    }
+    // evict down to 90% so we don't evict on every fill
+    long target = max - (max / 10);
+    List<Map.Entry<String, Entry>> lru = entries.entrySet().stream()
+        .sorted(Comparator.comparingLong(e -> e.getValue().lastAccess))
+        .toList();
+    for(Map.Entry<String, Entry> e : lru) {
+      if(totalSize.get() <= target) {
+        break;
+      }
+      if(entries.remove(e.getKey(), e.getValue())) {
+        totalSize.addAndGet(-e.getValue().size);
+        evictions.increment();
+        try {
+          Files.deleteIfExists(e.getValue().path);
+        } catch(IOException ex) {
+          log.warn("failed to delete cached blob '{}'", e.getValue().path, ex);
+        }
+      }
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getFills() {
+    return fills.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public long getSize() {
+    return totalSize.get();
+  }
+
+}
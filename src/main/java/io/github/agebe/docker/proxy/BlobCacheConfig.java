@@ -0,0 +1,84 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for the on-disk blob cache, see {@link BlobCache}.
+ * <pre>
+ * blobCache:
+ *   enabled: true
+ *   directory: /var/cache/docker-proxy
+ *   maxSize: 10737418240
+ *   verifyRepo: true
+ * </pre>
+ */
+public class BlobCacheConfig {
+
+  static final BlobCacheConfig DEFAULT = new BlobCacheConfig();
+
+  private boolean enabled = false;
+
+  private String directory;
+
+  // bytes
+  private long maxSize = 10L * 1024 * 1024 * 1024;
+
+  // check with the registry (HEAD request, result cached) that a cached blob belongs to the requested repository
+  private boolean verifyRepo = true;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public String getDirectory() {
+    return directory;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public boolean isVerifyRepo() {
+    return verifyRepo;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, directory, maxSize, verifyRepo);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    BlobCacheConfig other = (BlobCacheConfig)obj;
+    return (enabled == other.enabled)
+        && Objects.equals(directory, other.directory)
+        && (maxSize == other.maxSize)
+        && (verifyRepo == other.verifyRepo);
+  }
+
+  @Override
+  public String toString() {
+    return "BlobCacheConfig [enabled=" + enabled + ", directory=" + directory + ", maxSize=" + maxSize
+        + ", verifyRepo=" + verifyRepo + "]";
+  }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for the automatic cross repository blob mount on push, see {@link BlobMounter}.
+ * <pre>
+ * blobMount:
+ *   enabled: true
+ *   maxAttempts: 3
+ *   maxDigests: 100000
+ * </pre>
+ */
+public class BlobMountConfig {
+
+  static final BlobMountConfig DEFAULT = new BlobMountConfig();
+
+  private boolean enabled = false;
+
+  // mount requests per missing blob
+  private int maxAttempts = 3;
+
+  // digests with known repositories that are remembered
+  private int maxDigests = 100000;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public int getMaxDigests() {
+    return maxDigests;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, maxAttempts, maxDigests);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    BlobMountConfig other = (BlobMountConfig)obj;
+    return (enabled == other.enabled) && (maxAttempts == other.maxAttempts) && (maxDigests == other.maxDigests);
+  }
+
+  @Override
+  public String toString() {
+    return "BlobMountConfig [enabled=" + enabled + ", maxAttempts=" + maxAttempts + ", maxDigests=" + maxDigests
+        + "]";
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Avoids uploads of blobs the registry already has in another repository. The repositories a blob has
+ * been seen in (pulled, pushed or mounted through the proxy) are remembered per digest. When a pushing
+ * client checks for a blob that is missing in the target repository the proxy mounts it from one of
+ * those repositories the user can access, the client then sees the blob as existing and skips the upload.
+ */
+public class BlobMounter {
+
+  private static final Logger log = LoggerFactory.getLogger(BlobMounter.class);
+
+  // repositories remembered per digest, most recent first
+  private static final int MAX_REPOS = 8;
+
+  private static volatile BlobMounter instance;
+
+  private static BlobMountConfig instanceConfig;
+
+  private static final LongAdder mounts = new LongAdder();
+
+  private static final LongAdder failures = new LongAdder();
+
+  static {
+    Config.addListener(BlobMounter::configure);
+  }
+
+  private final BlobMountConfig config;
+
+  // digest -> repositories
+  private final TtlCache<String, List<String>> locations;
+
+  private BlobMounter(BlobMountConfig config) {
+    super();
+    this.config = config;
+    this.locations = new TtlCache<>(config.getMaxDigests(), Duration.ofDays(1));
+  }
+
+  private static synchronized void configure(Config config) {
+    BlobMountConfig cfg = config.getBlobMount();
+    if(cfg.equals(instanceConfig)) {
+      return;
+    }
+    instanceConfig = cfg;
+    instance = cfg.isEnabled() ? new BlobMounter(cfg) : null;
+    log.info("blob mount '{}'", cfg);
+  }
+
+  /**
+   * @return the blob mounter or {@code null} if disabled
+   */
+  public static BlobMounter get() {
+    return instance;
+  }
+
+  /**
+   * Remember that the repository contains the blob.
+   */
+  public void seen(String repo, String digest) {
+    List<String> repos = locations.get(digest);
+    if((repos != null) && !repos.isEmpty() && repos.get(0).equals(repo)) {
+      return;
+    }
+    List<String> updated = new ArrayList<>(MAX_REPOS);
+    updated.add(repo);
+    if(repos != null) {
+      repos.stream().filter(r -> !r.equals(repo)).limit(MAX_REPOS - 1).forEach(updated::add);
+    }
+    locations.put(digest, List.copyOf(updated));
+  }
+
+  /**
+   * Answer a blob HEAD request of a user with write access, mounting the blob from another repository if
+   * it's missing in the requested one.
+   */
+  public void head(String url, String repo, String digest, User user, HttpServletRequest request,
+      HttpServletResponse response) throws Exception {
+    Upstream upstream = Upstream.get();
+    HttpResponse<InputStream> r = upstream.send(upstream.request(url, request)
+        .method("HEAD", BodyPublishers.noBody())
+        .build());
+    // mount on the registry the request was routed to
+    String registry = StringUtils.substringBefore(url, "/v2/");
+    if((r.statusCode() == HttpServletResponse.SC_NOT_FOUND) && mount(registry, repo, digest, user)) {
+      r.body().close();
+      r = upstream.send(upstream.request(url, request)
+          .method("HEAD", BodyPublishers.noBody())
+          .build());
+    }
+    if(r.statusCode() == HttpServletResponse.SC_OK) {
+      seen(repo, digest);
+    }
+    Upstream.relay(r, response, false);
+  }
+
+  private boolean mount(String registry, String repo, String digest, User user) {
+    List<String> repos = locations.get(digest);
+    if(repos == null) {
+      return false;
+    }
+    int attempts = 0;
+    for(String from : repos) {
+      if(from.equals(repo) || !user.canAccessRepo(from)) {
+        continue;
+      }
+      if(attempts++ >= config.getMaxAttempts()) {
+        break;
+      }
+      String url = registry + "/v2/" + repo + "/blobs/uploads/?mount=" + digest + "&from="
+          + URLEncoder.encode(from, StandardCharsets.UTF_8);
+      try {
+        HttpResponse<InputStream> r = Upstream.get().send(HttpRequest.newBuilder(URI.create(url))
+            .POST(BodyPublishers.noBody())
+            .build());
+        try(InputStream in = r.body()) {
+          in.transferTo(OutputStream.nullOutputStream());
+        }
+        if(r.statusCode() == HttpServletResponse.SC_CREATED) {
+          log.debug("blob '{}' mounted from '{}' into '{}' for user '{}'", digest, from, repo, user.getName());
+          mounts.increment();
+          seen(repo, digest);
+          return true;
+        }
+        failures.increment();
+        // the registry started a regular upload instead, cancel it
+        String location = r.headers().firstValue("Location").orElse(null);
+        if((r.statusCode() == HttpServletResponse.SC_ACCEPTED) && StringUtils.isNotBlank(location)) {
+          cancel(registry, location);
+        }
+      } catch(Exception e) {
+        failures.increment();
+        log.debug("failed to mount blob '{}' from '{}' into '{}'", digest, from, repo, e);
+      }
+    }
+    return false;
+  }
+
+  private void cancel(String registry, String location) throws Exception {
+    String url = location.startsWith("/") ? registry + location : location;
+    HttpResponse<InputStream> r = Upstream.get().send(HttpRequest.newBuilder(URI.create(url))
+        .DELETE()
+        .build());
+    r.body().close();
+  }
+
+  public static long getMounts() {
+    return mounts.sum();
+  }
+
+  public static long getFailures() {
+    return failures.sum();
+  }
+
+}
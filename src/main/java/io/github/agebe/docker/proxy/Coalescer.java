@@ -0,0 +1,485 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Collapses concurrent identical GET requests into a single upstream fetch (single flight). The first
+ * request (leader) starts a fetch that streams the upstream response into a spool file, the leader and
+ * requests for the same key arriving while the fetch is in flight follow the spool file as it grows, late
+ * joiners catch up from the start of the file. A slow client therefore never slows down the fetch.
+ */
+public class Coalescer {
+
+  private static final Logger log = LoggerFactory.getLogger(Coalescer.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // max time a follower waits for the leader to make progress
+  private static final long WAIT_TIMEOUT_MS = 60_000;
+
+  private static final String[] RESPONSE_HEADERS = {
+      "Content-Type",
+      "Content-Length",
+      "Docker-Content-Digest",
+      "Docker-Distribution-Api-Version",
+      "Etag",
+      "Location",
+  };
+
+  private static volatile Coalescer instance;
+
+  private static CoalescingConfig instanceConfig;
+
+  private static final LongAdder leaders = new LongAdder();
+
+  private static final LongAdder coalesced = new LongAdder();
+
+  static {
+    Config.addListener(Coalescer::configure);
+  }
+
+  /**
+   * Called after the upstream response has been spooled completely, before the requests following the fetch
+   * complete.
+   */
+  public interface Completion {
+    void completed(Flight flight) throws Exception;
+  }
+
+  /**
+   * State of an upstream fetch. Uses a lock and condition instead of monitors, so waiting followers don't
+   * pin the carrier when running on virtual threads.
+   */
+  public static class Flight {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private Path spool;
+
+    private MessageDigest sha256;
+
+    private int status;
+
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    private boolean started;
+
+    private long written;
+
+    private boolean done;
+
+    private boolean failed;
+
+    private Exception error;
+
+    private int refs = 1;
+
+    // set once a client request follows, background fetches are no longer throttled then
+    private volatile boolean followed;
+
+    private void start(Path spool, HttpResponse<?> response) throws Exception {
+      lock.lock();
+      try {
+        this.spool = spool;
+        this.sha256 = MessageDigest.getInstance("SHA-256");
+        this.status = response.statusCode();
+        for(String name : RESPONSE_HEADERS) {
+          response.headers().firstValue(name).ifPresent(v -> headers.put(name, v));
+        }
+        started = true;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void advance(long bytes) {
+      lock.lock();
+      try {
+        written += bytes;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @param error the reason the fetch failed or {@code null} if the response has been spooled completely
+     */
+    private void finish(Exception error) {
+      lock.lock();
+      try {
+        done = true;
+        failed = error != null;
+        this.error = error;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private boolean join() {
+      lock.lock();
+      try {
+        if(done) {
+          return false;
+        }
+        refs++;
+        followed = true;
+        return true;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    private void release() {
+      boolean delete;
+      lock.lock();
+      try {
+        refs--;
+        delete = (refs == 0) && (spool != null);
+      } finally {
+        lock.unlock();
+      }
+      if(delete) {
+        try {
+          Files.deleteIfExists(spool);
+        } catch(IOException e) {
+          log.warn("failed to delete spool file '{}'", spool, e);
+        }
+      }
+    }
+
+    private boolean awaitStart(long timeoutMs) throws InterruptedException {
+      lock.lock();
+      try {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while(!started && !done) {
+          if(nanos <= 0) {
+            return false;
+          }
+          nanos = changed.awaitNanos(nanos);
+        }
+        return started;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return the number of bytes available in the spool file, only returns {@code position} once the
+     * fetch is done
+     */
+    private long awaitData(long position, long timeoutMs) throws Exception {
+      lock.lock();
+      try {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while((written <= position) && !done) {
+          if(nanos <= 0) {
+            throw new DockerProxyException("timeout waiting for upstream data");
+          }
+          nanos = changed.awaitNanos(nanos);
+        }
+        if(failed) {
+          throw new DockerProxyException("upstream fetch failed");
+        }
+        return written;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public Path getSpool() {
+      return spool;
+    }
+
+    public long getSize() {
+      lock.lock();
+      try {
+        return written;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * @return the sha256 digest of the spooled content, only valid after completion
+     */
+    public String getDigest() {
+      return "sha256:" + HexFormat.of().formatHex(sha256.digest());
+    }
+
+  }
+
+  private final Path spoolDir;
+
+  private final long waitTimeoutMs;
+
+  private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+  // runs the fetches started by client requests, so the leader can follow the spool file like any follower
+  private final ExecutorService executor;
+
+  public Coalescer(Path spoolDir) {
+    this(spoolDir, WAIT_TIMEOUT_MS, false);
+  }
+
+  Coalescer(Path spoolDir, long waitTimeoutMs) {
+    this(spoolDir, waitTimeoutMs, false);
+  }
+
+  private Coalescer(Path spoolDir, long waitTimeoutMs, boolean virtualThreads) {
+    super();
+    this.spoolDir = spoolDir;
+    this.waitTimeoutMs = waitTimeoutMs;
+    AtomicInteger threads = new AtomicInteger();
+    ExecutorService virtual = virtualThreads ? VirtualThreads.newPerTaskExecutor() : null;
+    this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "coalesce-" + threads.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  private static synchronized void configure(Config config) {
+    CoalescingConfig cfg = config.getCoalescing();
+    if(cfg.equals(instanceConfig)) {
+      return;
+    }
+    instanceConfig = cfg;
+    log.info("request coalescing '{}'", cfg);
+    if(cfg.isEnabled()) {
+      String dir = StringUtils.defaultIfBlank(cfg.getSpoolDirectory(), System.getProperty("java.io.tmpdir"));
+      // the executor of a replaced instance is not shut down, its fetches complete and idle threads expire
+      instance = new Coalescer(Path.of(dir), WAIT_TIMEOUT_MS, config.getUpstream().isVirtualThreads());
+    } else {
+      instance = null;
+    }
+  }
+
+  /**
+   * @return the coalescer for requests not going through a cache or {@code null} if disabled
+   */
+  public static Coalescer get() {
+    return instance;
+  }
+
+  /**
+   * @return number of upstream fetches done on behalf of coalesced requests
+   */
+  public static long getLeaders() {
+    return leaders.sum();
+  }
+
+  /**
+   * @return number of requests that have been served from another request's upstream fetch
+   */
+  public static long getCoalesced() {
+    return coalesced.sum();
+  }
+
+  /**
+   * Fetch the url or join an identical fetch already in flight and stream the response to the client.
+   * @param completion called when the response has been spooled successfully, before the clients following
+   * the fetch complete, may be {@code null}
+   * @return {@code false} if the request should be forwarded instead, only if the joined fetch failed
+   * before anything has been sent to the client
+   */
+  public boolean fetch(String key, String url, HttpServletRequest request, HttpServletResponse response,
+      Completion completion) throws Exception {
+    Flight flight = new Flight();
+    Flight inFlight = flights.putIfAbsent(key, flight);
+    if(inFlight == null) {
+      return lead(key, flight, url, request, response, completion);
+    } else if(inFlight.join()) {
+      return follow(key, inFlight, response, false);
+    } else {
+      // just completed, fetch on our own
+      return lead(null, flight, url, request, response, completion);
+    }
+  }
+
+  /**
+   * Fetch the url without a client, e.g. to fill a cache in the background. Requests for the same key
+   * arriving in the meantime follow this fetch.
+   * @param bandwidth limits the download rate until the first request follows, may be {@code null}
+   * @return {@code false} if a fetch for the key is already in flight
+   */
+  public boolean fetch(String key, String url, Bandwidth bandwidth, Completion completion) throws Exception {
+    Flight flight = new Flight();
+    if(flights.putIfAbsent(key, flight) != null) {
+      return false;
+    }
+    Upstream upstream = Upstream.get();
+    HttpRequest upstreamRequest;
+    try {
+      upstreamRequest = upstream.request(url).GET().build();
+    } catch(RuntimeException e) {
+      complete(key, flight, e);
+      throw e;
+    }
+    spool(key, flight, upstream, upstreamRequest, bandwidth, completion);
+    return true;
+  }
+
+  private boolean lead(String key, Flight flight, String url, HttpServletRequest request, HttpServletResponse response,
+      Completion completion) throws Exception {
+    Upstream upstream = Upstream.get();
+    HttpRequest upstreamRequest;
+    try {
+      upstreamRequest = upstream.request(url, request).GET().build();
+    } catch(RuntimeException e) {
+      complete(key, flight, e);
+      throw e;
+    }
+    // the leader's client holds its own reference to the spool file
+    flight.join();
+    executor.execute(() -> {
+      try {
+        spool(key, flight, upstream, upstreamRequest, null, completion);
+      } catch(Exception e) {
+        log.debug("coalesced fetch '{}' failed", url, e);
+      }
+    });
+    return follow(key, flight, response, true);
+  }
+
+  /**
+   * Stream the upstream response into the spool file, nothing else happens in this loop so the fetch runs
+   * at the speed of the upstream (or the bandwidth limit).
+   */
+  private void spool(String key, Flight flight, Upstream upstream, HttpRequest request, Bandwidth bandwidth,
+      Completion completion) throws Exception {
+    leaders.increment();
+    Exception error = null;
+    try {
+      HttpResponse<InputStream> r = upstream.send(request);
+      Files.createDirectories(spoolDir);
+      flight.start(Files.createTempFile(spoolDir, "spool", ".tmp"), r);
+      try(InputStream in = r.body();
+          FileChannel spool = FileChannel.open(flight.spool, StandardOpenOption.WRITE)) {
+        byte[] buf = new byte[BUFFER_SIZE];
+        int read;
+        while((read = in.read(buf)) != -1) {
+          flight.sha256.update(buf, 0, read);
+          ByteBuffer bb = ByteBuffer.wrap(buf, 0, read);
+          while(bb.hasRemaining()) {
+            spool.write(bb);
+          }
+          flight.advance(read);
+          if((bandwidth != null) && !flight.followed) {
+            bandwidth.acquire(read);
+          }
+        }
+      }
+      if((completion != null) && (flight.status == HttpServletResponse.SC_OK)) {
+        try {
+          completion.completed(flight);
+        } catch(Exception e) {
+          log.warn("failed to complete fetch '{}'", request.uri(), e);
+        }
+      }
+    } catch(Exception e) {
+      error = e;
+      throw e;
+    } finally {
+      complete(key, flight, error);
+    }
+  }
+
+  private void complete(String key, Flight flight, Exception error) {
+    flight.finish(error);
+    if(key != null) {
+      flights.remove(key, flight);
+    }
+    flight.release();
+  }
+
+  /**
+   * @param leader the request that started the fetch, waits for the upstream response without a timeout
+   * and gets the upstream error if the fetch failed before the response
+   */
+  private boolean follow(String key, Flight flight, HttpServletResponse response, boolean leader)
+      throws Exception {
+    try {
+      if(!flight.awaitStart(leader ? Long.MAX_VALUE : waitTimeoutMs)) {
+        if(leader && (flight.error != null)) {
+          throw flight.error;
+        }
+        log.debug("coalesced fetch '{}' failed before start", key);
+        return false;
+      }
+      if(!leader) {
+        coalesced.increment();
+        log.debug("coalesced request '{}'", key);
+      }
+      response.setStatus(flight.status);
+      flight.headers.forEach(response::setHeader);
+      try(FileChannel spool = FileChannel.open(flight.spool, StandardOpenOption.READ)) {
+        WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+        long position = 0;
+        while(true) {
+          long available = flight.awaitData(position, waitTimeoutMs);
+          if(available <= position) {
+            break;
+          }
+          while(position < available) {
+            position += spool.transferTo(position, available - position, out);
+          }
+        }
+      }
+      return true;
+    } finally {
+      flight.release();
+    }
+  }
+
+}
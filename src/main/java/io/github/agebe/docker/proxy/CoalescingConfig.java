@@ -0,0 +1,66 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for request coalescing of blob and manifest downloads, see {@link Coalescer}. Blob cache fills
+ * are always coalesced.
+ * <pre>
+ * coalescing:
+ *   enabled: true
+ *   spoolDirectory: /tmp
+ * </pre>
+ */
+public class CoalescingConfig {
+
+  static final CoalescingConfig DEFAULT = new CoalescingConfig();
+
+  private boolean enabled = false;
+
+  // defaults to java.io.tmpdir
+  private String spoolDirectory;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public String getSpoolDirectory() {
+    return spoolDirectory;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, spoolDirectory);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    CoalescingConfig other = (CoalescingConfig)obj;
+    return (enabled == other.enabled) && Objects.equals(spoolDirectory, other.spoolDirectory);
+  }
+
+  @Override
+  public String toString() {
+    return "CoalescingConfig [enabled=" + enabled + ", spoolDirectory=" + spoolDirectory + "]";
+  }
+
+}
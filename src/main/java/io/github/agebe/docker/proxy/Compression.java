@@ -0,0 +1,129 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Gzip content encoding of the JSON responses the proxy builds itself (filtered catalogs, tag lists).
+ * Forwarded responses keep the encoding negotiated between client and registry.
+ */
+public class Compression {
+
+  private static final Logger log = LoggerFactory.getLogger(Compression.class);
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static volatile CompressionConfig config = CompressionConfig.DEFAULT;
+
+  private static final LongAdder compressed = new LongAdder();
+
+  static {
+    Config.addListener(Compression::configure);
+  }
+
+  private static synchronized void configure(Config cfg) {
+    CompressionConfig c = cfg.getCompression();
+    if(!c.equals(config)) {
+      config = c;
+      log.info("compression '{}'", c);
+    }
+  }
+
+  private static class LevelGZIPOutputStream extends GZIPOutputStream {
+    private LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+      super(out, BUFFER_SIZE);
+      def.setLevel(level);
+    }
+  }
+
+  /**
+   * Decide the encoding of a response, adds the vary header if compression is enabled.
+   * @param length the size of the uncompressed response or -1 if unknown
+   * @return {@code true} if the response should be gzip encoded
+   */
+  public static boolean negotiate(HttpServletRequest request, HttpServletResponse response, long length) {
+    CompressionConfig c = config;
+    if(!c.isEnabled()) {
+      return false;
+    }
+    response.addHeader("Vary", "Accept-Encoding");
+    return ((length < 0) || (length >= c.getMinSize())) && acceptsGzip(request.getHeader("Accept-Encoding"));
+  }
+
+  static boolean acceptsGzip(String acceptEncoding) {
+    if(StringUtils.isBlank(acceptEncoding)) {
+      return false;
+    }
+    for(String coding : StringUtils.split(acceptEncoding, ',')) {
+      String name = StringUtils.trim(StringUtils.substringBefore(coding, ';'));
+      if(StringUtils.equalsAnyIgnoreCase(name, "gzip", "*")) {
+        String q = StringUtils.substringAfter(StringUtils.deleteWhitespace(coding), ";q=");
+        return q.isEmpty() || (NumberUtils.toDouble(q, 1) > 0);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Start a gzip encoded response body, the returned stream has to be finished.
+   */
+  public static GZIPOutputStream gzip(HttpServletResponse response) throws IOException {
+    compressed.increment();
+    response.setHeader("Content-Encoding", "gzip");
+    return new LevelGZIPOutputStream(response.getOutputStream(), config.getLevel());
+  }
+
+  public static byte[] compress(byte[] body) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+    try(GZIPOutputStream gzip = new LevelGZIPOutputStream(out, config.getLevel())) {
+      gzip.write(body);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * @return the gzip encoded body to keep along with the body in a cache or {@code null} if compression
+   * is disabled or the body is too small
+   */
+  public static byte[] precompress(byte[] body) throws IOException {
+    CompressionConfig c = config;
+    return c.isEnabled() && (body.length >= c.getMinSize()) ? compress(body) : null;
+  }
+
+  /**
+   * Mark a response that is sent precompressed.
+   */
+  public static void precompressed(HttpServletResponse response) {
+    compressed.increment();
+    response.setHeader("Content-Encoding", "gzip");
+  }
+
+  public static long getCompressed() {
+    return compressed.sum();
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for gzip encoded JSON responses built by the proxy, see {@link Compression}.
+ * <pre>
+ * compression:
+ *   enabled: true
+ *   minSize: 1024
+ *   level: 6
+ * </pre>
+ */
+public class CompressionConfig {
+
+  static final CompressionConfig DEFAULT = new CompressionConfig();
+
+  private boolean enabled = false;
+
+  // bytes, smaller responses of known size are sent uncompressed
+  private int minSize = 1024;
+
+  // deflate level 1 (fastest) to 9 (smallest)
+  private int level = 6;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getMinSize() {
+    return minSize;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, minSize, level);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    CompressionConfig other = (CompressionConfig)obj;
+    return (enabled == other.enabled) && (minSize == other.minSize) && (level == other.level);
+  }
+
+  @Override
+  public String toString() {
+    return "CompressionConfig [enabled=" + enabled + ", minSize=" + minSize + ", level=" + level + "]";
+  }
+
+}
@@ -16,22 +16,83 @@ package io.github.agebe.docker.proxy;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
+/**
+ * Immutable configuration snapshot. The current snapshot is held in an atomic reference and swapped by
+ * {@link #reload()} (triggered by the {@link ConfigWatcher}), request handlers only read it via
+ * {@link #getConfiguration()}.
+ */
 public class Config {
 
-  private static File confFile;
+  private static final Logger log = LoggerFactory.getLogger(Config.class);
+
+  private static final Config EMPTY = new Config(null, List.of());
+
+  private static final AtomicReference<Config> current = new AtomicReference<>(EMPTY);
+
+  private static final List<Consumer<Config>> listeners = new CopyOnWriteArrayList<>();
+
+  private static volatile File confFile;
 
   private String registry;
 
   private List<User> users;
 
+  private AuthCacheConfig authCache;
+
+  private BlobCacheConfig blobCache;
+
+  private ManifestCacheConfig manifestCache;
+
+  private CoalescingConfig coalescing;
+
+  private UpstreamConfig upstream;
+
+  private MetricsConfig metrics;
+
+  private TokenConfig token;
+
+  private List<HtpasswdConfig> htpasswd;
+
+  private BlobMountConfig blobMount;
+
+  private AuditConfig audit;
+
+  private LimitsConfig limits;
+
+  private AuthBackoffConfig authBackoff;
+
+  private PrefetchConfig prefetch;
+
+  private List<RegistryConfig> registries;
+
+  private HealthCheckConfig healthCheck;
+
+  private TagsCacheConfig tagsCache;
+
+  private HedgingConfig hedging;
+
+  private CompressionConfig compression;
+
+  private WarmupConfig warmup;
+
+  private ServerConfig server;
+
+  private transient UserDirectory userDirectory = UserDirectory.EMPTY;
+
   public Config() {
     super();
   }
@@ -40,24 +101,142 @@ public class Config {
     super();
     this.registry = registry;
     this.users = users;
+    this.userDirectory = UserDirectory.build(users != null ? users : List.of(), List.of(), UserDirectory.EMPTY);
   }
 
   public String getRegistry() {
     return registry;
   }
 
+  /**
+   * @return the upstream registries, the registry is added to the default pool unless listed
+   */
+  public List<RegistryConfig> getRegistries() {
+    List<RegistryConfig> list = new ArrayList<>();
+    if(registries != null) {
+      list.addAll(registries);
+    }
+    if((registry != null) && list.stream().noneMatch(r -> registry.equals(r.getUrl()))) {
+      list.add(new RegistryConfig(registry, null));
+    }
+    return list;
+  }
+
+  public HealthCheckConfig getHealthCheck() {
+    return healthCheck != null ? healthCheck : HealthCheckConfig.DEFAULT;
+  }
+
+  /**
+   * @return the users defined in the configuration file, see {@link #getUserDirectory()} for all users
+   */
   public List<User> getUsers() {
     return users;
   }
 
+  public List<HtpasswdConfig> getHtpasswd() {
+    return htpasswd != null ? htpasswd : List.of();
+  }
+
+  public UserDirectory getUserDirectory() {
+    return userDirectory;
+  }
+
+  /**
+   * @return the user from the configuration file or a htpasswd file, {@code null} if unknown
+   */
+  public User getUser(String name) {
+    return userDirectory.get(name);
+  }
+
+  public AuthCacheConfig getAuthCache() {
+    return authCache != null ? authCache : AuthCacheConfig.DEFAULT;
+  }
+
+  public BlobCacheConfig getBlobCache() {
+    return blobCache != null ? blobCache : BlobCacheConfig.DEFAULT;
+  }
+
+  public ManifestCacheConfig getManifestCache() {
+    return manifestCache != null ? manifestCache : ManifestCacheConfig.DEFAULT;
+  }
+
+  public CoalescingConfig getCoalescing() {
+    return coalescing != null ? coalescing : CoalescingConfig.DEFAULT;
+  }
+
+  public UpstreamConfig getUpstream() {
+    return upstream != null ? upstream : UpstreamConfig.DEFAULT;
+  }
+
+  public MetricsConfig getMetrics() {
+    return metrics != null ? metrics : MetricsConfig.DEFAULT;
+  }
+
+  public BlobMountConfig getBlobMount() {
+    return blobMount != null ? blobMount : BlobMountConfig.DEFAULT;
+  }
+
+  public WarmupConfig getWarmup() {
+    return warmup != null ? warmup : WarmupConfig.DEFAULT;
+  }
+
+  public ServerConfig getServer() {
+    return server != null ? server : ServerConfig.DEFAULT;
+  }
+
+  public CompressionConfig getCompression() {
+    return compression != null ? compression : CompressionConfig.DEFAULT;
+  }
+
+  public HedgingConfig getHedging() {
+    return hedging != null ? hedging : HedgingConfig.DEFAULT;
+  }
+
+  public TagsCacheConfig getTagsCache() {
+    return tagsCache != null ? tagsCache : TagsCacheConfig.DEFAULT;
+  }
+
+  public PrefetchConfig getPrefetch() {
+    return prefetch != null ? prefetch : PrefetchConfig.DEFAULT;
+  }
+
+  public AuthBackoffConfig getAuthBackoff() {
+    return authBackoff != null ? authBackoff : AuthBackoffConfig.DEFAULT;
+  }
+
+  public LimitsConfig getLimits() {
+    return limits != null ? limits : LimitsConfig.DEFAULT;
+  }
+
+  public AuditConfig getAudit() {
+    return audit != null ? audit : AuditConfig.DEFAULT;
+  }
+
+  public TokenConfig getToken() {
+    return token != null ? token : TokenConfig.DEFAULT;
+  }
+
   @Override
   public String toString() {
-    return "Config [registry=" + registry + ", users=" + users + "]";
+    return "Config [registry=" + registry + ", users=" + users + ", authCache=" + authCache
+        + ", blobCache=" + blobCache + ", manifestCache=" + manifestCache + ", coalescing=" + coalescing
+        + ", upstream=" + upstream + ", metrics=" + metrics + ", token=" + token + ", htpasswd=" + htpasswd
+        + ", blobMount=" + blobMount + ", audit=" + audit + ", limits=" + limits + ", authBackoff=" + authBackoff
+        + ", prefetch=" + prefetch
+        + ", registries=" + registries + ", healthCheck=" + healthCheck + ", tagsCache=" + tagsCache
+        + ", hedging=" + hedging + ", compression=" + compression + ", warmup=" + warmup + ", server=" + server
+        + ", directory users=" + userDirectory.size() + "]";
   }
 
   public static Config parse(File f) {
-    try {
-      InputStream inputStream = new FileInputStream(f);
+    return parse(f, UserDirectory.EMPTY);
+  }
+
+  /**
+   * @param previous user directory to take over unchanged users from
+   */
+  static Config parse(File f, UserDirectory previous) {
+    try(InputStream inputStream = new FileInputStream(f)) {
       Yaml yaml = new Yaml();
       Map<String, Object> data = yaml.load(inputStream);
       Gson gson = new GsonBuilder()
@@ -67,30 +246,77 @@ public class Config {
           .registerTypeAdapter(Role.class, new RoleTypeAdapter())
           .create();
       Config config = gson.fromJson(gson.toJson(data), Config.class);
-      for(User user : config.getUsers()) {
-        long count = config.getUsers().stream()
-            .filter(u -> u.getName().equals(user.getName()))
-            .count();
-        if(count > 1) {
-          throw new DockerProxyException("check configuration, user '%s' duplicated".formatted(user.getName()));
-        }
+      if(config == null) {
+        throw new DockerProxyException("empty configuration");
       }
+      List<User> users = config.getUsers() != null ? List.copyOf(config.getUsers()) : List.of();
+      config.userDirectory = UserDirectory.build(users, config.getHtpasswd(), previous);
+      // unchanged users are taken over from the previous directory
+      config.users = users.stream().map(u -> config.userDirectory.get(u.getName())).toList();
       return config;
     } catch(Exception e) {
       throw new DockerProxyException("failed to parse configuration", e);
     }
  }
 
+  /**
+   * @return the current configuration snapshot, never {@code null}
+   */
   public static Config getConfiguration() {
-    if((confFile != null) && confFile.canRead()) {
-      return Config.parse(confFile);
-    } else {
-      return new Config(null, List.of());
-    }
+    return current.get();
   }
 
+  /**
+   * Set the configuration file and load it. Fails if the file can't be parsed.
+   */
   public static void setConfFile(File file) {
     confFile = file;
+    apply(Config.parse(file));
+  }
+
+  public static File getConfFile() {
+    return confFile;
+  }
+
+  /**
+   * Re-read the configuration file and swap the current snapshot. The last good snapshot is kept if the
+   * file fails to parse or validate.
+   * @return {@code true} if the new configuration has been applied
+   */
+  public static boolean reload() {
+    File f = confFile;
+    if((f == null) || !f.canRead()) {
+      log.warn("configuration file '{}' not readable, keeping current configuration", f);
+      return false;
+    }
+    try {
+      Config config = Config.parse(f, current.get().getUserDirectory());
+      apply(config);
+      log.info("configuration reloaded '{}'", config);
+      return true;
+    } catch(Exception e) {
+      log.warn("failed to reload configuration from '{}', keeping current configuration", f.getAbsolutePath(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Register a listener that is called with the current configuration and again after every reload.
+   */
+  public static void addListener(Consumer<Config> listener) {
+    listeners.add(listener);
+    listener.accept(current.get());
+  }
+
+  static void apply(Config config) {
+    current.set(config);
+    for(Consumer<Config> listener : listeners) {
+      try {
+        listener.accept(config);
+      } catch(Exception e) {
+        log.warn("configuration listener failed", e);
+      }
+    }
   }
 
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the configuration file and the htpasswd files it references and triggers {@link Config#reload()}
+ * when one of them changes. Directory events from the {@link WatchService} wake the watcher up early, the
+ * file modification time and size are also polled so changes through symlink swaps (e.g. kubernetes
+ * config maps) are picked up as well.
+ */
+public class ConfigWatcher implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(ConfigWatcher.class);
+
+  private static final long POLL_INTERVAL_MS = 5000;
+
+  private final File file;
+
+  private final Thread thread;
+
+  private volatile boolean running = true;
+
+  // file -> last modified, length
+  private final Map<File, long[]> watched = new HashMap<>();
+
+  private final Set<Path> directories = new HashSet<>();
+
+  public ConfigWatcher(File file) {
+    super();
+    this.file = file;
+    this.thread = new Thread(this::run, "config-watcher");
+    this.thread.setDaemon(true);
+    files().forEach(f -> watched.put(f, new long[] {f.lastModified(), f.length()}));
+  }
+
+  public void start() {
+    thread.start();
+  }
+
+  private List<File> files() {
+    List<File> files = new ArrayList<>();
+    files.add(file);
+    for(HtpasswdConfig htpasswd : Config.getConfiguration().getHtpasswd()) {
+      if(htpasswd.getFile() != null) {
+        files.add(new File(htpasswd.getFile()));
+      }
+    }
+    return files;
+  }
+
+  private void run() {
+    try(WatchService watchService = FileSystems.getDefault().newWatchService()) {
+      log.info("watching configuration file '{}'", file.getAbsolutePath());
+      while(running) {
+        register(watchService);
+        WatchKey key = watchService.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if(key != null) {
+          key.pollEvents();
+          key.reset();
+        }
+        checkModified();
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch(Exception e) {
+      log.error("configuration watcher failed, configuration changes are no longer picked up", e);
+    }
+  }
+
+  private void register(WatchService watchService) {
+    for(File f : watched.keySet()) {
+      Path dir = f.getAbsoluteFile().toPath().getParent();
+      if((dir != null) && directories.add(dir)) {
+        try {
+          dir.register(watchService,
+              StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_MODIFY,
+              StandardWatchEventKinds.ENTRY_DELETE);
+        } catch(Exception e) {
+          log.warn("failed to watch directory '{}', polling only", dir, e);
+        }
+      }
+    }
+  }
+
+  private void checkModified() {
+    boolean changed = false;
+    for(Map.Entry<File, long[]> e : watched.entrySet()) {
+      File f = e.getKey();
+      long modified = f.lastModified();
+      long len = f.length();
+      long[] last = e.getValue();
+      if((modified == 0) || ((modified == last[0]) && (len == last[1]))) {
+        continue;
+      }
+      last[0] = modified;
+      last[1] = len;
+      log.info("configuration file '{}' changed", f.getAbsolutePath());
+      changed = true;
+    }
+    if(changed) {
+      Config.reload();
+      // the reloaded configuration might reference other htpasswd files
+      Map<File, long[]> files = new HashMap<>();
+      for(File f : files()) {
+        long[] last = watched.get(f);
+        files.put(f, last != null ? last : new long[] {f.lastModified(), f.length()});
+      }
+      watched.clear();
+      watched.putAll(files);
+    }
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    thread.interrupt();
+  }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of successfully verified credentials so the (expensive) password check only runs once per
+ * client session instead of once per request. Failed credentials are cached as well (negative cache) so
+ * clients retrying with a wrong password don't cost a password check each time. Entries are keyed by a
+ * HMAC of the raw authorization header using a random per process key, the plaintext credentials are
+ * never stored. An entry is only valid as long as the user's configuration is unchanged.
+ */
+public class CredentialCache {
+
+  private static final Logger log = LoggerFactory.getLogger(CredentialCache.class);
+
+  private static final String HMAC = "HmacSHA256";
+
+  private final SecretKeySpec key;
+
+  private final ThreadLocal<Mac> mac;
+
+  private final TtlCache<String, User> cache;
+
+  private final TtlCache<String, User> failed;
+
+  private final LongAdder negativeHits = new LongAdder();
+
+  private volatile boolean enabled;
+
+  public CredentialCache() {
+    super();
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    key = new SecretKeySpec(secret, HMAC);
+    mac = ThreadLocal.withInitial(this::createMac);
+    AuthCacheConfig cfg = AuthCacheConfig.DEFAULT;
+    cache = new TtlCache<>(cfg.getSize(), Duration.ofSeconds(cfg.getTtl()));
+    failed = new TtlCache<>(cfg.getNegativeSize(), Duration.ofSeconds(cfg.getNegativeTtl()));
+    Config.addListener(this::configure);
+  }
+
+  private Mac createMac() {
+    try {
+      Mac m = Mac.getInstance(HMAC);
+      m.init(key);
+      return m;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to create " + HMAC, e);
+    }
+  }
+
+  private void configure(Config config) {
+    AuthCacheConfig cfg = config.getAuthCache();
+    log.debug("configure credential cache '{}'", cfg);
+    enabled = cfg.isEnabled();
+    cache.configure(cfg.getSize(), Duration.ofSeconds(cfg.getTtl()));
+    failed.configure(cfg.getNegativeSize(), Duration.ofSeconds(cfg.getNegativeTtl()));
+    if(!enabled) {
+      cache.clear();
+      failed.clear();
+    }
+  }
+
+  /**
+   * Drop all entries, see {@link Warmup}.
+   */
+  void clear() {
+    cache.clear();
+    failed.clear();
+  }
+
+  private String hash(String authorization) {
+    return Base64.getEncoder().encodeToString(mac.get().doFinal(authorization.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * @return {@code true} if the authorization header has been verified before for exactly this user
+   * configuration
+   */
+  public boolean isVerified(String authorization, User user) {
+    if(!enabled) {
+      return false;
+    }
+    String h = hash(authorization);
+    User cached = cache.get(h);
+    if(cached == null) {
+      return false;
+    } else if(cached.equals(user)) {
+      return true;
+    } else {
+      // user configuration changed since the credentials have been verified
+      cache.remove(h);
+      return false;
+    }
+  }
+
+  public void verified(String authorization, User user) {
+    if(enabled) {
+      cache.put(hash(authorization), user);
+    }
+  }
+
+  /**
+   * @return {@code true} if the authorization header failed the password check recently for exactly this
+   * user configuration
+   */
+  public boolean isFailed(String authorization, User user) {
+    if(!enabled) {
+      return false;
+    }
+    String h = hash(authorization);
+    User cached = failed.get(h);
+    if(cached == null) {
+      return false;
+    } else if(cached.equals(user)) {
+      negativeHits.increment();
+      return true;
+    } else {
+      failed.remove(h);
+      return false;
+    }
+  }
+
+  public void failed(String authorization, User user) {
+    if(enabled) {
+      failed.put(hash(authorization), user);
+    }
+  }
+
+  public long getNegativeHits() {
+    return negativeHits.sum();
+  }
+
+  public int negativeSize() {
+    return failed.size();
+  }
+
+  public long getHits() {
+    return cache.getHits();
+  }
+
+  public long getMisses() {
+    return cache.getMisses();
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Active health checks of the upstream registries, see {@link Registries}. Only used when more than one
+ * registry is configured. Any response below 500 counts as healthy.
+ * <pre>
+ * healthCheck:
+ *   interval: 5
+ *   timeout: 2
+ *   path: /v2/
+ *   unhealthyThreshold: 2
+ *   healthyThreshold: 2
+ * </pre>
+ */
+public class HealthCheckConfig {
+
+  static final HealthCheckConfig DEFAULT = new HealthCheckConfig();
+
+  // seconds
+  private long interval = 5;
+
+  // seconds
+  private long timeout = 2;
+
+  private String path = "/v2/";
+
+  // consecutive failed checks until a registry is taken out of rotation
+  private int unhealthyThreshold = 2;
+
+  // consecutive successful checks until a registry is put back into rotation
+  private int healthyThreshold = 2;
+
+  public long getInterval() {
+    return interval;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public int getUnhealthyThreshold() {
+    return unhealthyThreshold;
+  }
+
+  public int getHealthyThreshold() {
+    return healthyThreshold;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(interval, timeout, path, unhealthyThreshold, healthyThreshold);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    HealthCheckConfig other = (HealthCheckConfig)obj;
+    return (interval == other.interval) && (timeout == other.timeout) && Objects.equals(path, other.path)
+        && (unhealthyThreshold == other.unhealthyThreshold) && (healthyThreshold == other.healthyThreshold);
+  }
+
+  @Override
+  public String toString() {
+    return "HealthCheckConfig [interval=" + interval + ", timeout=" + timeout + ", path=" + path
+        + ", unhealthyThreshold=" + unhealthyThreshold + ", healthyThreshold=" + healthyThreshold + "]";
+  }
+
+}
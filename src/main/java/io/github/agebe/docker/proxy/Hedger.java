@@ -0,0 +1,301 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hedges small idempotent upstream requests (manifests, tag lists, the catalog and HEAD requests). If
+ * the first attempt hasn't answered within a percentile of the recent first attempt latencies, a second
+ * attempt is sent to another registry of the pool (or on another connection) and the first response
+ * wins, the other one is discarded. Second attempts are limited by a budget relative to the hedgeable
+ * requests so hedging can't multiply the load on a slow registry.
+ */
+public class Hedger {
+
+  private static final Logger log = LoggerFactory.getLogger(Hedger.class);
+
+  // recent first attempt latencies the delay is computed from
+  private static final int SAMPLES = 1024;
+
+  // the delay is recomputed every n samples
+  private static final int RECOMPUTE = 64;
+
+  private static final long CREDIT = 1000;
+
+  private static volatile Hedger instance;
+
+  private static HedgingConfig instanceConfig;
+
+  private static final LongAdder hedged = new LongAdder();
+
+  private static final LongAdder wins = new LongAdder();
+
+  private static final LongAdder exhausted = new LongAdder();
+
+  static {
+    Config.addListener(Hedger::configure);
+  }
+
+  public static interface Attempt {
+    HttpResponse<InputStream> send(HttpRequest request) throws Exception;
+  }
+
+  private final HedgingConfig config;
+
+  private final ExecutorService executor;
+
+  private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+
+  private final AtomicLong recorded = new AtomicLong();
+
+  private volatile long delayNanos;
+
+  // budget in thousandths of a second attempt
+  private final AtomicLong credits = new AtomicLong();
+
+  private final long creditPerRequest;
+
+  private Hedger(HedgingConfig config, boolean virtualThreads) {
+    super();
+    this.config = config;
+    this.delayNanos = TimeUnit.MILLISECONDS.toNanos(config.getMaxDelay());
+    this.creditPerRequest = Math.round(config.getBudget() * CREDIT / 100);
+    AtomicInteger threads = new AtomicInteger();
+    ExecutorService virtual = virtualThreads ? VirtualThreads.newPerTaskExecutor() : null;
+    this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "hedge-" + threads.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  private static synchronized void configure(Config config) {
+    HedgingConfig cfg = config.getHedging();
+    if(cfg.equals(instanceConfig)) {
+      return;
+    }
+    instanceConfig = cfg;
+    Hedger previous = instance;
+    instance = cfg.isEnabled() ? new Hedger(cfg, config.getUpstream().isVirtualThreads()) : null;
+    if(previous != null) {
+      // in flight attempts complete, idle threads go away. Requests that still hold the previous hedger
+      // fall back to an unhedged attempt, see send
+      previous.executor.shutdown();
+    }
+    log.info("hedging '{}'", cfg);
+  }
+
+  /**
+   * @return the hedger or {@code null} if disabled
+   */
+  public static Hedger get() {
+    return instance;
+  }
+
+  /**
+   * @return {@code true} for GET and HEAD requests without a body of manifests, tag lists, the catalog
+   * and HEAD requests in general
+   */
+  public static boolean isHedgeable(HttpRequest request) {
+    if(request.bodyPublisher().map(p -> p.contentLength() != 0).orElse(false)) {
+      return false;
+    }
+    String path = request.uri().getPath();
+    if("HEAD".equals(request.method())) {
+      return true;
+    }
+    return "GET".equals(request.method())
+        && (path.endsWith("/tags/list") || path.endsWith("/v2/_catalog")
+            || StringUtils.substringBeforeLast(path, "/").endsWith("/manifests"));
+  }
+
+  public HttpResponse<InputStream> send(HttpRequest request, Attempt attempt) throws Exception {
+    credit();
+    long start = System.nanoTime();
+    CompletableFuture<HttpResponse<InputStream>> first;
+    try {
+      first = submit(request, attempt);
+    } catch(RejectedExecutionException e) {
+      // replaced by a reload
+      return attempt.send(request);
+    }
+    first.whenComplete((r, e) -> {
+      if(e == null) {
+        record(System.nanoTime() - start);
+      }
+    });
+    try {
+      return first.get(delayNanos, TimeUnit.NANOSECONDS);
+    } catch(TimeoutException e) {
+      // hedge below
+    } catch(ExecutionException e) {
+      throw unwrap(e);
+    }
+    if(!acquire()) {
+      exhausted.increment();
+      return await(first);
+    }
+    CompletableFuture<HttpResponse<InputStream>> second;
+    try {
+      second = second(request, attempt);
+    } catch(RejectedExecutionException e) {
+      // replaced by a reload
+      return await(first);
+    }
+    hedged.increment();
+    CompletableFuture<HttpResponse<InputStream>> winner = new CompletableFuture<>();
+    AtomicInteger failed = new AtomicInteger();
+    first.whenComplete((r, e) -> complete(winner, failed, r, e, false));
+    second.whenComplete((r, e) -> complete(winner, failed, r, e, true));
+    return await(winner);
+  }
+
+  private CompletableFuture<HttpResponse<InputStream>> second(HttpRequest request, Attempt attempt) {
+    String url = request.uri().toString();
+    String registry = StringUtils.substringBefore(url, "/v2/");
+    Registries.Backend backend = Registries.get().alternate(registry);
+    if(backend == null) {
+      // the only registry of the pool, the client opens another connection
+      return submit(request, attempt);
+    }
+    HttpRequest second = HttpRequest.newBuilder(request, (name, value) -> true)
+        .uri(URI.create(backend.getUrl() + url.substring(registry.length())))
+        .build();
+    backend.begin();
+    CompletableFuture<HttpResponse<InputStream>> f;
+    try {
+      f = submit(second, attempt);
+    } catch(RejectedExecutionException e) {
+      backend.end();
+      throw e;
+    }
+    f.whenComplete((r, e) -> backend.end());
+    return f;
+  }
+
+  private static void complete(CompletableFuture<HttpResponse<InputStream>> winner, AtomicInteger failed,
+      HttpResponse<InputStream> r, Throwable e, boolean hedge) {
+    if(e != null) {
+      if(failed.incrementAndGet() == 2) {
+        winner.completeExceptionally(e);
+      }
+    } else if(winner.complete(r)) {
+      if(hedge) {
+        wins.increment();
+      }
+    } else {
+      // the other attempt won, release the connection
+      try {
+        r.body().close();
+      } catch(Exception ex) {
+        log.debug("failed to discard hedged response", ex);
+      }
+    }
+  }
+
+  private CompletableFuture<HttpResponse<InputStream>> submit(HttpRequest request, Attempt attempt) {
+    CompletableFuture<HttpResponse<InputStream>> f = new CompletableFuture<>();
+    executor.execute(() -> {
+      try {
+        f.complete(attempt.send(request));
+      } catch(Throwable t) {
+        f.completeExceptionally(t);
+      }
+    });
+    return f;
+  }
+
+  private static HttpResponse<InputStream> await(CompletableFuture<HttpResponse<InputStream>> f)
+      throws Exception {
+    try {
+      return f.get();
+    } catch(ExecutionException e) {
+      throw unwrap(e);
+    }
+  }
+
+  private static Exception unwrap(ExecutionException e) {
+    return e.getCause() instanceof Exception cause ? cause : e;
+  }
+
+  private void credit() {
+    long max = config.getBurst() * CREDIT;
+    credits.getAndUpdate(c -> Math.min(max, c + creditPerRequest));
+  }
+
+  private boolean acquire() {
+    for(;;) {
+      long c = credits.get();
+      if(c < CREDIT) {
+        return false;
+      }
+      if(credits.compareAndSet(c, c - CREDIT)) {
+        return true;
+      }
+    }
+  }
+
+  private void record(long nanos) {
+    long n = recorded.getAndIncrement();
+    samples.set((int)(n % SAMPLES), nanos);
+    if((n + 1) % RECOMPUTE == 0) {
+      int count = (int)Math.min(n + 1, SAMPLES);
+      long[] sorted = new long[count];
+      for(int i=0;i<count;i++) {
+        sorted[i] = samples.get(i);
+      }
+      Arrays.sort(sorted);
+      int index = (int)Math.min(count - 1, Math.ceil(config.getPercentile() / 100 * count) - 1);
+      delayNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(config.getMinDelay()),
+          Math.min(TimeUnit.MILLISECONDS.toNanos(config.getMaxDelay()), sorted[Math.max(0, index)]));
+    }
+  }
+
+  public long getDelayNanos() {
+    return delayNanos;
+  }
+
+  public static long getHedged() {
+    return hedged.sum();
+  }
+
+  public static long getWins() {
+    return wins.sum();
+  }
+
+  public static long getExhausted() {
+    return exhausted.sum();
+  }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for hedged upstream requests, see {@link Hedger}. Only used with the upstream client
+ * ({@code upstream.forward: true}).
+ * <pre>
+ * hedging:
+ *   enabled: true
+ *   percentile: 95
+ *   minDelay: 10
+ *   maxDelay: 500
+ *   budget: 5
+ *   burst: 10
+ * </pre>
+ */
+public class HedgingConfig {
+
+  static final HedgingConfig DEFAULT = new HedgingConfig();
+
+  private boolean enabled = false;
+
+  // latency percentile of the first attempts after which a second attempt is sent
+  private double percentile = 95;
+
+  // milliseconds, lower bound of the hedge delay
+  private long minDelay = 10;
+
+  // milliseconds, upper bound of the hedge delay and the delay until enough latencies are recorded
+  private long maxDelay = 500;
+
+  // second attempts in percent of the hedgeable requests
+  private double budget = 5;
+
+  // second attempts that can be sent in a row when the budget has been saved up
+  private int burst = 10;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public double getPercentile() {
+    return percentile;
+  }
+
+  public long getMinDelay() {
+    return minDelay;
+  }
+
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  public double getBudget() {
+    return budget;
+  }
+
+  public int getBurst() {
+    return burst;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, percentile, minDelay, maxDelay, budget, burst);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    HedgingConfig other = (HedgingConfig)obj;
+    return (enabled == other.enabled) && (percentile == other.percentile) && (minDelay == other.minDelay)
+        && (maxDelay == other.maxDelay) && (budget == other.budget) && (burst == other.burst);
+  }
+
+  @Override
+  public String toString() {
+    return "HedgingConfig [enabled=" + enabled + ", percentile=" + percentile + ", minDelay=" + minDelay
+        + ", maxDelay=" + maxDelay + ", budget=" + budget + ", burst=" + burst + "]";
+  }
+
+}
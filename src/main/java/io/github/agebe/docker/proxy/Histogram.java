@@ -0,0 +1,74 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency histogram with fixed buckets, recording is a bucket lookup and two
+ * {@link LongAdder} increments.
+ */
+public class Histogram {
+
+  // bucket upper bounds in seconds
+  static final double[] BOUNDS = {
+      0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60,
+  };
+
+  private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+  static {
+    for(int i=0;i<BOUNDS.length;i++) {
+      BOUNDS_NANOS[i] = (long)(BOUNDS[i] * TimeUnit.SECONDS.toNanos(1));
+    }
+  }
+
+  // last bucket is +Inf
+  private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+
+  private final LongAdder sumNanos = new LongAdder();
+
+  public Histogram() {
+    super();
+    for(int i=0;i<buckets.length;i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    int i = 0;
+    while((i < BOUNDS_NANOS.length) && (nanos > BOUNDS_NANOS[i])) {
+      i++;
+    }
+    buckets[i].increment();
+    sumNanos.add(nanos);
+  }
+
+  /**
+   * @return non-cumulative bucket counts, the last bucket is +Inf
+   */
+  public long[] getBuckets() {
+    long[] counts = new long[buckets.length];
+    for(int i=0;i<counts.length;i++) {
+      counts[i] = buckets[i].sum();
+    }
+    return counts;
+  }
+
+  public double getSumSeconds() {
+    return sumNanos.sum() / (double)TimeUnit.SECONDS.toNanos(1);
+  }
+
+}
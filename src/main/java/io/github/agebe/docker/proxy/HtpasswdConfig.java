@@ -0,0 +1,72 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An external htpasswd file with users that share a role and repositories, see {@link UserDirectory}.
+ * Only bcrypt hashes are supported (htpasswd -B).
+ * <pre>
+ * htpasswd:
+ *   - file: /etc/docker-proxy/ci.htpasswd
+ *     role: writer
+ *     repos:
+ *       - ci/*
+ * </pre>
+ */
+public class HtpasswdConfig {
+
+  private String file;
+
+  private Role role;
+
+  private List<String> repos;
+
+  public String getFile() {
+    return file;
+  }
+
+  public Role getRole() {
+    return role;
+  }
+
+  public List<String> getRepos() {
+    return repos;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(file, role, repos);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    HtpasswdConfig other = (HtpasswdConfig)obj;
+    return Objects.equals(file, other.file) && Objects.equals(role, other.role) && Objects.equals(repos, other.repos);
+  }
+
+  @Override
+  public String toString() {
+    return "HtpasswdConfig [file=" + file + ", role=" + role + ", repos=" + repos + "]";
+  }
+
+}
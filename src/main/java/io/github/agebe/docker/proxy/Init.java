@@ -14,12 +14,15 @@
 package io.github.agebe.docker.proxy;
 
 import java.io.File;
+import java.io.InputStream;
+import java.util.EnumSet;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import jakarta.servlet.DispatcherType;
 import jakarta.servlet.ServletContext;
 import jakarta.servlet.ServletContextEvent;
 import jakarta.servlet.ServletContextListener;
@@ -30,11 +33,17 @@ public class Init implements ServletContextListener {
 
   private static final Logger log = LoggerFactory.getLogger(Init.class);
 
+  private ConfigWatcher configWatcher;
+
   @Override
   public void contextInitialized(ServletContextEvent sce) {
     try {
       ServletContext ctx = sce.getServletContext();
-      Manifest manifest = new Manifest(ctx.getResourceAsStream("/META-INF/MANIFEST.MF"));
+      // ahead of the rproxy filter so the whole handler chain is measured
+      ctx.addFilter("metrics", new MetricsFilter())
+      .addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST, DispatcherType.ERROR), false, "/*");
+      InputStream in = ctx.getResourceAsStream("/META-INF/MANIFEST.MF");
+      Manifest manifest = in != null ? new Manifest(in) : new Manifest();
       Attributes attributes = manifest.getMainAttributes();
       log.info("starting {}-{}, git version {}, git hash '{}'",
           attributes.getValue("Implementation-Title"),
@@ -51,6 +60,13 @@ public class Init implements ServletContextListener {
           Config.setConfFile(f);
           Config config = Config.getConfiguration();
           log.info("configuration '{}'", config);
+          // start the registry health checks before the first request
+          Registries.get();
+          configWatcher = new ConfigWatcher(f);
+          configWatcher.start();
+          if(config.getWarmup().isEnabled()) {
+            Warmup.start(f, config.getWarmup());
+          }
         } else {
           log.warn("configuration file '{}' not found", f.getAbsolutePath());
         }
@@ -60,4 +76,13 @@ public class Init implements ServletContextListener {
     }
   }
 
+  @Override
+  public void contextDestroyed(ServletContextEvent sce) {
+    if(configWatcher != null) {
+      configWatcher.close();
+      configWatcher = null;
+    }
+    AuditLog.shutdown();
+  }
+
 }
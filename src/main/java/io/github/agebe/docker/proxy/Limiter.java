@@ -0,0 +1,109 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.agebe.docker.proxy.LimitsConfig.Limit;
+
+/**
+ * Enforces the {@link LimitsConfig} per user. The request rate is limited by a lock-free token bucket
+ * (in its virtual scheduling form, a single timestamp updated by compare and set), concurrent blob
+ * streams by a counter. State is kept per user name and survives configuration reloads, the limits are
+ * read from the current configuration.
+ */
+public class Limiter {
+
+  private static final Limiter instance = new Limiter();
+
+  private static class State {
+    // theoretical arrival time of the next request (nanos), the bucket is full if in the past
+    private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicInteger streams = new AtomicInteger();
+  }
+
+  private final Map<String, State> states = new ConcurrentHashMap<>();
+
+  public static Limiter get() {
+    return instance;
+  }
+
+  private State state(User user) {
+    return states.computeIfAbsent(user.getName(), k -> new State());
+  }
+
+  /**
+   * Take a token from the user's bucket.
+   * @return 0 if the request is allowed, otherwise the nanos until the next token is available
+   */
+  public long acquireRequest(User user) {
+    Limit limit = Config.getConfiguration().getLimits().getLimit(user);
+    if(limit.getRequestsPerSecond() <= 0) {
+      return 0;
+    }
+    long interval = (long)(TimeUnit.SECONDS.toNanos(1) / limit.getRequestsPerSecond());
+    long tolerance = interval * limit.getBurst();
+    AtomicLong tat = state(user).tat;
+    while(true) {
+      long now = System.nanoTime();
+      long current = tat.get();
+      long next = Math.max(current == Long.MIN_VALUE ? now : current, now) + interval;
+      long wait = next - now - tolerance;
+      if(wait > 0) {
+        return wait;
+      }
+      if(tat.compareAndSet(current, next)) {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * Acquire a concurrent stream slot, release it with {@link #releaseStream(User)}.
+   * @return {@code true} if the stream is allowed
+   */
+  public boolean acquireStream(User user) {
+    Limit limit = Config.getConfiguration().getLimits().getLimit(user);
+    AtomicInteger streams = state(user).streams;
+    if(limit.getStreams() <= 0) {
+      streams.incrementAndGet();
+      return true;
+    }
+    while(true) {
+      int current = streams.get();
+      if(current >= limit.getStreams()) {
+        return false;
+      }
+      if(streams.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  public void releaseStream(User user) {
+    state(user).streams.decrementAndGet();
+  }
+
+  /**
+   * Drop the state of all users, see {@link Warmup}.
+   */
+  void clear() {
+    states.clear();
+  }
+
+}
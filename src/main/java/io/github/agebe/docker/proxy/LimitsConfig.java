@@ -0,0 +1,131 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Per role and per user request rate and concurrent blob stream limits, see {@link Limiter}. User
+ * limits replace the limits of the user's role, 0 means unlimited.
+ * <pre>
+ * limits:
+ *   roles:
+ *     reader:
+ *       requestsPerSecond: 50
+ *       burst: 100
+ *       streams: 10
+ *   users:
+ *     ci-bot:
+ *       requestsPerSecond: 10
+ *       burst: 20
+ *       streams: 4
+ * </pre>
+ */
+public class LimitsConfig {
+
+  static final LimitsConfig DEFAULT = new LimitsConfig();
+
+  public static class Limit {
+
+    static final Limit UNLIMITED = new Limit();
+
+    private double requestsPerSecond = 0;
+
+    // requests allowed at once above the rate, defaults to one second worth of requests
+    private int burst = 0;
+
+    // concurrent blob downloads and uploads
+    private int streams = 0;
+
+    public double getRequestsPerSecond() {
+      return requestsPerSecond;
+    }
+
+    public int getBurst() {
+      return burst > 0 ? burst : Math.max(1, (int)Math.ceil(requestsPerSecond));
+    }
+
+    public int getStreams() {
+      return streams;
+    }
+
+    public boolean isUnlimited() {
+      return (requestsPerSecond <= 0) && (streams <= 0);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(requestsPerSecond, burst, streams);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(this == obj) {
+        return true;
+      }
+      if((obj == null) || (getClass() != obj.getClass())) {
+        return false;
+      }
+      Limit other = (Limit)obj;
+      return (requestsPerSecond == other.requestsPerSecond) && (burst == other.burst) && (streams == other.streams);
+    }
+
+    @Override
+    public String toString() {
+      return "Limit [requestsPerSecond=" + requestsPerSecond + ", burst=" + burst + ", streams=" + streams + "]";
+    }
+
+  }
+
+  // role name (lower case) -> limit
+  private Map<String, Limit> roles;
+
+  // user name -> limit
+  private Map<String, Limit> users;
+
+  /**
+   * @return the limit of the user, {@link Limit#UNLIMITED} if neither the user nor its role is limited
+   */
+  public Limit getLimit(User user) {
+    Limit limit = users != null ? users.get(user.getName()) : null;
+    if((limit == null) && (roles != null) && (user.getRole() != null)) {
+      limit = roles.get(user.getRole().name().toLowerCase());
+    }
+    return limit != null ? limit : Limit.UNLIMITED;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(roles, users);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    LimitsConfig other = (LimitsConfig)obj;
+    return Objects.equals(roles, other.roles) && Objects.equals(users, other.users);
+  }
+
+  @Override
+  public String toString() {
+    return "LimitsConfig [roles=" + roles + ", users=" + users + "]";
+  }
+
+}
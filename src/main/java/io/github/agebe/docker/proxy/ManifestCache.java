@@ -0,0 +1,285 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * In-memory manifest cache. Manifests are cached by repository and digest without expiry, bounded by a
+ * byte budget (least recently used eviction). Tags map to a digest for a short time after which they
+ * are revalidated with a conditional request to the registry. Tag entries are kept per accept header
+ * since the registry picks the manifest format based on it.
+ */
+public class ManifestCache {
+
+  private static final Logger log = LoggerFactory.getLogger(ManifestCache.class);
+
+  // the registry doesn't accept larger manifests either
+  private static final int MAX_MANIFEST_SIZE = 4 * 1024 * 1024;
+
+  private static final String[] RESPONSE_HEADERS = {
+      "Content-Type",
+      "Content-Length",
+      "Docker-Content-Digest",
+      "Docker-Distribution-Api-Version",
+      "Etag",
+      "Location",
+  };
+
+  // upper bound of cached repository:tag names
+  private static final int MAX_TAGS = 100_000;
+
+  private static volatile ManifestCache instance;
+
+  private static ManifestCacheConfig instanceConfig;
+
+  static {
+    Config.addListener(ManifestCache::configure);
+  }
+
+  private static record Manifest(String digest, String contentType, byte[] content) {};
+
+  private static record Tag(String digest, long validUntil) {};
+
+  private final ManifestCacheConfig config;
+
+  // repo@digest -> manifest, access ordered
+  private final LinkedHashMap<String, Manifest> manifests = new LinkedHashMap<>(256, 0.75f, true);
+
+  private long manifestBytes;
+
+  // repo:tag -> accept header -> tag
+  private final Map<String, Map<String, Tag>> tags = new ConcurrentHashMap<>();
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder revalidations = new LongAdder();
+
+  ManifestCache(ManifestCacheConfig config) {
+    super();
+    this.config = config;
+  }
+
+  private static synchronized void configure(Config config) {
+    ManifestCacheConfig cfg = config.getManifestCache();
+    if(cfg.equals(instanceConfig)) {
+      return;
+    }
+    instanceConfig = cfg;
+    log.info("manifest cache '{}'", cfg);
+    instance = cfg.isEnabled() ? new ManifestCache(cfg) : null;
+  }
+
+  /**
+   * @return the manifest cache or {@code null} if disabled
+   */
+  public static ManifestCache get() {
+    return instance;
+  }
+
+  private synchronized Manifest getManifest(String repo, String digest) {
+    return manifests.get(repo + "@" + digest);
+  }
+
+  private synchronized void putManifest(String repo, Manifest manifest) {
+    Manifest previous = manifests.put(repo + "@" + manifest.digest(), manifest);
+    manifestBytes += manifest.content().length - (previous != null ? previous.content().length : 0);
+    Iterator<Manifest> it = manifests.values().iterator();
+    while((manifestBytes > config.getMaxSize()) && it.hasNext()) {
+      manifestBytes -= it.next().content().length;
+      it.remove();
+    }
+  }
+
+  /**
+   * Drop cached data for a manifest reference (tag or digest), called on writes through the proxy.
+   */
+  public void invalidate(String repo, String reference) {
+    if(BlobCache.isDigest(reference)) {
+      synchronized(this) {
+        Manifest removed = manifests.remove(repo + "@" + reference);
+        if(removed != null) {
+          manifestBytes -= removed.content().length;
+        }
+      }
+      // tags pointing to the digest are revalidated once expired
+    } else {
+      tags.remove(repo + ":" + reference);
+    }
+  }
+
+  /**
+   * Answer a manifest GET or HEAD request from the cache, fetching and caching the manifest on a miss.
+   * @return {@code false} if the request has not been handled and should be forwarded instead
+   */
+  public boolean serve(String url, String repo, String reference, HttpServletRequest request,
+      HttpServletResponse response) throws Exception {
+    boolean head = "HEAD".equalsIgnoreCase(request.getMethod());
+    if(BlobCache.isDigest(reference)) {
+      Manifest manifest = getManifest(repo, reference);
+      if(manifest != null) {
+        hits.increment();
+        send(repo, manifest, head, request, response);
+        return true;
+      }
+      misses.increment();
+      return fetch(url, repo, null, null, head, request, response);
+    }
+    String accept = StringUtils.defaultString(request.getHeader("Accept"));
+    if(tags.size() > MAX_TAGS) {
+      tags.clear();
+    }
+    Map<String, Tag> byAccept = tags.computeIfAbsent(repo + ":" + reference, k -> new ConcurrentHashMap<>());
+    Tag tag = byAccept.get(accept);
+    Manifest manifest = tag != null ? getManifest(repo, tag.digest()) : null;
+    if(manifest == null) {
+      misses.increment();
+      return fetch(url, repo, byAccept, accept, head, request, response);
+    }
+    if(tag.validUntil() - System.nanoTime() >= 0) {
+      hits.increment();
+      send(repo, manifest, head, request, response);
+      return true;
+    }
+    // expired, revalidate
+    revalidations.increment();
+    Upstream upstream = Upstream.get();
+    HttpResponse<InputStream> r = upstream.send(upstream.request(url, request)
+        .setHeader("If-None-Match", "\"" + manifest.digest() + "\"")
+        .GET()
+        .build());
+    if(r.statusCode() == HttpServletResponse.SC_NOT_MODIFIED) {
+      r.body().close();
+      byAccept.put(accept, new Tag(manifest.digest(), validUntil()));
+      hits.increment();
+      send(repo, manifest, head, request, response);
+      return true;
+    } else {
+      byAccept.remove(accept);
+      return store(r, repo, byAccept, accept, head, response);
+    }
+  }
+
+  private long validUntil() {
+    return System.nanoTime() + (config.getTagTtl() * 1_000_000_000L);
+  }
+
+  private boolean fetch(String url, String repo, Map<String, Tag> byAccept, String accept, boolean head,
+      HttpServletRequest request, HttpServletResponse response) throws Exception {
+    Upstream upstream = Upstream.get();
+    // always GET so the manifest can be cached, HEAD clients only get the headers
+    return store(upstream.send(upstream.request(url, request).GET().build()),
+        repo, byAccept, accept, head, response);
+  }
+
+  private boolean store(HttpResponse<InputStream> r, String repo, Map<String, Tag> byAccept, String accept,
+      boolean head, HttpServletResponse response) throws Exception {
+    try(InputStream in = r.body()) {
+      long length = r.headers().firstValueAsLong("Content-Length").orElse(-1);
+      if((r.statusCode() != HttpServletResponse.SC_OK) || (length < 0) || (length > MAX_MANIFEST_SIZE)) {
+        passThrough(r, in, head, response);
+        return true;
+      }
+      byte[] content = in.readAllBytes();
+      String digest = r.headers().firstValue("Docker-Content-Digest").orElse(null);
+      if(!digest(content).equals(digest)) {
+        // e.g. signed schema 1 manifests, the digest is over the unsigned payload
+        log.debug("manifest digest '{}' doesn't match content, not caching", digest);
+        passThrough(r, new ByteArrayInputStream(content), head, response);
+        return true;
+      }
+      Manifest manifest = new Manifest(digest, r.headers().firstValue("Content-Type").orElse(null), content);
+      putManifest(repo, manifest);
+      if(byAccept != null) {
+        byAccept.put(accept, new Tag(digest, validUntil()));
+      }
+      send(repo, manifest, head, null, response);
+      return true;
+    }
+  }
+
+  private void passThrough(HttpResponse<InputStream> r, InputStream in, boolean head, HttpServletResponse response)
+      throws Exception {
+    response.setStatus(r.statusCode());
+    for(String header : RESPONSE_HEADERS) {
+      Upstream.copyHeaders(r, response, header);
+    }
+    if(!head) {
+      in.transferTo(response.getOutputStream());
+    }
+  }
+
+  private void send(String repo, Manifest manifest, boolean head, HttpServletRequest request,
+      HttpServletResponse response) throws Exception {
+    String etag = "\"" + manifest.digest() + "\"";
+    response.setHeader("Docker-Content-Digest", manifest.digest());
+    response.setHeader("Docker-Distribution-Api-Version", "registry/2.0");
+    response.setHeader("Etag", etag);
+    if(manifest.contentType() != null) {
+      response.setHeader("Content-Type", manifest.contentType());
+    }
+    if((request != null) && etag.equals(request.getHeader("If-None-Match"))) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentLength(manifest.content().length);
+    if(!head) {
+      response.getOutputStream().write(manifest.content());
+      Prefetcher prefetcher = Prefetcher.get();
+      if(prefetcher != null) {
+        prefetcher.manifest(repo, manifest.content());
+      }
+    }
+  }
+
+  private static String digest(byte[] content) throws Exception {
+    return "sha256:" + HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getRevalidations() {
+    return revalidations.sum();
+  }
+
+  public synchronized long getSize() {
+    return manifestBytes;
+  }
+
+}
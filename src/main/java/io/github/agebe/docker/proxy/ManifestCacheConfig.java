@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for the in-memory manifest cache, see {@link ManifestCache}.
+ * <pre>
+ * manifestCache:
+ *   enabled: true
+ *   maxSize: 67108864
+ *   tagTtl: 30
+ * </pre>
+ */
+public class ManifestCacheConfig {
+
+  static final ManifestCacheConfig DEFAULT = new ManifestCacheConfig();
+
+  private boolean enabled = false;
+
+  // bytes
+  private long maxSize = 64L * 1024 * 1024;
+
+  // seconds until a cached tag is revalidated with the registry
+  private long tagTtl = 30;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public long getTagTtl() {
+    return tagTtl;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, maxSize, tagTtl);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    ManifestCacheConfig other = (ManifestCacheConfig)obj;
+    return (enabled == other.enabled) && (maxSize == other.maxSize) && (tagTtl == other.tagTtl);
+  }
+
+  @Override
+  public String toString() {
+    return "ManifestCacheConfig [enabled=" + enabled + ", maxSize=" + maxSize + ", tagTtl=" + tagTtl + "]";
+  }
+
+}
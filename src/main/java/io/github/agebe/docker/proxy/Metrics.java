@@ -0,0 +1,349 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Process wide metrics, rendered in the prometheus text format. Counters and histograms are based on
+ * {@link LongAdder} so recording on the request path doesn't contend. Component statistics (caches,
+ * upstream client) are read when rendering.
+ */
+public class Metrics {
+
+  private static class Family {
+    private final String type;
+    private final String help;
+    // labels -> LongAdder, Histogram or Supplier<Number>
+    private final Map<String, Object> series = new ConcurrentHashMap<>();
+
+    private Family(String type, String help) {
+      this.type = type;
+      this.help = help;
+    }
+  }
+
+  private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+  private static final Role[] ROLES = Role.values();
+
+  // status codes with cached request counters, others are looked up by their labels
+  private static final int MIN_STATUS = 100;
+
+  private static final int MAX_STATUS = 599;
+
+  /**
+   * Request series of a terminal handler. The counters are cached by status and role so recording a request
+   * doesn't build label strings.
+   */
+  private static final class Requests {
+    private final String handler;
+    private final Histogram duration;
+    // by (status - MIN_STATUS) * (ROLES.length + 1) + role ordinal, the last slot for requests without a user
+    private final AtomicReferenceArray<LongAdder> counters =
+        new AtomicReferenceArray<>((MAX_STATUS - MIN_STATUS + 1) * (ROLES.length + 1));
+
+    private Requests(String handler) {
+      this.handler = handler;
+      this.duration = histogram("proxy_request_duration_seconds", "handler=\"%s\"".formatted(handler));
+    }
+
+    private LongAdder counter(int status, Role role) {
+      if((status < MIN_STATUS) || (status > MAX_STATUS)) {
+        return lookup(status, role);
+      }
+      int i = ((status - MIN_STATUS) * (ROLES.length + 1)) + (role != null ? role.ordinal() : ROLES.length);
+      LongAdder counter = counters.get(i);
+      if(counter == null) {
+        // racing threads get the same counter from the family
+        counter = lookup(status, role);
+        counters.set(i, counter);
+      }
+      return counter;
+    }
+
+    private LongAdder lookup(int status, Role role) {
+      return Metrics.counter("proxy_requests_total", "handler=\"%s\",status=\"%d\",role=\"%s\"".formatted(
+          handler, status, role != null ? role.name().toLowerCase() : "none"));
+    }
+  }
+
+  // by terminal handler
+  private static final Map<String, Requests> requests = new ConcurrentHashMap<>();
+
+  static {
+    describe("proxy_requests_total", "counter", "Requests by terminal handler, status and role.");
+    describe("proxy_request_duration_seconds", "histogram", "Request latency by terminal handler.");
+    describe("proxy_phase_duration_seconds", "histogram", "Latency per processing phase.");
+    describe("proxy_upstream_first_byte_seconds", "histogram", "Time to the upstream response headers.");
+    describe("proxy_bytes_total", "counter", "Bytes streamed by direction, in from clients, out to clients.");
+    describe("proxy_auth_total", "counter", "Authentication results.");
+    describe("proxy_throttled_total", "counter", "Requests rejected by the rate or stream limits.");
+    describe("proxy_tokens_issued_total", "counter", "Bearer tokens issued by the token endpoint.");
+    describe("proxy_registry_up", "gauge", "Health of the upstream registries, 1 if in rotation.");
+    describe("proxy_registry_outstanding", "gauge", "Outstanding requests per upstream registry.");
+    gauge("proxy_credential_cache_hits_total", "counter", "Verified credential cache hits.",
+        () -> PH1AuthenticationHandler.getCredentialCache().getHits());
+    gauge("proxy_credential_cache_misses_total", "counter", "Verified credential cache misses.",
+        () -> PH1AuthenticationHandler.getCredentialCache().getMisses());
+    gauge("proxy_credential_cache_size", "gauge", "Verified credential cache entries.",
+        () -> PH1AuthenticationHandler.getCredentialCache().size());
+    gauge("proxy_credential_cache_negative_hits_total", "counter", "Failed credentials rejected from the cache.",
+        () -> PH1AuthenticationHandler.getCredentialCache().getNegativeHits());
+    gauge("proxy_credential_cache_negative_size", "gauge", "Failed credential cache entries.",
+        () -> PH1AuthenticationHandler.getCredentialCache().negativeSize());
+    gauge("proxy_auth_backoff_entries", "gauge", "Source addresses and user names with recent failures.",
+        () -> AuthBackoff.get() != null ? AuthBackoff.get().size() : null);
+    gauge("proxy_blob_cache_hits_total", "counter", "Blob cache hits.",
+        () -> BlobCache.get() != null ? BlobCache.get().getHits() : null);
+    gauge("proxy_blob_cache_misses_total", "counter", "Blob cache misses.",
+        () -> BlobCache.get() != null ? BlobCache.get().getMisses() : null);
+    gauge("proxy_blob_cache_evictions_total", "counter", "Blobs evicted from the cache.",
+        () -> BlobCache.get() != null ? BlobCache.get().getEvictions() : null);
+    gauge("proxy_blob_cache_bytes", "gauge", "Size of the blob cache.",
+        () -> BlobCache.get() != null ? BlobCache.get().getSize() : null);
+    gauge("proxy_prefetch_queued_total", "counter", "Blobs and manifests queued for prefetch.",
+        Prefetcher::getQueued);
+    gauge("proxy_prefetch_fetched_total", "counter", "Blobs prefetched into the blob cache.",
+        Prefetcher::getFetched);
+    gauge("proxy_prefetch_skipped_total", "counter", "Prefetches skipped, blob already cached or in flight.",
+        Prefetcher::getSkipped);
+    gauge("proxy_prefetch_dropped_total", "counter", "Prefetches dropped because the queue was full.",
+        Prefetcher::getDropped);
+    gauge("proxy_prefetch_failed_total", "counter", "Failed prefetches.",
+        Prefetcher::getFailed);
+    gauge("proxy_prefetch_queue_size", "gauge", "Prefetches waiting for a worker.",
+        () -> Prefetcher.get() != null ? Prefetcher.get().getQueueSize() : null);
+    gauge("proxy_compressed_responses_total", "counter", "Responses built by the proxy sent gzip encoded.",
+        Compression::getCompressed);
+    gauge("proxy_hedged_requests_total", "counter", "Second attempts sent for slow upstream requests.",
+        Hedger::getHedged);
+    gauge("proxy_hedge_wins_total", "counter", "Second attempts that answered before the first attempt.",
+        Hedger::getWins);
+    gauge("proxy_hedge_budget_exhausted_total", "counter", "Slow upstream requests not hedged, budget exhausted.",
+        Hedger::getExhausted);
+    gauge("proxy_hedge_delay_seconds", "gauge", "Current delay until a second attempt is sent.",
+        () -> Hedger.get() != null ? Hedger.get().getDelayNanos() / 1e9 : null);
+    gauge("proxy_tags_cache_hits_total", "counter", "Tag list cache hits.",
+        () -> TagsCache.get() != null ? TagsCache.get().getHits() : null);
+    gauge("proxy_tags_cache_misses_total", "counter", "Tag list cache misses.",
+        () -> TagsCache.get() != null ? TagsCache.get().getMisses() : null);
+    gauge("proxy_tags_not_modified_total", "counter", "Tag list requests answered with 304 not modified.",
+        () -> TagsCache.get() != null ? TagsCache.get().getNotModified() : null);
+    gauge("proxy_manifest_cache_hits_total", "counter", "Manifest cache hits.",
+        () -> ManifestCache.get() != null ? ManifestCache.get().getHits() : null);
+    gauge("proxy_manifest_cache_misses_total", "counter", "Manifest cache misses.",
+        () -> ManifestCache.get() != null ? ManifestCache.get().getMisses() : null);
+    gauge("proxy_manifest_cache_revalidations_total", "counter", "Manifest cache tag revalidations.",
+        () -> ManifestCache.get() != null ? ManifestCache.get().getRevalidations() : null);
+    gauge("proxy_manifest_cache_bytes", "gauge", "Size of the manifest cache.",
+        () -> ManifestCache.get() != null ? ManifestCache.get().getSize() : null);
+    gauge("proxy_coalesced_leaders_total", "counter", "Upstream fetches shared with coalesced requests.",
+        Coalescer::getLeaders);
+    gauge("proxy_coalesced_requests_total", "counter", "Requests served from another request's upstream fetch.",
+        Coalescer::getCoalesced);
+    gauge("proxy_blob_mounts_total", "counter", "Blobs mounted from another repository instead of uploaded.",
+        BlobMounter::getMounts);
+    gauge("proxy_blob_mount_failures_total", "counter", "Failed blob mount attempts.",
+        BlobMounter::getFailures);
+    gauge("proxy_audit_events_total", "counter", "Audit events written.",
+        AuditLog::getWritten);
+    gauge("proxy_audit_dropped_total", "counter", "Audit events dropped because the buffer was full.",
+        AuditLog::getDropped);
+    gauge("proxy_users", "gauge", "Users in the user directory.",
+        () -> Config.getConfiguration().getUserDirectory().size());
+    gauge("proxy_upstream_requests_total", "counter", "Requests sent by the upstream client.",
+        Upstream::getRequests);
+    gauge("proxy_upstream_failures_total", "counter", "Failed requests of the upstream client.",
+        Upstream::getFailures);
+    gauge("proxy_upstream_saturated_total", "counter", "Requests rejected at the request limit of a registry.",
+        Upstream::getSaturated);
+    gauge("proxy_upstream_in_flight", "gauge", "Upstream requests in flight.",
+        Upstream::getInFlight);
+    gauge("proxy_upstream_max_requests_per_registry", "gauge", "Concurrent request limit of each registry.",
+        () -> Upstream.get().getMaxRequestsPerRegistry());
+    gauge("proxy_upstream_wait_seconds_total", "counter", "Time spent waiting at registry request limits.",
+        () -> Upstream.getWaitNanos() / 1e9);
+    gauge("proxy_upstream_max_wait_seconds", "gauge", "Longest wait at a registry request limit.",
+        () -> Upstream.getMaxWaitNanos() / 1e9);
+  }
+
+  public static void describe(String name, String type, String help) {
+    families.putIfAbsent(name, new Family(type, help));
+  }
+
+  /**
+   * Register a value that is read when the metrics are rendered, a {@code null} value is skipped.
+   */
+  public static void gauge(String name, String type, String help, Supplier<Number> supplier) {
+    describe(name, type, help);
+    families.get(name).series.put("", supplier);
+  }
+
+  /**
+   * Register a labeled value of a described family that is read when the metrics are rendered.
+   */
+  public static void gauge(String name, String labels, Supplier<Number> supplier) {
+    families.get(name).series.put(labels, supplier);
+  }
+
+  /**
+   * Remove a labeled series, e.g. of a registry that has been removed from the configuration.
+   */
+  public static void remove(String name, String labels) {
+    Family family = families.get(name);
+    if(family != null) {
+      family.series.remove(labels);
+    }
+  }
+
+  /**
+   * Start over after the {@link Warmup}: recorded series are dropped, counters read from the components
+   * count from zero again.
+   */
+  static void reset() {
+    requests.clear();
+    for(Family family : families.values()) {
+      family.series.values().removeIf(value -> !(value instanceof Supplier<?>));
+      if(family.type.equals("counter")) {
+        family.series.replaceAll((labels, value) -> since(value));
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Object since(Object value) {
+    Supplier<Number> supplier = (Supplier<Number>)value;
+    Number base = supplier.get();
+    if((base == null) || (base.doubleValue() == 0)) {
+      return supplier;
+    }
+    return (Supplier<Number>)() -> {
+      Number n = supplier.get();
+      if(n == null) {
+        return null;
+      } else if((n instanceof Double) || (base instanceof Double)) {
+        return n.doubleValue() - base.doubleValue();
+      } else {
+        return n.longValue() - base.longValue();
+      }
+    };
+  }
+
+  public static LongAdder counter(String name, String labels) {
+    return (LongAdder)families.get(name).series.computeIfAbsent(labels, k -> new LongAdder());
+  }
+
+  public static Histogram histogram(String name, String labels) {
+    return (Histogram)families.get(name).series.computeIfAbsent(labels, k -> new Histogram());
+  }
+
+  public static void request(String handler, int status, Role role, long nanos) {
+    String h = Objects.toString(handler, "none");
+    Requests series = requests.get(h);
+    if(series == null) {
+      series = requests.computeIfAbsent(h, Requests::new);
+    }
+    series.counter(status, role).increment();
+    series.duration.record(nanos);
+  }
+
+  public static void phase(String phase, long nanos) {
+    histogram("proxy_phase_duration_seconds", "phase=\"" + phase + "\"").record(nanos);
+  }
+
+  public static void upstreamFirstByte(long nanos) {
+    histogram("proxy_upstream_first_byte_seconds", "").record(nanos);
+  }
+
+  public static void bytes(long in, long out) {
+    if(in > 0) {
+      counter("proxy_bytes_total", "direction=\"in\"").add(in);
+    }
+    if(out > 0) {
+      counter("proxy_bytes_total", "direction=\"out\"").add(out);
+    }
+  }
+
+  public static void auth(boolean success) {
+    counter("proxy_auth_total", success ? "result=\"success\"" : "result=\"failure\"").increment();
+  }
+
+  public static void throttled(String reason) {
+    counter("proxy_throttled_total", "reason=\"" + reason + "\"").increment();
+  }
+
+  public static void tokenIssued() {
+    counter("proxy_tokens_issued_total", "").increment();
+  }
+
+  public static void render(Writer w) throws IOException {
+    StringBuilder samples = new StringBuilder();
+    for(Map.Entry<String, Family> e : families.entrySet()) {
+      String name = e.getKey();
+      Family family = e.getValue();
+      samples.setLength(0);
+      for(Map.Entry<String, Object> s : family.series.entrySet()) {
+        String labels = s.getKey();
+        Object value = s.getValue();
+        if(value instanceof LongAdder adder) {
+          sample(samples, name, labels, adder.sum());
+        } else if(value instanceof Histogram histogram) {
+          renderHistogram(samples, name, labels, histogram);
+        } else if(value instanceof Supplier<?> supplier) {
+          Object v = supplier.get();
+          if(v != null) {
+            sample(samples, name, labels, v);
+          }
+        }
+      }
+      if(samples.length() > 0) {
+        w.write("# HELP " + name + " " + family.help + "\n");
+        w.write("# TYPE " + name + " " + family.type + "\n");
+        w.append(samples);
+      }
+    }
+  }
+
+  private static void renderHistogram(StringBuilder w, String name, String labels, Histogram histogram) {
+    String prefix = labels.isEmpty() ? "" : labels + ",";
+    long[] buckets = histogram.getBuckets();
+    long cumulative = 0;
+    for(int i=0;i<buckets.length;i++) {
+      cumulative += buckets[i];
+      String le = i < Histogram.BOUNDS.length ? BigDecimal.valueOf(Histogram.BOUNDS[i]).toPlainString() : "+Inf";
+      sample(w, name + "_bucket", prefix + "le=\"" + le + "\"", cumulative);
+    }
+    sample(w, name + "_sum", labels, histogram.getSumSeconds());
+    sample(w, name + "_count", labels, cumulative);
+  }
+
+  private static void sample(StringBuilder w, String name, String labels, Object value) {
+    w.append(name);
+    if(!labels.isEmpty()) {
+      w.append('{').append(labels).append('}');
+    }
+    w.append(' ').append(value).append('\n');
+  }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+/**
+ * Settings for the metrics endpoint, see {@link Metrics}. The endpoint requires basic authentication of an
+ * admin user.
+ * <pre>
+ * metrics:
+ *   enabled: true
+ *   path: /metrics
+ * </pre>
+ */
+public class MetricsConfig {
+
+  static final MetricsConfig DEFAULT = new MetricsConfig();
+
+  private boolean enabled = false;
+
+  private String path = "/metrics";
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  @Override
+  public String toString() {
+    return "MetricsConfig [enabled=" + enabled + ", path=" + path + "]";
+  }
+
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.apache.commons.lang3.StringUtils;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Records request metrics and {@link AuditLog} events around the proxy handler chain and serves the
+ * metrics endpoint to admin users (basic authentication). Registered ahead of the rproxy filter by
+ * {@link Init}, for error dispatches too so error pages are counted in the outgoing bytes.
+ */
+public class MetricsFilter implements Filter {
+
+  /**
+   * Request attribute holding the simple class name of the last handler that processed the request.
+   */
+  public static final String HANDLER = "handler";
+
+  private static final byte[] READY = "ready\n".getBytes(StandardCharsets.UTF_8);
+
+  private static final byte[] WARMING_UP = "warming up\n".getBytes(StandardCharsets.UTF_8);
+
+  private static final String BASIC_CHALLENGE = "Basic realm=\"Registry Realm\"";
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest req = (HttpServletRequest)request;
+    HttpServletResponse resp = (HttpServletResponse)response;
+    if(req.getDispatcherType() == DispatcherType.ERROR) {
+      // error page of a request that has been recorded already
+      CountingResponse countingResponse = new CountingResponse(resp);
+      try {
+        chain.doFilter(request, countingResponse);
+      } finally {
+        countingResponse.flushWriter();
+        Metrics.bytes(0, countingResponse.count);
+      }
+      return;
+    }
+    if(Warmup.isReadyPath(req.getRequestURI())) {
+      boolean ready = Warmup.isReady();
+      resp.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      resp.setHeader("Content-Type", "text/plain; charset=utf-8");
+      resp.getOutputStream().write(ready ? READY : WARMING_UP);
+      return;
+    }
+    if(!Warmup.isReady() && !Warmup.isWarmupRequest(req)) {
+      // clients are kept away from the synthetic users and stub data until the warm-up is done
+      resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      resp.setHeader("Retry-After", "1");
+      resp.setHeader("Content-Type", "text/plain; charset=utf-8");
+      resp.getOutputStream().write(WARMING_UP);
+      return;
+    }
+    MetricsConfig cfg = Config.getConfiguration().getMetrics();
+    if(cfg.isEnabled() && cfg.getPath().equals(req.getRequestURI())) {
+      if(!isAdmin(req)) {
+        resp.setHeader("WWW-Authenticate", BASIC_CHALLENGE);
+        resp.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+        return;
+      }
+      resp.setStatus(HttpServletResponse.SC_OK);
+      resp.setHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      Writer w = new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8);
+      Metrics.render(w);
+      w.flush();
+      return;
+    }
+    long start = System.nanoTime();
+    CountingRequest countingRequest = new CountingRequest(req);
+    CountingResponse countingResponse = new CountingResponse(resp);
+    try {
+      chain.doFilter(countingRequest, countingResponse);
+    } finally {
+      countingResponse.flushWriter();
+      User user = (User)req.getAttribute("user");
+      long out = countingResponse.count;
+      long nanos = System.nanoTime() - start;
+      Metrics.request((String)req.getAttribute(HANDLER), resp.getStatus(), user != null ? user.getRole() : null,
+          nanos);
+      Metrics.bytes(countingRequest.count, out);
+      AuditLog audit = AuditLog.get();
+      if(audit != null) {
+        audit.add(AuditLog.event(req.getRemoteAddr(), user != null ? user.getName() : null, req.getMethod(),
+            req.getRequestURI(), resp.getStatus(), countingRequest.count, out, nanos));
+      }
+    }
+  }
+
+  /**
+   * @return {@code true} if the request carries basic credentials of an admin user
+   */
+  private static boolean isAdmin(HttpServletRequest req) {
+    String auth = req.getHeader("Authorization");
+    if((auth == null) || !auth.regionMatches(true, 0, "Basic ", 0, 6)) {
+      return false;
+    }
+    String credentials;
+    try {
+      credentials = new String(Base64.getDecoder().decode(auth.substring(6).trim()), StandardCharsets.UTF_8);
+    } catch(IllegalArgumentException e) {
+      return false;
+    }
+    User user = Config.getConfiguration().getUser(StringUtils.substringBefore(credentials, ":"));
+    return (user != null) && (user.getRole() == Role.ADMIN)
+        && (PH1AuthenticationHandler.check(auth, user, StringUtils.substringAfter(credentials, ":"),
+            req.getRemoteAddr()) == 0);
+  }
+
+  private static class CountingRequest extends HttpServletRequestWrapper {
+
+    private long count;
+
+    private ServletInputStream in;
+
+    private CountingRequest(HttpServletRequest request) {
+      super(request);
+    }
+
+    @Override
+    public ServletInputStream getInputStream() throws IOException {
+      if(in == null) {
+        ServletInputStream delegate = super.getInputStream();
+        in = new ServletInputStream() {
+          @Override
+          public int read() throws IOException {
+            int b = delegate.read();
+            if(b != -1) {
+              count++;
+            }
+            return b;
+          }
+
+          @Override
+          public int read(byte[] b, int off, int len) throws IOException {
+            int read = delegate.read(b, off, len);
+            if(read > 0) {
+              count += read;
+            }
+            return read;
+          }
+
+          @Override
+          public boolean isFinished() {
+            return delegate.isFinished();
+          }
+
+          @Override
+          public boolean isReady() {
+            return delegate.isReady();
+          }
+
+          @Override
+          public void setReadListener(ReadListener readListener) {
+            delegate.setReadListener(readListener);
+          }
+
+          @Override
+          public void close() throws IOException {
+            delegate.close();
+          }
+        };
+      }
+      return in;
+    }
+
+  }
+
+  private static class CountingResponse extends HttpServletResponseWrapper {
+
+    private long count;
+
+    private ServletOutputStream out;
+
+    private PrintWriter writer;
+
+    private CountingResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if(writer == null) {
+        writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+      }
+      return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+      flushWriter();
+      super.flushBuffer();
+    }
+
+    private void flushWriter() {
+      if(writer != null) {
+        writer.flush();
+      }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if(out == null) {
+        ServletOutputStream delegate = super.getOutputStream();
+        out = new ServletOutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            delegate.write(b);
+            count++;
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            count += len;
+          }
+
+          @Override
+          public void flush() throws IOException {
+            delegate.flush();
+          }
+
+          @Override
+          public void close() throws IOException {
+            delegate.close();
+          }
+
+          @Override
+          public boolean isReady() {
+            return delegate.isReady();
+          }
+
+          @Override
+          public void setWriteListener(WriteListener writeListener) {
+            delegate.setWriteListener(writeListener);
+          }
+        };
+      }
+      return out;
+    }
+
+  }
+
+}
@@ -27,42 +27,134 @@ public class PH1AuthenticationHandler extends PHAbstractHandler {
 
   private static final Logger log = LoggerFactory.getLogger(PH1AuthenticationHandler.class);
 
+  // request attribute with the authentication method, BASIC or BEARER
+  public static final String AUTH_METHOD = "authMethod";
+
+  public static final String BASIC = "basic";
+
+  public static final String BEARER = "bearer";
+
+  private static final CredentialCache credentialCache = new CredentialCache();
+
   @Override
-  public RequestStatus handle(HttpServletRequest request, HttpServletResponse response) {
+  protected RequestStatus process(HttpServletRequest request, HttpServletResponse response) {
     try {
       traceRequest(request);
       String auth = request.getHeader("authorization");
       if(StringUtils.isBlank(auth)) {
-        log.info("unauthorized request '{}', no authorization header", request.getRequestURI());
-        return unauthorized(response);
+        log.debug("unauthorized request '{}', no authorization header", request.getRequestURI());
+        return unauthorized(request, response);
       }
       String method = StringUtils.substringBefore(auth, " ");
-      String base64 = StringUtils.substringAfter(auth, " ");
-      if(!"basic".equalsIgnoreCase(method)) {
-        log.info("unauthorized request '{}', only basic authorization method supported, method '{}'",
+      String credentials = StringUtils.substringAfter(auth, " ");
+      if(BEARER.equalsIgnoreCase(method) && Tokens.get().isEnabled()) {
+        return bearer(request, response, credentials);
+      }
+      if(!BASIC.equalsIgnoreCase(method)) {
+        log.debug("unauthorized request '{}', authorization method not supported, method '{}'",
             request.getRequestURI(), method);
-        return unauthorized(response);
+        return unauthorized(request, response);
       }
-      String s = new String(Base64.getDecoder().decode(base64));
+      String s = new String(Base64.getDecoder().decode(credentials));
       String name = StringUtils.substringBefore(s, ":");
       String password = StringUtils.substringAfter(s, ":");
-      User user = Config.getConfiguration()
-          .getUsers()
-          .stream()
-          .filter(u -> u.getName().equals(name))
-          .findFirst()
-          .orElse(null);
-      if((user == null) || !(user.getPassword().test(password))) {
-        log.info("unauthorized request '{}', unknown user or wrong password, user '{}'", request.getRequestURI(), name);
-        return unauthorized(response);
-      } else {
-        log.info("user '{}' authenticated", user.getName());
-        request.setAttribute("user", user);
-        return RequestStatus.CONTINUE;
+      User user = user(name);
+      if(user == null) {
+        return rejected(request, response, name);
+      }
+      long wait = check(auth, user, password, request.getRemoteAddr());
+      if(wait > 0) {
+        log.debug("throttle request '{}', authentication backoff, user '{}', address '{}'", request.getRequestURI(),
+            name, request.getRemoteAddr());
+        Metrics.throttled("auth_backoff");
+        return tooManyRequests(response, "too many failed authentication attempts", wait);
       }
+      return wait == 0 ? authenticated(request, response, user, BASIC) : rejected(request, response, name);
     } catch(Exception e) {
       throw new DockerProxyException("failed to process authentication", e);
     }
   }
 
+  private RequestStatus bearer(HttpServletRequest request, HttpServletResponse response, String token) {
+    Tokens tokens = Tokens.get();
+    Tokens.Claims claims = tokens.verify(token);
+    User user = claims != null ? user(claims.sub()) : null;
+    if((claims == null) || !tokens.matches(claims, user)) {
+      log.debug("unauthorized request '{}', invalid or expired token", request.getRequestURI());
+      Metrics.auth(false);
+      return unauthorized(request, response);
+    }
+    return authenticated(request, response, user, BEARER);
+  }
+
+  private RequestStatus rejected(HttpServletRequest request, HttpServletResponse response, String name) {
+    log.debug("unauthorized request '{}', unknown user or wrong password, user '{}'", request.getRequestURI(), name);
+    Metrics.auth(false);
+    return unauthorized(request, response);
+  }
+
+  private RequestStatus authenticated(HttpServletRequest request, HttpServletResponse response, User user,
+      String method) {
+    log.debug("user '{}' authenticated, {}", user.getName(), method);
+    Metrics.auth(true);
+    request.setAttribute("user", user);
+    request.setAttribute(AUTH_METHOD, method);
+    long wait = Limiter.get().acquireRequest(user);
+    if(wait > 0) {
+      log.debug("throttle request '{}', user '{}' exceeds request rate", request.getRequestURI(), user.getName());
+      Metrics.throttled("rate");
+      return tooManyRequests(response, "request rate exceeded", wait);
+    }
+    return RequestStatus.CONTINUE;
+  }
+
+  private User user(String name) {
+    return Config.getConfiguration().getUser(name);
+  }
+
+  /**
+   * Check the password of basic credentials. Answered by the {@link CredentialCache} if possible, only
+   * requests that need the password check are subject to the {@link AuthBackoff} and counted, so sessions
+   * with verified credentials are not affected by someone guessing the password.
+   * @param auth the authorization header
+   * @return 0 if the password is correct, -1 if not, otherwise the nanos the source or user is backed off
+   */
+  static long check(String auth, User user, String password, String address) {
+    Password p = user.getPassword();
+    if(!p.isHashed()) {
+      // plain text compare is cheaper than the cache lookup
+      return p.test(password) ? 0 : -1;
+    }
+    if(credentialCache.isVerified(auth, user)) {
+      return 0;
+    }
+    if(credentialCache.isFailed(auth, user)) {
+      return -1;
+    }
+    AuthBackoff backoff = AuthBackoff.get();
+    if(backoff != null) {
+      long wait = backoff.blocked(address, user.getName());
+      if(wait > 0) {
+        return wait;
+      }
+    }
+    if(p.test(password)) {
+      credentialCache.verified(auth, user);
+      if(backoff != null) {
+        backoff.success(user.getName());
+      }
+      return 0;
+    } else {
+      credentialCache.failed(auth, user);
+      if(backoff != null) {
+        backoff.failure(address, user.getName());
+      }
+      return -1;
+    }
+  }
+
+  public static CredentialCache getCredentialCache() {
+    return credentialCache;
+  }
+
 }
@@ -26,29 +26,29 @@ public class PH2MethodHandler extends PHAbstractHandler {
   private static final Logger log = LoggerFactory.getLogger(PH2MethodHandler.class);
 
   @Override
-  public RequestStatus handle(HttpServletRequest request, HttpServletResponse response) {
+  protected RequestStatus process(HttpServletRequest request, HttpServletResponse response) {
     User user = (User)request.getAttribute("user");
     if(user == null) {
       log.warn("unauthorized request '{}', user is null", request.getRequestURI());
-      return unauthorized(response);
+      return unauthorized(request, response);
     }
     Role role = user.getRole();
     if(role == null) {
       log.warn("deny request '{}', role is null for user '{}'", request.getRequestURI(), user.getName());
-      return denied(response, "access denied");
+      return denied(response, RegistryErrors.DENIED);
     } else if(Role.READER.equals(role)) {
       String method = request.getMethod();
       if(StringUtils.equalsAnyIgnoreCase(method, "get", "head")) {
         return RequestStatus.CONTINUE;
       } else {
-        log.info("deny request '{}' '{}', user '{}'", method, request.getRequestURI(), user.getName());
-        return denied(response, "read-only access");
+        log.debug("deny request '{}' '{}', user '{}'", method, request.getRequestURI(), user.getName());
+        return denied(response, RegistryErrors.READ_ONLY);
       }
     } else if(Role.WRITER.equals(role)) {
       String method = request.getMethod();
       if(StringUtils.equalsIgnoreCase(method, "delete")) {
-        log.info("deny request '{}' '{}', user '{}'", method, request.getRequestURI(), user.getName());
-        return denied(response, "delete access denied");
+        log.debug("deny request '{}' '{}', user '{}'", method, request.getRequestURI(), user.getName());
+        return denied(response, RegistryErrors.DELETE_DENIED);
       } else {
         return RequestStatus.CONTINUE; 
       }
@@ -56,7 +56,7 @@ public class PH2MethodHandler extends PHAbstractHandler {
       return RequestStatus.CONTINUE;
     } else {
       log.warn("deny request '{}', unknown role '{}' for user '{}'", request.getRequestURI(), role, user.getName());
-      return denied(response, "access denied");
+      return denied(response, RegistryErrors.DENIED);
     }
   }
 
@@ -23,9 +23,14 @@ import jakarta.servlet.http.HttpServletResponse;
 public class PH3BaseHandler extends PHAbstractHandler {
 
   @Override
-  public RequestStatus handle(HttpServletRequest request, HttpServletResponse response) {
-    String url = Config.getConfiguration().getRegistry()+"/v2/";
-    return forwardStreamResult(url, request, response);
+  protected RequestStatus process(HttpServletRequest request, HttpServletResponse response) {
+    Registries.Backend backend = Registries.get().route(null);
+    backend.begin();
+    try {
+      return forward(backend.getUrl()+"/v2/", request, response);
+    } finally {
+      backend.end();
+    }
   }
 
 }
@@ -23,7 +23,7 @@ import jakarta.servlet.http.HttpServletResponse;
 public class PH3BaseRedirectHandler extends PHAbstractHandler {
 
   @Override
-  public RequestStatus handle(HttpServletRequest request, HttpServletResponse response) {
+  protected RequestStatus process(HttpServletRequest request, HttpServletResponse response) {
     try {
       response.sendRedirect("/v2/");
       return RequestStatus.COMPLETED;
@@ -13,12 +13,29 @@
  */
 package io.github.agebe.docker.proxy;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.URLEncoder;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import io.github.agebe.rproxy.MatchType;
 import io.github.agebe.rproxy.ProxyPath;
@@ -31,34 +48,213 @@ public class PH3CatalogHandler extends PHAbstractHandler {
 
   private static final Logger log = LoggerFactory.getLogger(PH3CatalogHandler.class);
 
+  private static final Gson gson = new Gson();
+
+  // upper bound for the page size requested by clients, keeps the page buffered in memory bounded
+  private static final int MAX_PAGE_SIZE = 10000;
+
+  // minimum number of entries to request per upstream page, filtered users may only see a few
+  private static final int MIN_UPSTREAM_PAGE_SIZE = 100;
+
+  private static record Page(String lastUpstream, boolean more) {};
+
   @Override
-  public RequestStatus handle(HttpServletRequest request, HttpServletResponse response) {
+  protected RequestStatus process(HttpServletRequest request, HttpServletResponse response) {
     User user = (User)request.getAttribute("user");
     if(user == null) {
       log.warn("unauthorized request '{}', user is null", request.getRequestURI());
-      return unauthorized(response);
+      return unauthorized(request, response);
     }
-    String url = Config.getConfiguration().getRegistry()+"/v2/_catalog";
+    // the catalog is served by the default pool, repositories routed to other registries are not listed
+    Registries.Backend backend = Registries.get().route(null);
+    backend.begin();
+    try {
+      return catalog(user, backend.getUrl(), request, response);
+    } finally {
+      backend.end();
+    }
+  }
+
+  private RequestStatus catalog(User user, String registry, HttpServletRequest request,
+      HttpServletResponse response) {
+    String url = registry+"/v2/_catalog";
     if((user.getRepos() == null) || user.getRepos().isEmpty()) {
-      return forwardStreamResult(url, request, response);
+      return forward(url, request, response);
     } else {
-      return forwardModifyResult(url, request, response, null, null, content -> userCatalog(user, content));
+      int n = NumberUtils.toInt(request.getParameter("n"), -1);
+      if(n < 0) {
+        return streamUserCatalog(user, Upstream.url(registry, request), request, response);
+      } else {
+        return pagedUserCatalog(user, registry, Math.min(n, MAX_PAGE_SIZE), request.getParameter("last"), request,
+            response);
+      }
     }
   }
 
-  private byte[] userCatalog(User user, byte[] content) {
-    if((content == null) || (content.length == 0)) {
-      return content;
+  /**
+   * Fill a page of n repositories the user can access, fetching upstream pages lazily starting after
+   * last. The page is emitted with a Link header that continues after the last returned repository.
+   */
+  private RequestStatus pagedUserCatalog(User user, String registry, int n, String last,
+      HttpServletRequest request, HttpServletResponse response) {
+    Upstream upstream = Upstream.get();
+    int upstreamPageSize = Math.max(n, MIN_UPSTREAM_PAGE_SIZE);
+    List<String> repositories = new ArrayList<>(Math.min(n, MIN_UPSTREAM_PAGE_SIZE));
+    String cursor = last;
+    boolean more = true;
+    try {
+      while(more && (repositories.size() < n)) {
+        String url = registry + "/v2/_catalog?n=" + upstreamPageSize
+            + (StringUtils.isEmpty(cursor) ? "" : "&last=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8));
+        HttpResponse<InputStream> upstreamResponse;
+        try {
+          upstreamResponse = upstream.send(upstream.request(url, request).GET().build());
+        } catch(Exception e) {
+          log.warn("failed to fetch catalog from '{}'", url, e);
+          return badGateway(response, e);
+        }
+        try(InputStream in = upstreamResponse.body()) {
+          if(upstreamResponse.statusCode() != HttpServletResponse.SC_OK) {
+            response.setStatus(upstreamResponse.statusCode());
+            Upstream.copyHeaders(upstreamResponse, response, "Content-Type", "Docker-Distribution-Api-Version");
+            in.transferTo(response.getOutputStream());
+            return RequestStatus.COMPLETED;
+          }
+          JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+          Page page = readPage(user, reader, repositories, n);
+          boolean upstreamMore = upstreamResponse.headers().firstValue("Link").isPresent();
+          if(repositories.size() >= n) {
+            more = page.more() || upstreamMore;
+          } else {
+            more = upstreamMore && (page.lastUpstream() != null);
+            cursor = page.lastUpstream();
+          }
+        }
+      }
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.setHeader("Content-Type", "application/json; charset=utf-8");
+      response.setHeader("Docker-Distribution-Api-Version", "registry/2.0");
+      if(more && !repositories.isEmpty()) {
+        String next = repositories.get(repositories.size()-1);
+        response.setHeader("Link", "</v2/_catalog?last=%s&n=%d>; rel=\"next\"".formatted(
+            URLEncoder.encode(next, StandardCharsets.UTF_8), n));
+      }
+      GZIPOutputStream gzip = Compression.negotiate(request, response, -1) ? Compression.gzip(response) : null;
+      OutputStream out = gzip != null ? gzip : response.getOutputStream();
+      JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      writer.beginObject();
+      writer.name("repositories");
+      writer.beginArray();
+      for(String repo : repositories) {
+        writer.value(repo);
+      }
+      writer.endArray();
+      writer.endObject();
+      writer.flush();
+      if(gzip != null) {
+        gzip.finish();
+      }
+      return RequestStatus.COMPLETED;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to page catalog", e);
     }
-    String json = new String(content);
-    log.trace(json);
-    Gson gson = new Gson();
-    Catalog catalog = gson.fromJson(json, Catalog.class);
-    List<String> repos = catalog.getRepositories();
-    if(repos == null) {
-      return content;
+  }
+
+  /**
+   * Read one upstream catalog page, adding the repositories the user can access to result until it holds
+   * n entries. The returned page holds the last upstream repository name (as cursor for the next page) and
+   * whether another accessible repository follows on this page after result has been filled.
+   */
+  private static Page readPage(User user, JsonReader reader, List<String> result, int n) throws IOException {
+    String lastUpstream = null;
+    boolean more = false;
+    reader.beginObject();
+    while(reader.hasNext()) {
+      String name = reader.nextName();
+      if("repositories".equals(name) && (reader.peek() == JsonToken.BEGIN_ARRAY)) {
+        reader.beginArray();
+        while(reader.hasNext()) {
+          String repo = reader.nextString();
+          if(result.size() < n) {
+            lastUpstream = repo;
+            if(user.matchesRepo(repo)) {
+              result.add(repo);
+            }
+          } else if(!more && user.matchesRepo(repo)) {
+            more = true;
+          }
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return new Page(lastUpstream, more);
+  }
+
+  private RequestStatus streamUserCatalog(User user, String url, HttpServletRequest request, HttpServletResponse response) {
+    Upstream upstream = Upstream.get();
+    HttpResponse<InputStream> upstreamResponse;
+    try {
+      upstreamResponse = upstream.send(upstream.request(url, request).GET().build());
+    } catch(Exception e) {
+      log.warn("failed to fetch catalog from '{}'", url, e);
+      return badGateway(response, e);
+    }
+    try(InputStream in = upstreamResponse.body()) {
+      response.setStatus(upstreamResponse.statusCode());
+      // upstream pages continue after the last upstream repository, which stays valid after filtering
+      Upstream.copyHeaders(upstreamResponse, response, "Content-Type", "Docker-Distribution-Api-Version", "Link");
+      if(upstreamResponse.statusCode() != HttpServletResponse.SC_OK) {
+        in.transferTo(response.getOutputStream());
+        return RequestStatus.COMPLETED;
+      }
+      response.setHeader("Content-Type", "application/json; charset=utf-8");
+      GZIPOutputStream gzip = Compression.negotiate(request, response, -1) ? Compression.gzip(response) : null;
+      OutputStream out = gzip != null ? gzip : response.getOutputStream();
+      JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+      userCatalog(user, reader, writer);
+      writer.flush();
+      if(gzip != null) {
+        gzip.finish();
+      }
+      return RequestStatus.COMPLETED;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to filter catalog", e);
+    }
+  }
+
+  /**
+   * Copy the catalog from reader to writer one token at a time, only keeping the repositories the user
+   * can access.
+   */
+  static void userCatalog(User user, JsonReader reader, JsonWriter writer) throws IOException {
+    reader.beginObject();
+    writer.beginObject();
+    while(reader.hasNext()) {
+      String name = reader.nextName();
+      writer.name(name);
+      if("repositories".equals(name) && (reader.peek() == JsonToken.BEGIN_ARRAY)) {
+        reader.beginArray();
+        writer.beginArray();
+        while(reader.hasNext()) {
+          String repo = reader.nextString();
+          if(user.matchesRepo(repo)) {
+            writer.value(repo);
+          } else {
+            log.trace("filter repository '{}'", repo);
+          }
+        }
+        reader.endArray();
+        writer.endArray();
+      } else {
+        gson.toJson(JsonParser.parseReader(reader), writer);
+      }
     }
-    return gson.toJson(new Catalog(repos.stream().filter(user::canAccessRepo).toList())).getBytes();
+    reader.endObject();
+    writer.endObject();
   }
 
 }
@@ -13,6 +13,9 @@
  */
 package io.github.agebe.docker.proxy;
 
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,28 +33,290 @@ public class PH3RepoAccessHandler extends PHAbstractHandler {
   private static final Logger log = LoggerFactory.getLogger(PH3RepoAccessHandler.class);
 
   @Override
-  public RequestStatus handle(HttpServletRequest request, HttpServletResponse response) {
+  protected RequestStatus process(HttpServletRequest request, HttpServletResponse response) {
     User user = (User)request.getAttribute("user");
     if(user == null) {
       log.warn("unauthorized request '{}', user is null", request.getRequestURI());
-      return unauthorized(response);
+      return unauthorized(request, response);
     }
     String repo = getRepoName(request.getRequestURI());
     log.debug("request '{}', repo '{}'", request.getRequestURI(), repo);
     if(StringUtils.isBlank(repo)) {
-      log.info("deny request, repository is blank, request uri '{}'", request.getRequestURI());
+      log.debug("deny request, repository is blank, request uri '{}'", request.getRequestURI());
       return denied(response, "access denied");
     }
     if(user.canAccessRepo(repo)) {
-      String url = Config.getConfiguration().getRegistry() + request.getRequestURI();
-      return forwardStreamResult(url, request, response);
+      // cross repository mount requested by the client, the user needs access to the source as well
+      String from = request.getParameter("from");
+      if((from != null) && (request.getParameter("mount") != null) && !user.canAccessRepo(from)) {
+        log.debug("deny mount, user '{}' has insufficient privilege to access repository '{}'", user.getName(), from);
+        return denied(response, "access denied, repository '%s'".formatted(from));
+      }
+      boolean stream = StringUtils.contains(request.getRequestURI(), "/blobs/");
+      if(stream && !Limiter.get().acquireStream(user)) {
+        log.debug("throttle request '{}', user '{}' exceeds concurrent streams", request.getRequestURI(),
+            user.getName());
+        Metrics.throttled("streams");
+        return tooManyRequests(response, "too many concurrent blob transfers", TimeUnit.SECONDS.toNanos(1));
+      }
+      Registries.Backend backend = Registries.get().route(repo);
+      backend.begin();
+      try {
+        BlobMounter mounter = BlobMounter.get();
+        RequestStatus status = access(backend.getUrl(), repo, user, mounter, request, response);
+        if(mounter != null) {
+          seen(mounter, repo, request, response);
+        }
+        return status;
+      } finally {
+        backend.end();
+        if(stream) {
+          Limiter.get().releaseStream(user);
+        }
+      }
     } else {
-      log.info("deny request, user '{}' has insufficient privilege to access repository '{}'", user.getName(), repo);
+      log.debug("deny request, user '{}' has insufficient privilege to access repository '{}'", user.getName(), repo);
       return denied(response, "access denied, repository '%s'".formatted(repo));
     }
   }
 
-  private String getRepoName(String uri) {
+  private RequestStatus access(String registry, String repo, User user, BlobMounter mounter,
+      HttpServletRequest request, HttpServletResponse response) {
+    String url = registry + request.getRequestURI();
+    if(mountMissingBlob(url, repo, user, mounter, request, response)
+        || serveFromBlobCache(url, repo, request, response)
+        || serveFromManifestCache(url, repo, request, response)
+        || serveTags(url, repo, request, response)
+        || coalesce(url, repo, request, response)
+        || prefetchManifest(url, repo, request, response)) {
+      return RequestStatus.COMPLETED;
+    }
+    String reference = manifestReference(request.getRequestURI());
+    if((reference != null) && !StringUtils.equalsAnyIgnoreCase(request.getMethod(), "get", "head")) {
+      // write through the proxy, drop cached tags before and after so concurrent reads don't keep the old ones
+      invalidate(repo, reference);
+      RequestStatus status = forward(url, request, response);
+      invalidate(repo, reference);
+      return status;
+    }
+    return forward(url, request, response);
+  }
+
+  private void invalidate(String repo, String reference) {
+    ManifestCache manifestCache = ManifestCache.get();
+    if(manifestCache != null) {
+      manifestCache.invalidate(repo, reference);
+    }
+    TagsCache tagsCache = TagsCache.get();
+    if(tagsCache != null) {
+      tagsCache.invalidate(repo);
+    }
+  }
+
+  /**
+   * Pushing clients check for existing blobs with a HEAD request first, a missing blob is mounted from
+   * another repository if possible so the client skips the upload.
+   */
+  private boolean mountMissingBlob(String url, String repo, User user, BlobMounter mounter,
+      HttpServletRequest request, HttpServletResponse response) {
+    if((mounter == null) || Role.READER.equals(user.getRole())
+        || !StringUtils.equalsIgnoreCase(request.getMethod(), "head")) {
+      return false;
+    }
+    String digest = blobDigest(request.getRequestURI());
+    if(digest == null) {
+      return false;
+    }
+    try {
+      mounter.head(url, repo, digest, user, request, response);
+      return true;
+    } catch(IOException e) {
+      if(response.isCommitted()) {
+        throw new DockerProxyException("failed to check blob '%s'".formatted(url), e);
+      }
+      log.warn("failed to check blob '{}'", url, e);
+      badGateway(response, e);
+      return true;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to check blob '%s'".formatted(url), e);
+    }
+  }
+
+  /**
+   * Remember the blobs the registry confirmed for the repository as mount sources.
+   */
+  private void seen(BlobMounter mounter, String repo, HttpServletRequest request, HttpServletResponse response) {
+    String method = request.getMethod();
+    int status = response.getStatus();
+    if(StringUtils.equalsAnyIgnoreCase(method, "get", "head") && (status == HttpServletResponse.SC_OK)) {
+      String digest = blobDigest(request.getRequestURI());
+      if(digest != null) {
+        mounter.seen(repo, digest);
+      }
+    } else if(StringUtils.equalsAnyIgnoreCase(method, "put", "post") && (status == HttpServletResponse.SC_CREATED)
+        && StringUtils.contains(request.getRequestURI(), "/blobs/uploads")) {
+      // completed upload or mount
+      String digest = StringUtils.defaultIfEmpty(request.getParameter("digest"), request.getParameter("mount"));
+      if(BlobCache.isDigest(digest)) {
+        mounter.seen(repo, digest);
+      }
+    }
+  }
+
+  /**
+   * @return the digest of a blob request or {@code null} if not a blob request
+   */
+  private String blobDigest(String uri) {
+    String digest = StringUtils.substringAfterLast(uri, "/");
+    if(!StringUtils.endsWith(StringUtils.substringBeforeLast(uri, "/"), "/blobs") || !BlobCache.isDigest(digest)) {
+      return null;
+    }
+    return digest;
+  }
+
+  private boolean serveFromBlobCache(String url, String repo, HttpServletRequest request, HttpServletResponse response) {
+    BlobCache cache = BlobCache.get();
+    if((cache == null) || !StringUtils.equalsAnyIgnoreCase(request.getMethod(), "get", "head")) {
+      return false;
+    }
+    String uri = request.getRequestURI();
+    String digest = StringUtils.substringAfterLast(uri, "/");
+    if(!StringUtils.endsWith(StringUtils.substringBeforeLast(uri, "/"), "/blobs") || !BlobCache.isDigest(digest)) {
+      return false;
+    }
+    try {
+      return cache.serve(url, repo, digest, request, response);
+    } catch(IOException e) {
+      if(response.isCommitted()) {
+        throw new DockerProxyException("failed to serve blob '%s' from cache".formatted(digest), e);
+      }
+      log.warn("failed to fetch blob '{}'", url, e);
+      badGateway(response, e);
+      return true;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to serve blob '%s' from cache".formatted(digest), e);
+    }
+  }
+
+  private boolean serveFromManifestCache(String url, String repo, HttpServletRequest request,
+      HttpServletResponse response) {
+    ManifestCache cache = ManifestCache.get();
+    if((cache == null) || !StringUtils.equalsAnyIgnoreCase(request.getMethod(), "get", "head")) {
+      return false;
+    }
+    String reference = manifestReference(request.getRequestURI());
+    if(reference == null) {
+      return false;
+    }
+    try {
+      return cache.serve(url, repo, reference, request, response);
+    } catch(IOException e) {
+      if(response.isCommitted()) {
+        throw new DockerProxyException("failed to serve manifest '%s' from cache".formatted(reference), e);
+      }
+      log.warn("failed to fetch manifest '{}'", url, e);
+      badGateway(response, e);
+      return true;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to serve manifest '%s' from cache".formatted(reference), e);
+    }
+  }
+
+  private boolean serveTags(String url, String repo, HttpServletRequest request, HttpServletResponse response) {
+    TagsCache cache = TagsCache.get();
+    if((cache == null) || !StringUtils.equalsAnyIgnoreCase(request.getMethod(), "get", "head")
+        || !StringUtils.endsWith(request.getRequestURI(), "/tags/list")) {
+      return false;
+    }
+    try {
+      cache.serve(url, repo, request, response);
+      return true;
+    } catch(IOException e) {
+      if(response.isCommitted()) {
+        throw new DockerProxyException("failed to serve tags of repository '%s'".formatted(repo), e);
+      }
+      log.warn("failed to fetch tags '{}'", url, e);
+      badGateway(response, e);
+      return true;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to serve tags of repository '%s'".formatted(repo), e);
+    }
+  }
+
+  /**
+   * Collapse identical in-flight blob and manifest downloads that are not handled by a cache.
+   */
+  private boolean coalesce(String url, String repo, HttpServletRequest request, HttpServletResponse response) {
+    Coalescer coalescer = Coalescer.get();
+    if((coalescer == null) || !StringUtils.equalsIgnoreCase(request.getMethod(), "get")
+        || (request.getHeader("Range") != null)) {
+      return false;
+    }
+    String uri = request.getRequestURI();
+    String parent = StringUtils.substringBeforeLast(uri, "/");
+    boolean blob = StringUtils.endsWith(parent, "/blobs") && BlobCache.isDigest(StringUtils.substringAfterLast(uri, "/"));
+    boolean manifest = StringUtils.endsWith(parent, "/manifests") && (ManifestCache.get() == null);
+    if(!blob && !manifest) {
+      return false;
+    }
+    // the registry picks the manifest format based on the accept header
+    // keyed by uri so requests routed to different registry replicas are coalesced as well
+    String key = uri + "|" + StringUtils.defaultString(request.getHeader("Accept"));
+    Prefetcher prefetcher = Prefetcher.get();
+    try {
+      return coalescer.fetch(key, url, request, response,
+          (manifest && (prefetcher != null)) ? prefetcher.completion(repo) : null);
+    } catch(IOException e) {
+      if(response.isCommitted()) {
+        throw new DockerProxyException("failed to fetch '%s'".formatted(url), e);
+      }
+      log.warn("failed to fetch '{}'", url, e);
+      badGateway(response, e);
+      return true;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to fetch '%s'".formatted(url), e);
+    }
+  }
+
+  /**
+   * Manifest GET requests not handled by the manifest cache or the coalescer, the manifest is read to
+   * prefetch its blobs.
+   */
+  private boolean prefetchManifest(String url, String repo, HttpServletRequest request,
+      HttpServletResponse response) {
+    Prefetcher prefetcher = Prefetcher.get();
+    if((prefetcher == null) || (BlobCache.get() == null) || (ManifestCache.get() != null)
+        || !StringUtils.equalsIgnoreCase(request.getMethod(), "get")
+        || (manifestReference(request.getRequestURI()) == null)) {
+      return false;
+    }
+    try {
+      prefetcher.forward(url, repo, request, response);
+      return true;
+    } catch(IOException e) {
+      if(response.isCommitted()) {
+        throw new DockerProxyException("failed to fetch manifest '%s'".formatted(url), e);
+      }
+      log.warn("failed to fetch manifest '{}'", url, e);
+      badGateway(response, e);
+      return true;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to fetch manifest '%s'".formatted(url), e);
+    }
+  }
+
+  /**
+   * @return the tag or digest of a manifest request or {@code null} if not a manifest request
+   */
+  private String manifestReference(String uri) {
+    String reference = StringUtils.substringAfterLast(uri, "/");
+    if(StringUtils.isBlank(reference) || !StringUtils.endsWith(StringUtils.substringBeforeLast(uri, "/"), "/manifests")) {
+      return null;
+    }
+    return reference;
+  }
+
+  static String getRepoName(String uri) {
     String[] split = StringUtils.split(uri, '/');
     int endIdx = findEndIndex(split);
     if(endIdx == -1) {
@@ -60,7 +325,7 @@ public class PH3RepoAccessHandler extends PHAbstractHandler {
     return StringUtils.join(split, '/', 1, endIdx);
   }
 
-  private int findEndIndex(String[] split) {
+  private static int findEndIndex(String[] split) {
     for(int i=split.length-1;i>=0;i--) {
       String s = split[i];
       if(StringUtils.equalsAny(s, "tags", "blobs", "manifests")) {
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.time.Instant;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import io.github.agebe.rproxy.MatchType;
+import io.github.agebe.rproxy.ProxyPath;
+import io.github.agebe.rproxy.RequestStatus;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Token endpoint of the docker token authentication flow. The client has been authenticated with basic
+ * credentials in {@link PH1AuthenticationHandler}, the issued token grants the user's configured access,
+ * the requested scope is not narrowed down.
+ */
+@ProxyPath(value = "token", type = MatchType.EQUALS)
+public class PH3TokenHandler extends PHAbstractHandler {
+
+  private static final Logger log = LoggerFactory.getLogger(PH3TokenHandler.class);
+
+  private static final Gson gson = new GsonBuilder()
+      .disableHtmlEscaping()
+      .disableJdkUnsafe()
+      .create();
+
+  public static record TokenResponse(String token, String access_token, long expires_in, String issued_at) {};
+
+  @Override
+  protected RequestStatus process(HttpServletRequest request, HttpServletResponse response) {
+    try {
+      Tokens tokens = Tokens.get();
+      if(!tokens.isEnabled()) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        return RequestStatus.COMPLETED;
+      }
+      User user = (User)request.getAttribute("user");
+      if(user == null) {
+        log.warn("unauthorized request '{}', user is null", request.getRequestURI());
+        return unauthorized(request, response);
+      }
+      if(!PH1AuthenticationHandler.BASIC.equals(request.getAttribute(PH1AuthenticationHandler.AUTH_METHOD))) {
+        // a token can't be used to extend itself
+        log.debug("deny token request, user '{}' not authenticated with basic credentials", user.getName());
+        return denied(response, "basic authentication required");
+      }
+      if(!"GET".equalsIgnoreCase(request.getMethod())) {
+        response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+        return RequestStatus.COMPLETED;
+      }
+      String token = tokens.issue(user);
+      Metrics.tokenIssued();
+      log.debug("token issued for user '{}', scope '{}'", user.getName(), request.getParameter("scope"));
+      response.setHeader("Content-Type", "application/json; charset=utf-8");
+      response.setHeader("Cache-Control", "no-store");
+      response.getWriter().println(gson.toJson(new TokenResponse(token, token, tokens.getTtl(),
+          Instant.now().toString())));
+      return RequestStatus.COMPLETED;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to issue token", e);
+    }
+  }
+
+}
@@ -13,18 +13,16 @@
  */
 package io.github.agebe.docker.proxy;
 
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Enumeration;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
 import io.github.agebe.rproxy.AbstractHttpRequestHandler;
 import io.github.agebe.rproxy.RequestStatus;
 import jakarta.servlet.http.HttpServletRequest;
@@ -34,46 +32,136 @@ public abstract class PHAbstractHandler extends AbstractHttpRequestHandler {
 
   private static final Logger log = LoggerFactory.getLogger(PHAbstractHandler.class);
 
-  public static record DockerRegistryError(String code, String message, String detail) {};
-  public static record DockerRegistryErrors(List<DockerRegistryError> errors) {};
+  private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+  private static final String API_VERSION = "registry/2.0";
+
+  private static final String BASIC_CHALLENGE = "Basic realm=\"Registry Realm\"";
 
-  private Gson gson() {
-    return new GsonBuilder()
-        .disableHtmlEscaping()
-        .disableJdkUnsafe()
-        .serializeNulls()
-        .create();
+  private final Histogram phase = Metrics.histogram("proxy_phase_duration_seconds",
+      "phase=\"" + getClass().getSimpleName() + "\"");
+
+  @Override
+  public RequestStatus handle(HttpServletRequest request, HttpServletResponse response) {
+    request.setAttribute(MetricsFilter.HANDLER, getClass().getSimpleName());
+    long start = System.nanoTime();
+    try {
+      return process(request, response);
+    } finally {
+      phase.record(System.nanoTime() - start);
+    }
   }
 
-  protected RequestStatus unauthorized(HttpServletResponse response) {
+  protected abstract RequestStatus process(HttpServletRequest request, HttpServletResponse response);
+
+  /**
+   * Send the authentication challenge, a bearer challenge pointing to the token endpoint if token
+   * authentication is enabled (except for the token endpoint itself).
+   */
+  protected RequestStatus unauthorized(HttpServletRequest request, HttpServletResponse response) {
     try {
-      response.setHeader("Content-Type", "application/json; charset=utf-8");
-      response.setHeader("Docker-Distribution-Api-Version", "registry/2.0");
-      response.setHeader("WWW-Authenticate", "Basic realm=\"Registry Realm\"");
-      response.setHeader("X-Content-Type-Options", "nosniff");
-      response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-      response.getWriter().println(gson().toJson(new DockerRegistryErrors(
-          List.of(new DockerRegistryError("UNAUTHORIZED", "authentication required", null)))));
-      return RequestStatus.COMPLETED;
+      Tokens tokens = Tokens.get();
+      if(tokens.isEnabled() && !isTokenRequest(request)) {
+        response.setHeader("WWW-Authenticate", tokens.getChallenge());
+      } else {
+        response.setHeader("WWW-Authenticate", BASIC_CHALLENGE);
+      }
+      return error(response, HttpServletResponse.SC_UNAUTHORIZED, RegistryErrors.UNAUTHORIZED);
     } catch(Exception e) {
       throw new DockerProxyException("failed to send unauthorized", e);
     }
   }
 
+  private boolean isTokenRequest(HttpServletRequest request) {
+    return request.getRequestURI().equals(request.getContextPath() + "/token");
+  }
+
   protected RequestStatus denied(HttpServletResponse response, String message) {
+    return denied(response, "access denied".equals(message) ? RegistryErrors.DENIED : RegistryErrors.body("DENIED", message));
+  }
+
+  /**
+   * Send a pre-rendered registry DENIED error, see {@link RegistryErrors}.
+   */
+  protected RequestStatus denied(HttpServletResponse response, byte[] body) {
     try {
-      response.setHeader("Content-Type", "application/json; charset=utf-8");
-      response.setHeader("Docker-Distribution-Api-Version", "registry/2.0");
-      response.setHeader("X-Content-Type-Options", "nosniff");
-      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
-      response.getWriter().println(gson().toJson(new DockerRegistryErrors(
-          List.of(new DockerRegistryError("DENIED", message, null)))));
-      return RequestStatus.COMPLETED;
+      return error(response, HttpServletResponse.SC_FORBIDDEN, body);
     } catch(Exception e) {
       throw new DockerProxyException("failed to send denied", e);
     }
   }
 
+  /**
+   * Send a registry TOOMANYREQUESTS error.
+   * @param retryAfter nanos until the client should retry, rounded up to seconds
+   */
+  protected RequestStatus tooManyRequests(HttpServletResponse response, String message, long retryAfter) {
+    try {
+      long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(retryAfter + TimeUnit.SECONDS.toNanos(1) - 1));
+      response.setHeader("Retry-After", Long.toString(seconds));
+      return error(response, 429, RegistryErrors.body("TOOMANYREQUESTS", message));
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to send too many requests", e);
+    }
+  }
+
+  /**
+   * Write a rendered registry error straight to the output stream.
+   */
+  private static RequestStatus error(HttpServletResponse response, int status, byte[] body) throws IOException {
+    response.setHeader("Content-Type", CONTENT_TYPE);
+    response.setHeader("Docker-Distribution-Api-Version", API_VERSION);
+    response.setHeader("X-Content-Type-Options", "nosniff");
+    response.setStatus(status);
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
+    return RequestStatus.COMPLETED;
+  }
+
+  /**
+   * Forward the request to the registry, either through rproxy or the {@link Upstream} client if
+   * configured.
+   */
+  protected RequestStatus forward(String url, HttpServletRequest request, HttpServletResponse response) {
+    Upstream upstream = Upstream.get();
+    if(!upstream.isForward()) {
+      long start = System.nanoTime();
+      try {
+        return forwardStreamResult(url, request, response);
+      } finally {
+        Metrics.phase("upstream", System.nanoTime() - start);
+      }
+    }
+    long start = System.nanoTime();
+    try {
+      upstream.forward(url, request, response);
+      return RequestStatus.COMPLETED;
+    } catch(IOException e) {
+      if(response.isCommitted()) {
+        throw new DockerProxyException("failed to forward request to '%s'".formatted(url), e);
+      }
+      log.warn("failed to forward request to '{}'", url, e);
+      return badGateway(response, e);
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to forward request to '%s'".formatted(url), e);
+    } finally {
+      Metrics.phase("upstream", System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Answer a failed upstream request, 503 if the upstream client had no connection available, 502 otherwise.
+   */
+  protected RequestStatus badGateway(HttpServletResponse response, Exception cause) {
+    try {
+      response.sendError(cause instanceof UpstreamSaturatedException
+          ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : HttpServletResponse.SC_BAD_GATEWAY);
+      return RequestStatus.COMPLETED;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to send bad gateway", e);
+    }
+  }
+
   protected void traceRequest(HttpServletRequest req) {
     if(log.isTraceEnabled()) {
       log.trace("content length '{}'", req.getContentType());
@@ -13,6 +13,7 @@
  */
 package io.github.agebe.docker.proxy;
 
+import java.util.Objects;
 import java.util.function.Predicate;
 
 import org.apache.commons.lang3.StringUtils;
@@ -30,11 +31,25 @@ public class Password implements Predicate<String> {
     this.password = password;
   }
 
+  /**
+   * @return {@code true} if the password is stored as a (BCrypt) hash
+   */
+  public boolean isHashed() {
+    return StringUtils.startsWithAny(password, "$2a$", "$2y$", "$2b$");
+  }
+
+  /**
+   * @return the stored password or hash, e.g. to bind derived credentials to it
+   */
+  String stored() {
+    return password;
+  }
+
   @Override
   public boolean test(String entered) {
-    if(StringUtils.startsWithAny(password, "$2a$", "$2y$")) {
+    if(isHashed()) {
       // BCrypt
-      // org.mindrot:jbcrypt:0.4 can't handle 2y, replace with 2a
+      // org.mindrot:jbcrypt:0.4 can't handle 2y/2b, replace with 2a
       // java.lang.IllegalArgumentException: Invalid salt revision
       // create the password with e.g.: htpasswd -Bn user
       return BCrypt.checkpw(entered, "$2a$" + StringUtils.substring(password, 4));
@@ -44,6 +59,23 @@ public class Password implements Predicate<String> {
     }
   }
 
+  @Override
+  public int hashCode() {
+    return Objects.hash(password);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    Password other = (Password)obj;
+    return Objects.equals(password, other.password);
+  }
+
   @Override
   public String toString() {
     return "***";
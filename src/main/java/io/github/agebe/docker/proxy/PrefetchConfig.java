@@ -0,0 +1,96 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Settings for the manifest driven layer prefetch into the blob cache, see {@link Prefetcher}. Requires
+ * the blob cache. Manifest lists are only followed for the listed platforms.
+ * <pre>
+ * prefetch:
+ *   enabled: true
+ *   threads: 4
+ *   queueSize: 1000
+ *   bandwidth: 104857600
+ *   platforms:
+ *     - linux/amd64
+ * </pre>
+ */
+public class PrefetchConfig {
+
+  static final PrefetchConfig DEFAULT = new PrefetchConfig();
+
+  private boolean enabled = false;
+
+  private int threads = 4;
+
+  // queued blobs, further blobs are skipped
+  private int queueSize = 1000;
+
+  // bytes per second for all prefetches together, 0 for unlimited
+  private long bandwidth = 0;
+
+  // os/architecture[/variant] of manifest list entries to prefetch
+  private List<String> platforms;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getQueueSize() {
+    return queueSize;
+  }
+
+  public long getBandwidth() {
+    return bandwidth;
+  }
+
+  public List<String> getPlatforms() {
+    return platforms != null ? platforms : List.of();
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, threads, queueSize, bandwidth, platforms);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    PrefetchConfig other = (PrefetchConfig)obj;
+    return (enabled == other.enabled)
+        && (threads == other.threads)
+        && (queueSize == other.queueSize)
+        && (bandwidth == other.bandwidth)
+        && Objects.equals(platforms, other.platforms);
+  }
+
+  @Override
+  public String toString() {
+    return "PrefetchConfig [enabled=" + enabled + ", threads=" + threads + ", queueSize=" + queueSize
+        + ", bandwidth=" + bandwidth + ", platforms=" + platforms + "]";
+  }
+
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Warms the {@link BlobCache} with the layers of manifests clients fetch, clients usually request all
+ * of them right after the manifest. Digests are queued on a bounded pool of background workers, blobs
+ * already cached or in flight are skipped, all prefetches share a bandwidth budget. Client requests for
+ * a blob that is being prefetched follow the prefetch instead of fetching it again, the prefetch is no
+ * longer throttled once a client follows it. Manifest lists are
+ * followed for the configured platforms only.
+ */
+public class Prefetcher {
+
+  private static final Logger log = LoggerFactory.getLogger(Prefetcher.class);
+
+  // larger manifests are forwarded without being parsed
+  private static final int MAX_MANIFEST_SIZE = 4 * 1024 * 1024;
+
+  private static final String MANIFEST_ACCEPT = String.join(", ",
+      "application/vnd.docker.distribution.manifest.v2+json",
+      "application/vnd.oci.image.manifest.v1+json");
+
+  private static volatile Prefetcher instance;
+
+  private static PrefetchConfig instanceConfig;
+
+  private static final LongAdder queued = new LongAdder();
+
+  private static final LongAdder fetched = new LongAdder();
+
+  private static final LongAdder skipped = new LongAdder();
+
+  private static final LongAdder dropped = new LongAdder();
+
+  private static final LongAdder failed = new LongAdder();
+
+  static {
+    Config.addListener(Prefetcher::configure);
+  }
+
+  private final PrefetchConfig config;
+
+  private final ThreadPoolExecutor executor;
+
+  private final Bandwidth bandwidth;
+
+  // queued or running digests
+  private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+  private Prefetcher(PrefetchConfig config) {
+    super();
+    this.config = config;
+    AtomicInteger threadId = new AtomicInteger();
+    int threads = Math.max(1, config.getThreads());
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, config.getQueueSize())), r -> {
+          Thread t = new Thread(r, "prefetch-" + threadId.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+    this.executor.allowCoreThreadTimeOut(true);
+    this.bandwidth = config.getBandwidth() > 0 ? new Bandwidth(config.getBandwidth()) : null;
+  }
+
+  private static synchronized void configure(Config config) {
+    PrefetchConfig cfg = config.getPrefetch();
+    if(cfg.equals(instanceConfig)) {
+      return;
+    }
+    instanceConfig = cfg;
+    Prefetcher old = instance;
+    instance = cfg.isEnabled() ? new Prefetcher(cfg) : null;
+    if(old != null) {
+      // running prefetches complete, queued ones are dropped
+      old.executor.shutdown();
+      List<Runnable> queue = new ArrayList<>();
+      old.executor.getQueue().drainTo(queue);
+      dropped.add(queue.size());
+    }
+    log.info("prefetch '{}'", cfg);
+  }
+
+  /**
+   * @return the prefetcher or {@code null} if disabled
+   */
+  public static Prefetcher get() {
+    return instance;
+  }
+
+  /**
+   * Queue the blobs referenced by the manifest a client has fetched from the repository.
+   */
+  public void manifest(String repo, byte[] content) {
+    if(BlobCache.get() == null) {
+      return;
+    }
+    try {
+      JsonElement json = JsonParser.parseString(new String(content, StandardCharsets.UTF_8));
+      if(!json.isJsonObject()) {
+        return;
+      }
+      JsonObject manifest = json.getAsJsonObject();
+      if(manifest.has("layers")) {
+        if(manifest.has("config")) {
+          queueBlob(repo, digest(manifest.get("config")));
+        }
+        for(JsonElement layer : manifest.getAsJsonArray("layers")) {
+          queueBlob(repo, digest(layer));
+        }
+      } else if(manifest.has("manifests")) {
+        List<String> platforms = config.getPlatforms();
+        for(JsonElement entry : manifest.getAsJsonArray("manifests")) {
+          if(platforms.contains(platform(entry))) {
+            queue(repo, digest(entry), () -> fetchManifest(repo, digest(entry)));
+          }
+        }
+      }
+    } catch(Exception e) {
+      log.debug("failed to parse manifest of repository '{}'", repo, e);
+    }
+  }
+
+  private static String digest(JsonElement descriptor) {
+    JsonElement digest = descriptor.isJsonObject() ? descriptor.getAsJsonObject().get("digest") : null;
+    return (digest != null) && digest.isJsonPrimitive() ? digest.getAsString() : null;
+  }
+
+  private static String platform(JsonElement descriptor) {
+    JsonElement platform = descriptor.isJsonObject() ? descriptor.getAsJsonObject().get("platform") : null;
+    if((platform == null) || !platform.isJsonObject()) {
+      return null;
+    }
+    JsonObject p = platform.getAsJsonObject();
+    String s = string(p, "os") + "/" + string(p, "architecture");
+    String variant = string(p, "variant");
+    return variant != null ? s + "/" + variant : s;
+  }
+
+  private static String string(JsonObject o, String name) {
+    JsonElement e = o.get(name);
+    return (e != null) && e.isJsonPrimitive() ? e.getAsString() : null;
+  }
+
+  private void queueBlob(String repo, String digest) {
+    BlobCache cache = BlobCache.get();
+    if((cache == null) || !BlobCache.isDigest(digest)) {
+      return;
+    }
+    if(cache.contains(digest)) {
+      skipped.increment();
+      return;
+    }
+    queue(repo, digest, () -> fetchBlob(repo, digest));
+  }
+
+  private void queue(String repo, String digest, Runnable task) {
+    if(!BlobCache.isDigest(digest) || !inFlight.add(digest)) {
+      return;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          task.run();
+        } finally {
+          inFlight.remove(digest);
+        }
+      });
+      queued.increment();
+    } catch(RejectedExecutionException e) {
+      inFlight.remove(digest);
+      dropped.increment();
+    }
+  }
+
+  private void fetchBlob(String repo, String digest) {
+    BlobCache cache = BlobCache.get();
+    if(cache == null) {
+      return;
+    }
+    Registries.Backend backend = Registries.get().route(repo);
+    String url = backend.getUrl() + "/v2/" + repo + "/blobs/" + digest;
+    backend.begin();
+    try {
+      if(cache.prefetch(url, repo, digest, bandwidth)) {
+        fetched.increment();
+        log.debug("prefetched blob '{}' of repository '{}'", digest, repo);
+      } else {
+        skipped.increment();
+      }
+    } catch(Exception e) {
+      failed.increment();
+      log.debug("failed to prefetch blob '{}' of repository '{}'", digest, repo, e);
+    } finally {
+      backend.end();
+    }
+  }
+
+  private void fetchManifest(String repo, String digest) {
+    Registries.Backend backend = Registries.get().route(repo);
+    String url = backend.getUrl() + "/v2/" + repo + "/manifests/" + digest;
+    backend.begin();
+    try {
+      Upstream upstream = Upstream.get();
+      HttpResponse<InputStream> r = upstream.send(upstream.request(url)
+          .header("Accept", MANIFEST_ACCEPT)
+          .GET()
+          .build());
+      try(InputStream in = r.body()) {
+        if(r.statusCode() == HttpServletResponse.SC_OK) {
+          manifest(repo, in.readNBytes(MAX_MANIFEST_SIZE));
+        }
+      }
+    } catch(Exception e) {
+      failed.increment();
+      log.debug("failed to prefetch manifest '{}' of repository '{}'", digest, repo, e);
+    } finally {
+      backend.end();
+    }
+  }
+
+  /**
+   * Forward a manifest GET request that isn't handled by the manifest cache and queue its blobs.
+   */
+  public void forward(String url, String repo, HttpServletRequest request, HttpServletResponse response)
+      throws Exception {
+    Upstream upstream = Upstream.get();
+    HttpResponse<InputStream> r = upstream.send(upstream.request(url, request).GET().build());
+    long length = r.headers().firstValueAsLong("Content-Length").orElse(-1);
+    if((r.statusCode() != HttpServletResponse.SC_OK) || (length < 0) || (length > MAX_MANIFEST_SIZE)) {
+      Upstream.relay(r, response, true);
+      return;
+    }
+    byte[] content;
+    try(InputStream in = r.body()) {
+      content = in.readAllBytes();
+    }
+    Upstream.relayHeaders(r, response);
+    response.getOutputStream().write(content);
+    manifest(repo, content);
+  }
+
+  /**
+   * @return completion for a coalesced manifest fetch that queues the blobs of the spooled manifest
+   */
+  public Coalescer.Completion completion(String repo) {
+    return flight -> {
+      if(flight.getSize() <= MAX_MANIFEST_SIZE) {
+        manifest(repo, Files.readAllBytes(flight.getSpool()));
+      }
+    };
+  }
+
+  public static long getQueued() {
+    return queued.sum();
+  }
+
+  public static long getFetched() {
+    return fetched.sum();
+  }
+
+  public static long getSkipped() {
+    return skipped.sum();
+  }
+
+  public static long getDropped() {
+    return dropped.sum();
+  }
+
+  public static long getFailed() {
+    return failed.sum();
+  }
+
+  public int getQueueSize() {
+    return executor.getQueue().size();
+  }
+
+}
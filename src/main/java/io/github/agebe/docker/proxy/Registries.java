@@ -0,0 +1,298 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes requests to the upstream registries. Registries with repository globs serve the matching
+ * repositories, all others form the default pool. Within a pool the healthy registry with the fewest
+ * outstanding requests is picked, if no registry of the pool is healthy the request is sent anyway.
+ * Health and outstanding requests of a registry survive configuration reloads.
+ */
+public class Registries {
+
+  private static final Logger log = LoggerFactory.getLogger(Registries.class);
+
+  // by registry url
+  private static final Map<String, State> states = new ConcurrentHashMap<>();
+
+  private static volatile Registries instance = new Registries(List.of(), HealthCheckConfig.DEFAULT);
+
+  private static List<RegistryConfig> instanceRegistries;
+
+  private static HealthCheckConfig instanceHealthCheck;
+
+  static {
+    Config.addListener(Registries::configure);
+  }
+
+  private static class State {
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile boolean healthy = true;
+    // consecutive check results, only updated by health checks
+    private int successes;
+    private int failures;
+  }
+
+  /**
+   * An upstream registry, requests are wrapped in {@link #begin()} and {@link #end()}.
+   */
+  public static class Backend {
+
+    private final String url;
+
+    private final State state;
+
+    private Backend(String url, State state) {
+      super();
+      this.url = url;
+      this.state = state;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public void begin() {
+      state.outstanding.incrementAndGet();
+    }
+
+    public void end() {
+      state.outstanding.decrementAndGet();
+    }
+
+    public boolean isHealthy() {
+      return state.healthy;
+    }
+
+    public int getOutstanding() {
+      return state.outstanding.get();
+    }
+
+    @Override
+    public String toString() {
+      return "Backend [url=" + url + ", healthy=" + state.healthy + ", outstanding=" + state.outstanding + "]";
+    }
+
+  }
+
+  private static record Pool(RepoMatcher matcher, Backend[] backends) {};
+
+  private final List<Pool> pools = new ArrayList<>();
+
+  private final Backend[] defaults;
+
+  private final Backend[] all;
+
+  private final HealthCheckConfig healthCheck;
+
+  private final ScheduledExecutorService scheduler;
+
+  private final HttpClient client;
+
+  private Registries(List<RegistryConfig> registries, HealthCheckConfig healthCheck) {
+    super();
+    this.healthCheck = healthCheck;
+    Map<List<String>, List<Backend>> byRepos = new LinkedHashMap<>();
+    List<Backend> defaultPool = new ArrayList<>();
+    List<Backend> backends = new ArrayList<>();
+    for(RegistryConfig registry : registries) {
+      String url = StringUtils.removeEnd(registry.getUrl(), "/");
+      Backend backend = new Backend(url, states.computeIfAbsent(url, k -> new State()));
+      backends.add(backend);
+      if((registry.getRepos() == null) || registry.getRepos().isEmpty()) {
+        defaultPool.add(backend);
+      } else {
+        byRepos.computeIfAbsent(registry.getRepos(), k -> new ArrayList<>()).add(backend);
+      }
+    }
+    byRepos.forEach((repos, pool) -> pools.add(new Pool(new RepoMatcher(repos), pool.toArray(Backend[]::new))));
+    this.all = backends.isEmpty() ? new Backend[] {new Backend(null, new State())} : backends.toArray(Backend[]::new);
+    this.defaults = defaultPool.isEmpty() ? all : defaultPool.toArray(Backend[]::new);
+    if(backends.size() > 1) {
+      this.client = HttpClient.newBuilder()
+          .followRedirects(HttpClient.Redirect.NEVER)
+          .connectTimeout(Duration.ofSeconds(healthCheck.getTimeout()))
+          .build();
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "registry-health");
+        t.setDaemon(true);
+        return t;
+      });
+      scheduler.scheduleWithFixedDelay(this::check, 0, healthCheck.getInterval(), TimeUnit.SECONDS);
+    } else {
+      this.client = null;
+      this.scheduler = null;
+    }
+  }
+
+  private static synchronized void configure(Config config) {
+    List<RegistryConfig> registries = config.getRegistries();
+    HealthCheckConfig healthCheck = config.getHealthCheck();
+    if(registries.equals(instanceRegistries) && healthCheck.equals(instanceHealthCheck)) {
+      return;
+    }
+    instanceRegistries = registries;
+    instanceHealthCheck = healthCheck;
+    Registries previous = instance;
+    instance = new Registries(registries, healthCheck);
+    if(previous.scheduler != null) {
+      previous.scheduler.shutdownNow();
+    }
+    states.keySet().removeIf(url -> registries.stream()
+        .noneMatch(r -> url.equals(StringUtils.removeEnd(r.getUrl(), "/"))));
+    for(Backend backend : previous.all) {
+      if((backend.url != null) && !states.containsKey(backend.url)) {
+        Metrics.remove("proxy_registry_up", labels(backend));
+        Metrics.remove("proxy_registry_outstanding", labels(backend));
+      }
+    }
+    for(Backend backend : instance.all) {
+      if(backend.url != null) {
+        State state = backend.state;
+        Metrics.gauge("proxy_registry_up", labels(backend), () -> state.healthy ? 1 : 0);
+        Metrics.gauge("proxy_registry_outstanding", labels(backend), () -> state.outstanding.get());
+      }
+    }
+    log.info("registries '{}', health check '{}'", registries, healthCheck);
+  }
+
+  private static String labels(Backend backend) {
+    return "registry=\"%s\"".formatted(backend.url);
+  }
+
+  public static Registries get() {
+    return instance;
+  }
+
+  /**
+   * @param repo the repository of the request or {@code null} to route to the default pool
+   */
+  public Backend route(String repo) {
+    if(repo != null) {
+      for(Pool pool : pools) {
+        if(pool.matcher().matches(repo)) {
+          return choose(pool.backends());
+        }
+      }
+    }
+    return choose(defaults);
+  }
+
+  /**
+   * @param registry the url of the registry a request has been sent to
+   * @return another healthy registry of the same pool with the fewest outstanding requests or
+   * {@code null} if there is none
+   */
+  public Backend alternate(String registry) {
+    Backend[] pool = defaults;
+    for(Pool p : pools) {
+      if(Arrays.stream(p.backends()).anyMatch(b -> registry.equals(b.url))) {
+        pool = p.backends();
+        break;
+      }
+    }
+    Backend best = null;
+    for(Backend backend : pool) {
+      if(!registry.equals(backend.url) && backend.isHealthy()
+          && ((best == null) || (backend.getOutstanding() < best.getOutstanding()))) {
+        best = backend;
+      }
+    }
+    return best;
+  }
+
+  private static Backend choose(Backend[] backends) {
+    if(backends.length == 1) {
+      return backends[0];
+    }
+    // random start so registries with equal load share the requests
+    int start = ThreadLocalRandom.current().nextInt(backends.length);
+    Backend best = null;
+    Backend fallback = null;
+    for(int i=0;i<backends.length;i++) {
+      Backend backend = backends[(start + i) % backends.length];
+      if((fallback == null) || (backend.getOutstanding() < fallback.getOutstanding())) {
+        fallback = backend;
+      }
+      if(backend.isHealthy() && ((best == null) || (backend.getOutstanding() < best.getOutstanding()))) {
+        best = backend;
+      }
+    }
+    return best != null ? best : fallback;
+  }
+
+  private void check() {
+    for(Backend backend : all) {
+      try {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(backend.url + healthCheck.getPath()))
+            .timeout(Duration.ofSeconds(healthCheck.getTimeout()))
+            .GET()
+            .build();
+        client.sendAsync(request, BodyHandlers.discarding())
+        .whenComplete((r, e) -> result(backend, (e == null) && (r.statusCode() < 500)));
+      } catch(Exception e) {
+        // an exception would cancel the scheduled checks
+        log.warn("failed to check registry '{}'", backend.url, e);
+        result(backend, false);
+      }
+    }
+  }
+
+  private void result(Backend backend, boolean success) {
+    State state = backend.state;
+    synchronized(state) {
+      if(success) {
+        state.failures = 0;
+        state.successes++;
+        if(!state.healthy && (state.successes >= healthCheck.getHealthyThreshold())) {
+          state.healthy = true;
+          log.info("registry '{}' is healthy", backend.url);
+        }
+      } else {
+        state.successes = 0;
+        state.failures++;
+        if(state.healthy && (state.failures >= healthCheck.getUnhealthyThreshold())) {
+          state.healthy = false;
+          log.warn("registry '{}' is unhealthy, taken out of rotation", backend.url);
+        }
+      }
+    }
+  }
+
+  public List<Backend> getBackends() {
+    return List.of(all);
+  }
+
+}
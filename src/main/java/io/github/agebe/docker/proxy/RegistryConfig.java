@@ -0,0 +1,77 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An upstream registry replica, see {@link Registries}. Registries without repos form the default pool
+ * for all repositories not matched by another registry.
+ * <pre>
+ * registries:
+ *   - url: http://registry-a:5000
+ *   - url: http://registry-b:5000
+ *   - url: http://registry-ci:5000
+ *     repos:
+ *       - ci/*
+ * </pre>
+ */
+public class RegistryConfig {
+
+  private String url;
+
+  private List<String> repos;
+
+  public RegistryConfig() {
+    super();
+  }
+
+  public RegistryConfig(String url, List<String> repos) {
+    super();
+    this.url = url;
+    this.repos = repos;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public List<String> getRepos() {
+    return repos;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(url, repos);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    RegistryConfig other = (RegistryConfig)obj;
+    return Objects.equals(url, other.url) && Objects.equals(repos, other.repos);
+  }
+
+  @Override
+  public String toString() {
+    return "RegistryConfig [url=" + url + ", repos=" + repos + "]";
+  }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Registry error bodies ({@code {"errors":[{"code":..,"message":..,"detail":null}]}}) rendered without
+ * reflection, the common ones are rendered once.
+ */
+final class RegistryErrors {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private static final byte[] PREFIX = "{\"errors\":[{\"code\":\"".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] MESSAGE = "\",\"message\":\"".getBytes(StandardCharsets.US_ASCII);
+
+  private static final byte[] SUFFIX = "\",\"detail\":null}]}\n".getBytes(StandardCharsets.US_ASCII);
+
+  static final byte[] UNAUTHORIZED = body("UNAUTHORIZED", "authentication required");
+
+  static final byte[] DENIED = body("DENIED", "access denied");
+
+  static final byte[] READ_ONLY = body("DENIED", "read-only access");
+
+  static final byte[] DELETE_DENIED = body("DENIED", "delete access denied");
+
+  private RegistryErrors() {
+  }
+
+  static byte[] body(String code, String message) {
+    if(!isPlain(code) || !isPlain(message)) {
+      return escaped(code, message);
+    }
+    // printable ascii without quotes or backslashes, copied as is into a single array
+    byte[] body = new byte[PREFIX.length + code.length() + MESSAGE.length + message.length() + SUFFIX.length];
+    int pos = copy(PREFIX, body, 0);
+    pos = copy(code, body, pos);
+    pos = copy(MESSAGE, body, pos);
+    pos = copy(message, body, pos);
+    copy(SUFFIX, body, pos);
+    return body;
+  }
+
+  private static boolean isPlain(String s) {
+    for(int i=0;i<s.length();i++) {
+      char c = s.charAt(i);
+      if((c < 0x20) || (c > 0x7e) || (c == '"') || (c == '\\')) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int copy(byte[] from, byte[] to, int pos) {
+    System.arraycopy(from, 0, to, pos, from.length);
+    return pos + from.length;
+  }
+
+  private static int copy(String from, byte[] to, int pos) {
+    for(int i=0;i<from.length();i++) {
+      to[pos++] = (byte)from.charAt(i);
+    }
+    return pos;
+  }
+
+  private static byte[] escaped(String code, String message) {
+    StringBuilder json = new StringBuilder(64 + code.length() + message.length());
+    json.append("{\"errors\":[{\"code\":\"");
+    escape(json, code);
+    json.append("\",\"message\":\"");
+    escape(json, message);
+    json.append("\",\"detail\":null}]}\n");
+    return json.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Escape a JSON string value the way gson does with html escaping disabled.
+   */
+  private static void escape(StringBuilder json, String s) {
+    for(int i=0;i<s.length();i++) {
+      char c = s.charAt(i);
+      switch(c) {
+      case '"' -> json.append("\\\"");
+      case '\\' -> json.append("\\\\");
+      case '\t' -> json.append("\\t");
+      case '\b' -> json.append("\\b");
+      case '\n' -> json.append("\\n");
+      case '\r' -> json.append("\\r");
+      case '\f' -> json.append("\\f");
+      default -> {
+        if((c < 0x20) || (c == 0x2028) || (c == 0x2029)) {
+          json.append("\\u").append(HEX[(c >> 12) & 0xf]).append(HEX[(c >> 8) & 0xf])
+          .append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+        } else {
+          json.append(c);
+        }
+      }
+      }
+    }
+  }
+
+}
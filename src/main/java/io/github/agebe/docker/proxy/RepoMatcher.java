@@ -0,0 +1,118 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.hrakaroo.glob.GlobPattern;
+import com.hrakaroo.glob.MatchingEngine;
+
+/**
+ * Matches repository names against a list of glob patterns, compiled once. Literal patterns are looked
+ * up in a hash set, patterns of the form {@code prefix*} in a prefix trie, only the remaining patterns
+ * are matched one by one using the glob library.
+ */
+public class RepoMatcher {
+
+  private static class Node {
+    private final Map<Character, Node> children = new HashMap<>();
+    private boolean terminal;
+  }
+
+  private final boolean matchAll;
+
+  private final Set<String> literals = new HashSet<>();
+
+  private final Node prefixes = new Node();
+
+  private final List<MatchingEngine> globs = new ArrayList<>();
+
+  public RepoMatcher(List<String> patterns) {
+    super();
+    boolean all = false;
+    for(String pattern : patterns) {
+      if(pattern == null) {
+        continue;
+      }
+      if(!StringUtils.containsAny(pattern, '*', '?', '\\')) {
+        literals.add(pattern);
+      } else if(pattern.equals("*")) {
+        all = true;
+      } else if(pattern.endsWith("*")
+          && !StringUtils.containsAny(pattern.substring(0, pattern.length()-1), '*', '?', '\\')) {
+        addPrefix(pattern.substring(0, pattern.length()-1));
+      } else {
+        globs.add(GlobPattern.compile(pattern));
+      }
+    }
+    matchAll = all;
+  }
+
+  private void addPrefix(String prefix) {
+    Node node = prefixes;
+    for(int i=0;i<prefix.length();i++) {
+      node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+    }
+    node.terminal = true;
+  }
+
+  private boolean matchesPrefix(String repo) {
+    Node node = prefixes;
+    for(int i=0;;i++) {
+      if(node.terminal) {
+        return true;
+      }
+      if(i >= repo.length()) {
+        return false;
+      }
+      node = node.children.get(repo.charAt(i));
+      if(node == null) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return {@code true} if matching requires the (slower) glob engine for at least one pattern
+   */
+  public boolean hasGlobs() {
+    return !globs.isEmpty();
+  }
+
+  public boolean matches(String repo) {
+    if(matchAll) {
+      return true;
+    }
+    if(repo == null) {
+      return false;
+    }
+    if(literals.contains(repo) || matchesPrefix(repo)) {
+      return true;
+    }
+    for(MatchingEngine glob : globs) {
+      if(glob.matches(repo)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
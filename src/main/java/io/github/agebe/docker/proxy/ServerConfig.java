@@ -0,0 +1,146 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Http connector of the standalone distribution, see {@link Standalone}. Ignored when the proxy is deployed as
+ * a war into tomcat (configure the connector in server.xml there). Read once on startup, changes need a
+ * restart.
+ * <pre>
+ * server:
+ *   port: 8080
+ *   threads: 200
+ *   minSpareThreads: 10
+ *   maxConnections: 8192
+ *   acceptCount: 100
+ *   connectionTimeout: 20000
+ *   keepAliveTimeout: 20000
+ *   maxKeepAliveRequests: 100
+ *   bufferSize: 8192
+ *   socketBufferSize: -1
+ *   virtualThreads: false
+ * </pre>
+ */
+public class ServerConfig {
+
+  static final ServerConfig DEFAULT = new ServerConfig();
+
+  private int port = 8080;
+
+  // connector worker threads, ignored with virtual threads
+  private int threads = 200;
+
+  private int minSpareThreads = 10;
+
+  private int maxConnections = 8192;
+
+  // backlog of the server socket once maxConnections is reached
+  private int acceptCount = 100;
+
+  // milliseconds
+  private int connectionTimeout = 20000;
+
+  // milliseconds an idle keep-alive connection is kept open, -1 uses the connection timeout
+  private int keepAliveTimeout = 20000;
+
+  // requests per keep-alive connection, -1 unlimited, 1 disables keep-alive
+  private int maxKeepAliveRequests = 100;
+
+  // bytes, application read and write buffers of a connection and the response output buffer
+  private int bufferSize = 8192;
+
+  // bytes, socket receive and send buffers, -1 keeps the os default
+  private int socketBufferSize = -1;
+
+  // java 21+
+  private boolean virtualThreads = false;
+
+  public int getPort() {
+    return port;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getMinSpareThreads() {
+    return minSpareThreads;
+  }
+
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public int getAcceptCount() {
+    return acceptCount;
+  }
+
+  public int getConnectionTimeout() {
+    return connectionTimeout;
+  }
+
+  public int getKeepAliveTimeout() {
+    return keepAliveTimeout;
+  }
+
+  public int getMaxKeepAliveRequests() {
+    return maxKeepAliveRequests;
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public int getSocketBufferSize() {
+    return socketBufferSize;
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(port, threads, minSpareThreads, maxConnections, acceptCount, connectionTimeout,
+        keepAliveTimeout, maxKeepAliveRequests, bufferSize, socketBufferSize, virtualThreads);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    ServerConfig other = (ServerConfig)obj;
+    return (port == other.port) && (threads == other.threads) && (minSpareThreads == other.minSpareThreads)
+        && (maxConnections == other.maxConnections) && (acceptCount == other.acceptCount)
+        && (connectionTimeout == other.connectionTimeout) && (keepAliveTimeout == other.keepAliveTimeout)
+        && (maxKeepAliveRequests == other.maxKeepAliveRequests) && (bufferSize == other.bufferSize)
+        && (socketBufferSize == other.socketBufferSize) && (virtualThreads == other.virtualThreads);
+  }
+
+  @Override
+  public String toString() {
+    return "ServerConfig [port=" + port + ", threads=" + threads + ", minSpareThreads=" + minSpareThreads
+        + ", maxConnections=" + maxConnections + ", acceptCount=" + acceptCount + ", connectionTimeout="
+        + connectionTimeout + ", keepAliveTimeout=" + keepAliveTimeout + ", maxKeepAliveRequests="
+        + maxKeepAliveRequests + ", bufferSize=" + bufferSize + ", socketBufferSize=" + socketBufferSize
+        + ", virtualThreads=" + virtualThreads + "]";
+  }
+
+}
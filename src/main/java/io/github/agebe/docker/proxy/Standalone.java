@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.valves.RemoteIpValve;
+import org.apache.coyote.http11.Http11NioProtocol;
+import org.apache.tomcat.util.scan.StandardJarScanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Standalone distribution, runs the proxy in an embedded tomcat with a nio http connector instead of deploying
+ * the war into a tomcat installation. The servlet context is set up like the war: same web.xml and error pages
+ * (the webapp directory of the distribution), the {@link Init} listener and the rproxy filter initializer from
+ * the classpath, so requests pass the same handler chain. The connector is configured by the server section
+ * of the configuration ({@link ServerConfig}), there is no server.xml and no access log (see the metrics).
+ * <pre>
+ * DOCKER_PROXY_CONFIG=conf/config.yaml bin/docker-registry-auth-proxy
+ * </pre>
+ * The webapp directory is taken from the system property {@code proxy.webapp}, defaults to the webapp directory
+ * next to the lib directory of the distribution.
+ */
+public class Standalone {
+
+  private static final Logger log = LoggerFactory.getLogger(Standalone.class);
+
+  private final Tomcat tomcat;
+
+  private final Connector connector;
+
+  private Standalone(Tomcat tomcat, Connector connector) {
+    super();
+    this.tomcat = tomcat;
+    this.connector = connector;
+  }
+
+  /**
+   * Start the embedded server, returns once the connector accepts requests.
+   * @param webapp directory with WEB-INF/web.xml and the error pages
+   */
+  public static Standalone start(ServerConfig cfg, File webapp) throws Exception {
+    Path base = Files.createTempDirectory("docker-proxy");
+    base.toFile().deleteOnExit();
+    Tomcat tomcat = new Tomcat();
+    tomcat.setBaseDir(base.toString());
+    tomcat.getHost().setAppBase(base.toString());
+    tomcat.getHost().setAutoDeploy(false);
+    tomcat.getHost().getPipeline().addValve(new RemoteIpValve());
+    Connector connector = new Connector(Http11NioProtocol.class.getName());
+    connector.setPort(cfg.getPort());
+    connector.setMaxPostSize(-1);
+    connector.setProperty("maxThreads", Integer.toString(cfg.getThreads()));
+    connector.setProperty("minSpareThreads", Integer.toString(cfg.getMinSpareThreads()));
+    connector.setProperty("maxConnections", Integer.toString(cfg.getMaxConnections()));
+    connector.setProperty("acceptCount", Integer.toString(cfg.getAcceptCount()));
+    connector.setProperty("connectionTimeout", Integer.toString(cfg.getConnectionTimeout()));
+    connector.setProperty("keepAliveTimeout", Integer.toString(cfg.getKeepAliveTimeout()));
+    connector.setProperty("maxKeepAliveRequests", Integer.toString(cfg.getMaxKeepAliveRequests()));
+    connector.setProperty("useVirtualThreads", Boolean.toString(cfg.isVirtualThreads()));
+    connector.setProperty("socket.appReadBufSize", Integer.toString(cfg.getBufferSize()));
+    connector.setProperty("socket.appWriteBufSize", Integer.toString(cfg.getBufferSize()));
+    connector.setProperty("bufferSize", Integer.toString(cfg.getBufferSize()));
+    if(cfg.getSocketBufferSize() > 0) {
+      connector.setProperty("socket.rxBufSize", Integer.toString(cfg.getSocketBufferSize()));
+      connector.setProperty("socket.txBufSize", Integer.toString(cfg.getSocketBufferSize()));
+    }
+    tomcat.setConnector(connector);
+    // the default web.xml adds the jsp servlet, only the default servlet is needed for the error pages
+    tomcat.setAddDefaultWebXmlToWebapp(false);
+    Context ctx = tomcat.addWebapp("", webapp.getAbsolutePath());
+    Wrapper servlet = Tomcat.addServlet(ctx, "default", DefaultServlet.class.getName());
+    servlet.setLoadOnStartup(1);
+    ctx.addServletMappingDecoded("/", "default");
+    Tomcat.addDefaultMimeTypeMappings(ctx);
+    // the proxy classes and libraries are on the classpath, not in WEB-INF. Servlet container initializers
+    // (rproxy) are still found through the parent class loader, the listener is added here instead of
+    // scanning the classpath for annotations
+    ((StandardJarScanner)ctx.getJarScanner()).setScanClassPath(false);
+    ctx.addApplicationListener(Init.class.getName());
+    tomcat.start();
+    return new Standalone(tomcat, connector);
+  }
+
+  /**
+   * @return the local port of the connector, differs from the configured port if that is 0
+   */
+  public int getPort() {
+    return connector.getLocalPort();
+  }
+
+  public void stop() {
+    try {
+      tomcat.stop();
+      tomcat.destroy();
+    } catch(LifecycleException e) {
+      log.warn("failed to stop", e);
+    }
+  }
+
+  private static File webapp() throws URISyntaxException {
+    String dir = System.getProperty("proxy.webapp");
+    if(dir != null) {
+      return new File(dir);
+    }
+    // lib/docker-registry-auth-proxy.jar -> webapp
+    File jar = new File(Standalone.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    File webapp = new File(jar.getParentFile().getParentFile(), "webapp");
+    return webapp.isDirectory() ? webapp : new File("src/main/webapp");
+  }
+
+  public static void main(String[] args) throws Exception {
+    ServerConfig cfg = ServerConfig.DEFAULT;
+    String conf = System.getenv("DOCKER_PROXY_CONFIG");
+    if((conf != null) && new File(conf).exists()) {
+      // only for the connector, Init loads and watches the configuration
+      cfg = Config.parse(new File(conf)).getServer();
+    }
+    log.info("server '{}'", cfg);
+    Standalone server = start(cfg, webapp());
+    Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "shutdown"));
+    log.info("started on port {} in {} ms (jvm uptime)", server.getPort(),
+        ManagementFactory.getRuntimeMXBean().getUptime());
+    server.tomcat.getServer().await();
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URLEncoder;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Answers tag list requests from a short lived in-memory copy of the repository's complete tag list.
+ * Pagination ({@code n} and {@code last}) is done by the proxy, responses carry an ETag so pollers get a
+ * 304 while the list is unchanged. The complete list is kept gzip encoded as well if compression is
+ * enabled. Manifest writes through the proxy drop the cached list.
+ */
+public class TagsCache {
+
+  private static final Logger log = LoggerFactory.getLogger(TagsCache.class);
+
+  // upper bound of upstream pages followed for a single tag list
+  private static final int MAX_UPSTREAM_PAGES = 1000;
+
+  private static volatile TagsCache instance;
+
+  private static TagsCacheConfig instanceConfig;
+
+  static {
+    Config.addListener(TagsCache::configure);
+  }
+
+  // gzip is the precompressed body, null if compression is disabled or the body is small
+  private static record Tags(List<String> tags, byte[] body, byte[] gzip, String etag) {};
+
+  private final TtlCache<String, Tags> cache;
+
+  private final LongAdder notModified = new LongAdder();
+
+  private TagsCache(TagsCacheConfig config) {
+    super();
+    this.cache = new TtlCache<>(config.getMaxRepos(), Duration.ofSeconds(config.getTtl()));
+  }
+
+  private static synchronized void configure(Config config) {
+    TagsCacheConfig cfg = config.getTagsCache();
+    if(cfg.equals(instanceConfig)) {
+      return;
+    }
+    instanceConfig = cfg;
+    instance = cfg.isEnabled() ? new TagsCache(cfg) : null;
+    log.info("tags cache '{}'", cfg);
+  }
+
+  /**
+   * @return the tags cache or {@code null} if disabled
+   */
+  public static TagsCache get() {
+    return instance;
+  }
+
+  public void invalidate(String repo) {
+    cache.remove(repo);
+  }
+
+  /**
+   * Answer a tag list GET or HEAD request, fetching the complete list from the registry on a miss.
+   * @param url the registry url of the tag list without query string
+   */
+  public void serve(String url, String repo, HttpServletRequest request, HttpServletResponse response)
+      throws Exception {
+    Tags tags = cache.get(repo);
+    if(tags == null) {
+      tags = fetch(url, repo, request, response);
+      if(tags == null) {
+        // error response sent
+        return;
+      }
+      cache.put(repo, tags);
+    }
+    int n = NumberUtils.toInt(request.getParameter("n"), -1);
+    String last = request.getParameter("last");
+    byte[] body;
+    byte[] gzip = null;
+    String etag;
+    if((n < 0) && StringUtils.isEmpty(last)) {
+      body = tags.body();
+      gzip = tags.gzip();
+      etag = tags.etag();
+    } else {
+      int from = 0;
+      if(StringUtils.isNotEmpty(last)) {
+        int i = Collections.binarySearch(tags.tags(), last);
+        from = i >= 0 ? i + 1 : -(i + 1);
+      }
+      int to = n < 0 ? tags.tags().size() : (int)Math.min(tags.tags().size(), (long)from + n);
+      List<String> page = tags.tags().subList(from, to);
+      body = render(repo, page);
+      etag = etag(body);
+      if((n > 0) && (to < tags.tags().size())) {
+        response.setHeader("Link", "</v2/%s/tags/list?n=%d&last=%s>; rel=\"next\"".formatted(
+            repo, n, URLEncoder.encode(page.get(page.size() - 1), StandardCharsets.UTF_8)));
+      }
+    }
+    boolean compress = Compression.negotiate(request, response, body.length);
+    if(compress) {
+      // the encoded representation needs its own entity tag
+      etag = StringUtils.removeEnd(etag, "\"") + "-gzip\"";
+    }
+    response.setHeader("Content-Type", "application/json; charset=utf-8");
+    response.setHeader("Docker-Distribution-Api-Version", "registry/2.0");
+    response.setHeader("Etag", etag);
+    if(etag.equals(request.getHeader("If-None-Match"))) {
+      notModified.increment();
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+    if(compress) {
+      body = gzip != null ? gzip : Compression.compress(body);
+      Compression.precompressed(response);
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+    response.setContentLength(body.length);
+    if(!"HEAD".equalsIgnoreCase(request.getMethod())) {
+      response.getOutputStream().write(body);
+    }
+  }
+
+  /**
+   * @return the complete tag list following the registry's pagination or {@code null} if the registry
+   * answered with an error, the error has been sent to the client then
+   */
+  private Tags fetch(String url, String repo, HttpServletRequest request, HttpServletResponse response)
+      throws Exception {
+    Upstream upstream = Upstream.get();
+    String registry = StringUtils.substringBefore(url, "/v2/");
+    List<String> tags = new ArrayList<>();
+    String next = url;
+    for(int pages=0;(next != null) && (pages < MAX_UPSTREAM_PAGES);pages++) {
+      HttpResponse<InputStream> r = upstream.send(upstream.request(next).GET().build());
+      if(r.statusCode() != HttpServletResponse.SC_OK) {
+        Upstream.relay(r, response, !"HEAD".equalsIgnoreCase(request.getMethod()));
+        return null;
+      }
+      try(InputStream in = r.body()) {
+        read(new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8)), tags);
+      }
+      next = r.headers().firstValue("Link")
+          .map(link -> StringUtils.substringBetween(link, "<", ">"))
+          .map(link -> link.startsWith("/") ? registry + link : link)
+          .orElse(null);
+    }
+    Collections.sort(tags);
+    List<String> sorted = List.copyOf(tags);
+    byte[] body = render(repo, sorted);
+    return new Tags(sorted, body, Compression.precompress(body), etag(body));
+  }
+
+  private static void read(JsonReader reader, List<String> tags) throws Exception {
+    reader.beginObject();
+    while(reader.hasNext()) {
+      if("tags".equals(reader.nextName()) && (reader.peek() == JsonToken.BEGIN_ARRAY)) {
+        reader.beginArray();
+        while(reader.hasNext()) {
+          tags.add(reader.nextString());
+        }
+        reader.endArray();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+  }
+
+  private static byte[] render(String repo, List<String> tags) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64 + (tags.size() * 16));
+    JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writer.beginObject();
+    writer.name("name").value(repo);
+    writer.name("tags");
+    writer.beginArray();
+    for(String tag : tags) {
+      writer.value(tag);
+    }
+    writer.endArray();
+    writer.endObject();
+    writer.flush();
+    return out.toByteArray();
+  }
+
+  private static String etag(byte[] body) throws Exception {
+    byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+    return "\"" + HexFormat.of().formatHex(hash, 0, 16) + "\"";
+  }
+
+  public long getHits() {
+    return cache.getHits();
+  }
+
+  public long getMisses() {
+    return cache.getMisses();
+  }
+
+  public long getNotModified() {
+    return notModified.sum();
+  }
+
+}
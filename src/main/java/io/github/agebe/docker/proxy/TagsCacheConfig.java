@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for the tag list cache, see {@link TagsCache}.
+ * <pre>
+ * tagsCache:
+ *   enabled: true
+ *   ttl: 10
+ *   maxRepos: 10000
+ * </pre>
+ */
+public class TagsCacheConfig {
+
+  static final TagsCacheConfig DEFAULT = new TagsCacheConfig();
+
+  private boolean enabled = false;
+
+  // seconds
+  private long ttl = 10;
+
+  // repositories with cached tag lists
+  private int maxRepos = 10000;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public long getTtl() {
+    return ttl;
+  }
+
+  public int getMaxRepos() {
+    return maxRepos;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, ttl, maxRepos);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    TagsCacheConfig other = (TagsCacheConfig)obj;
+    return (enabled == other.enabled) && (ttl == other.ttl) && (maxRepos == other.maxRepos);
+  }
+
+  @Override
+  public String toString() {
+    return "TagsCacheConfig [enabled=" + enabled + ", ttl=" + ttl + ", maxRepos=" + maxRepos + "]";
+  }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for the docker token authentication, see {@link Tokens}.
+ * <pre>
+ * token:
+ *   enabled: true
+ *   ttl: 300
+ *   secret: shared-between-replicas
+ *   realm: https://registry.example.com/token
+ *   service: docker-registry-proxy
+ * </pre>
+ * Without a secret tokens are signed with a random per process key and are only valid on the replica
+ * that issued them. The realm, the external url of the {@code /token} endpoint, is required, token
+ * authentication stays disabled without it.
+ */
+public class TokenConfig {
+
+  static final TokenConfig DEFAULT = new TokenConfig();
+
+  private boolean enabled = false;
+
+  // seconds
+  private long ttl = 300;
+
+  private String secret;
+
+  private String realm;
+
+  private String service = "docker-registry-proxy";
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public long getTtl() {
+    return ttl;
+  }
+
+  public String getSecret() {
+    return secret;
+  }
+
+  public String getRealm() {
+    return realm;
+  }
+
+  public String getService() {
+    return service;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, ttl, secret, realm, service);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    TokenConfig other = (TokenConfig)obj;
+    return (enabled == other.enabled)
+        && (ttl == other.ttl)
+        && Objects.equals(secret, other.secret)
+        && Objects.equals(realm, other.realm)
+        && Objects.equals(service, other.service);
+  }
+
+  @Override
+  public String toString() {
+    return "TokenConfig [enabled=" + enabled + ", ttl=" + ttl + ", secret=" + (secret != null ? "***" : null)
+        + ", realm=" + realm + ", service=" + service + "]";
+  }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Objects;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/**
+ * Issues and verifies the bearer tokens of the docker token authentication flow. Tokens are compact
+ * HS256 JWTs carrying the user's name, role, repository patterns and a fingerprint of the stored
+ * password (HMAC of it). Verifying a token is a HMAC check instead of a password check, a token is only
+ * accepted as long as the user's role, repositories and password are unchanged in the configuration.
+ * Token authentication requires a configured realm, the challenge doesn't point clients to a token
+ * endpoint taken from request headers.
+ */
+public class Tokens {
+
+  private static final Logger log = LoggerFactory.getLogger(Tokens.class);
+
+  private static final String HMAC = "HmacSHA256";
+
+  private static final String ISSUER = "docker-registry-auth-proxy";
+
+  private static final String HEADER = base64(
+      "{\"alg\":\"HS256\",\"typ\":\"JWT\"}".getBytes(StandardCharsets.UTF_8));
+
+  private static final Gson gson = new GsonBuilder()
+      .disableHtmlEscaping()
+      .disableJdkUnsafe()
+      .create();
+
+  // used if no secret is configured
+  private static final byte[] RANDOM_SECRET = randomSecret();
+
+  private static volatile Tokens instance = new Tokens(TokenConfig.DEFAULT);
+
+  static {
+    Config.addListener(Tokens::configure);
+  }
+
+  public static record Claims(String iss, String aud, String sub, long iat, long exp, String role,
+      List<String> repos, String pwd) {};
+
+  private final TokenConfig config;
+
+  private final ThreadLocal<Mac> mac;
+
+  private final String challenge;
+
+  private Tokens(TokenConfig config) {
+    super();
+    this.config = config;
+    this.challenge = "Bearer realm=\"%s\",service=\"%s\"".formatted(config.getRealm(), config.getService());
+    SecretKeySpec key = new SecretKeySpec(secret(config), HMAC);
+    mac = ThreadLocal.withInitial(() -> createMac(key));
+  }
+
+  private static void configure(Config config) {
+    TokenConfig cfg = config.getToken();
+    if(!cfg.equals(instance.config)) {
+      log.debug("configure tokens '{}'", cfg);
+      if(cfg.isEnabled() && StringUtils.isBlank(cfg.getRealm())) {
+        log.warn("token authentication enabled but no realm configured, token authentication disabled");
+      }
+      instance = new Tokens(cfg);
+    }
+  }
+
+  public static Tokens get() {
+    return instance;
+  }
+
+  private static byte[] randomSecret() {
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    return secret;
+  }
+
+  private static byte[] secret(TokenConfig config) {
+    if(StringUtils.isEmpty(config.getSecret())) {
+      return RANDOM_SECRET;
+    }
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(config.getSecret().getBytes(StandardCharsets.UTF_8));
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to derive token key", e);
+    }
+  }
+
+  private static Mac createMac(SecretKeySpec key) {
+    try {
+      Mac m = Mac.getInstance(HMAC);
+      m.init(key);
+      return m;
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to create " + HMAC, e);
+    }
+  }
+
+  private static String base64(byte[] b) {
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(b);
+  }
+
+  /**
+   * @return {@code true} if token authentication is enabled and a realm is configured
+   */
+  public boolean isEnabled() {
+    return config.isEnabled() && StringUtils.isNotBlank(config.getRealm());
+  }
+
+  public long getTtl() {
+    return config.getTtl();
+  }
+
+  public String getService() {
+    return config.getService();
+  }
+
+  /**
+   * @return the realm of the bearer challenge, the url of the token endpoint
+   */
+  public String getRealm() {
+    return config.getRealm();
+  }
+
+  /**
+   * @return the {@code WWW-Authenticate} bearer challenge
+   */
+  public String getChallenge() {
+    return challenge;
+  }
+
+  public String issue(User user) {
+    long now = System.currentTimeMillis() / 1000;
+    Claims claims = new Claims(ISSUER, config.getService(), user.getName(), now, now + config.getTtl(),
+        user.getRole() != null ? user.getRole().name() : null, user.getRepos(), fingerprint(user));
+    String content = HEADER + "." + base64(gson.toJson(claims).getBytes(StandardCharsets.UTF_8));
+    return content + "." + base64(sign(content));
+  }
+
+  private byte[] sign(String content) {
+    return mac.get().doFinal(content.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * @return HMAC of the user's stored password (hash), changes when the password is changed or rotated
+   */
+  private String fingerprint(User user) {
+    String stored = user.getPassword() != null ? user.getPassword().stored() : "";
+    byte[] h = mac.get().doFinal(("password:" + stored).getBytes(StandardCharsets.UTF_8));
+    return base64(Arrays.copyOf(h, 16));
+  }
+
+  /**
+   * @return the claims of a valid and not expired token or {@code null}
+   */
+  public Claims verify(String token) {
+    int sig = token.lastIndexOf('.');
+    if((sig == -1) || !token.startsWith(HEADER + ".")) {
+      return null;
+    }
+    byte[] signature;
+    try {
+      signature = Base64.getUrlDecoder().decode(token.substring(sig + 1));
+    } catch(IllegalArgumentException e) {
+      return null;
+    }
+    if(!MessageDigest.isEqual(sign(token.substring(0, sig)), signature)) {
+      return null;
+    }
+    Claims claims = gson.fromJson(new String(Base64.getUrlDecoder().decode(
+        token.substring(HEADER.length() + 1, sig)), StandardCharsets.UTF_8), Claims.class);
+    if((claims == null)
+        || !ISSUER.equals(claims.iss())
+        || !Objects.equals(config.getService(), claims.aud())
+        || (claims.exp() <= (System.currentTimeMillis() / 1000))) {
+      return null;
+    }
+    return claims;
+  }
+
+  /**
+   * @return {@code true} if the user configuration still grants what the token has been issued for and
+   * the password is unchanged
+   */
+  public boolean matches(Claims claims, User user) {
+    return (user != null)
+        && Objects.equals(claims.sub(), user.getName())
+        && Objects.equals(claims.role(), user.getRole() != null ? user.getRole().name() : null)
+        && Objects.equals(claims.repos(), user.getRepos())
+        && (claims.pwd() != null)
+        && MessageDigest.isEqual(claims.pwd().getBytes(StandardCharsets.US_ASCII),
+            fingerprint(user).getBytes(StandardCharsets.US_ASCII));
+  }
+
+}
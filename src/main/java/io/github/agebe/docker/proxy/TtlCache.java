@@ -0,0 +1,130 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache with a fixed time to live per entry. Lookups are lock free, eviction runs on the
+ * inserting thread once the cache grows over its maximum size and first drops expired entries, then the
+ * entries closest to expiry.
+ */
+public class TtlCache<K, V> {
+
+  private static record Entry<V>(V value, long expires) {};
+
+  private final Map<K, Entry<V>> map = new ConcurrentHashMap<>();
+
+  private final ReentrantLock evictLock = new ReentrantLock();
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder evictions = new LongAdder();
+
+  private volatile int maxSize;
+
+  private volatile long ttlNanos;
+
+  public TtlCache(int maxSize, Duration ttl) {
+    super();
+    configure(maxSize, ttl);
+  }
+
+  public void configure(int maxSize, Duration ttl) {
+    this.maxSize = Math.max(0, maxSize);
+    this.ttlNanos = ttl.toNanos();
+  }
+
+  public V get(K key) {
+    Entry<V> entry = map.get(key);
+    if(entry == null) {
+      misses.increment();
+      return null;
+    }
+    if(entry.expires() - System.nanoTime() < 0) {
+      map.remove(key, entry);
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return entry.value();
+  }
+
+  public void put(K key, V value) {
+    if(maxSize == 0) {
+      return;
+    }
+    map.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+    if(map.size() > maxSize) {
+      evict();
+    }
+  }
+
+  public void remove(K key) {
+    map.remove(key);
+  }
+
+  public void clear() {
+    map.clear();
+  }
+
+  public int size() {
+    return map.size();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  private void evict() {
+    if(!evictLock.tryLock()) {
+      // another thread is already evicting
+      return;
+    }
+    try {
+      int before = map.size();
+      long now = System.nanoTime();
+      map.values().removeIf(e -> e.expires() - now < 0);
+      // still too large, drop the oldest entries and make some room so we don't evict on every put
+      int excess = map.size() - maxSize;
+      if(excess > 0) {
+        map.entrySet().stream()
+        .sorted(Comparator.comparingLong(e -> e.getValue().expires() - now))
+        .limit(excess + (maxSize / 10))
+        .map(Map.Entry::getKey)
+        .toList()
+        .forEach(map::remove);
+      }
+      evictions.add(Math.max(0, before - map.size()));
+    } finally {
+      evictLock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Client for upstream requests the proxy processes itself, e.g. to stream and filter the response body,
+ * and optionally for all forwarded requests. Connection reuse, timeouts and the protocol version are
+ * configured in the {@link UpstreamConfig}. Concurrent requests are capped per registry, a request holds
+ * its permit until the response body has been closed.
+ */
+public class Upstream {
+
+  private static final Logger log = LoggerFactory.getLogger(Upstream.class);
+
+  // headers not forwarded to the registry, hop-by-hop or restricted by the http client
+  private static final Set<String> SKIP_REQUEST_HEADERS = Set.of(
+      "authorization",
+      "connection",
+      "content-length",
+      "date",
+      "expect",
+      "from",
+      "host",
+      "keep-alive",
+      "origin",
+      "proxy-authorization",
+      "referer",
+      "te",
+      "trailer",
+      "transfer-encoding",
+      "upgrade",
+      "via",
+      "warning");
+
+  private static final Set<String> SKIP_RESPONSE_HEADERS = Set.of(
+      "connection",
+      "keep-alive",
+      "transfer-encoding",
+      "upgrade");
+
+  private static final AtomicInteger inFlight = new AtomicInteger();
+
+  private static final LongAdder requests = new LongAdder();
+
+  private static final LongAdder failures = new LongAdder();
+
+  private static final LongAdder saturated = new LongAdder();
+
+  private static final LongAdder waitNanos = new LongAdder();
+
+  private static final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+  // seconds, the keep alive timeout of the jdk http client, fixed for the lifetime of the jvm
+  private static long idleTimeout = -1;
+
+  private static volatile Upstream instance;
+
+  static {
+    Config.addListener(Upstream::configure);
+  }
+
+  private final UpstreamConfig config;
+
+  private final HttpClient client;
+
+  // request permits by registry url
+  private final Map<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+  private Upstream(UpstreamConfig config) {
+    super();
+    this.config = config;
+    HttpClient.Builder builder = HttpClient.newBuilder()
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .connectTimeout(Duration.ofSeconds(config.getConnectTimeout()))
+        .version(config.isHttp2() ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1);
+    if(config.isVirtualThreads()) {
+      ExecutorService executor = VirtualThreads.newPerTaskExecutor();
+      if(executor != null) {
+        builder.executor(executor);
+      }
+    }
+    this.client = builder.build();
+  }
+
+  private static synchronized void configure(Config config) {
+    UpstreamConfig cfg = config.getUpstream();
+    if(idleTimeout < 0) {
+      // read once by the jdk http client when the first client is created
+      String property = System.getProperty("jdk.httpclient.keepalive.timeout");
+      if(property == null) {
+        System.setProperty("jdk.httpclient.keepalive.timeout", Long.toString(cfg.getIdleTimeout()));
+        idleTimeout = cfg.getIdleTimeout();
+      } else {
+        idleTimeout = NumberUtils.toLong(property, cfg.getIdleTimeout());
+      }
+    } else if(cfg.getIdleTimeout() != idleTimeout) {
+      log.warn("upstream idle timeout changed to '{}', keeping '{}' until restart", cfg.getIdleTimeout(), idleTimeout);
+    }
+    if((instance == null) || !cfg.equals(instance.config)) {
+      log.info("upstream client '{}'", cfg);
+      instance = new Upstream(cfg);
+    }
+  }
+
+  public static Upstream get() {
+    return instance;
+  }
+
+  public boolean isForward() {
+    return config.isForward();
+  }
+
+  /**
+   * Create a request to the upstream url that carries the client's request headers. The accept-encoding
+   * is dropped since the proxy needs to read the response.
+   */
+  public HttpRequest.Builder request(String url, HttpServletRequest request) {
+    return requestBuilder(url, request, "accept-encoding");
+  }
+
+  /**
+   * Create a request to the upstream url made by the proxy itself, without client headers.
+   */
+  public HttpRequest.Builder request(String url) {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url));
+    if(config.getReadTimeout() > 0) {
+      builder.timeout(Duration.ofSeconds(config.getReadTimeout()));
+    }
+    return builder;
+  }
+
+  private HttpRequest.Builder requestBuilder(String url, HttpServletRequest request, String... skip) {
+    HttpRequest.Builder builder = request(url);
+    for(String name : Collections.list(request.getHeaderNames())) {
+      String lower = StringUtils.lowerCase(name);
+      if(SKIP_REQUEST_HEADERS.contains(lower) || StringUtils.equalsAny(lower, skip)) {
+        continue;
+      }
+      for(String value : Collections.list(request.getHeaders(name))) {
+        builder.header(name, value);
+      }
+    }
+    return builder;
+  }
+
+  /**
+   * Send the request, small idempotent requests are hedged if enabled, see {@link Hedger}.
+   */
+  public HttpResponse<InputStream> send(HttpRequest request) throws Exception {
+    Hedger hedger = Hedger.get();
+    if((hedger != null) && Hedger.isHedgeable(request)) {
+      return hedger.send(request, this::attempt);
+    }
+    return attempt(request);
+  }
+
+  /**
+   * @return the permits of the registry the request is sent to
+   */
+  private Semaphore permits(URI uri) {
+    String url = uri.toString();
+    int v2 = url.indexOf("/v2/");
+    String registry = v2 >= 0 ? url.substring(0, v2) : uri.getScheme() + "://" + uri.getRawAuthority();
+    Semaphore semaphore = permits.get(registry);
+    if(semaphore == null) {
+      semaphore = permits.computeIfAbsent(registry,
+          k -> new Semaphore(Math.max(1, config.getMaxRequestsPerRegistry()), true));
+    }
+    return semaphore;
+  }
+
+  private HttpResponse<InputStream> attempt(HttpRequest request) throws Exception {
+    long start = System.nanoTime();
+    Semaphore permits = permits(request.uri());
+    boolean acquired = permits.tryAcquire()
+        || permits.tryAcquire(Math.max(1, config.getConnectTimeout()), TimeUnit.SECONDS);
+    long wait = System.nanoTime() - start;
+    waitNanos.add(wait);
+    maxWaitNanos.accumulate(wait);
+    if(!acquired) {
+      saturated.increment();
+      throw new UpstreamSaturatedException("request limit of registry '%s' reached for %ss"
+          .formatted(request.uri().getRawAuthority(), Math.max(1, config.getConnectTimeout())));
+    }
+    requests.increment();
+    inFlight.incrementAndGet();
+    AtomicBoolean released = new AtomicBoolean();
+    Runnable release = () -> {
+      if(released.compareAndSet(false, true)) {
+        inFlight.decrementAndGet();
+        permits.release();
+      }
+    };
+    BodyHandler<InputStream> handler = info -> BodySubscribers.mapping(BodySubscribers.ofInputStream(),
+        in -> new FilterInputStream(in) {
+          @Override
+          public void close() throws IOException {
+            try {
+              super.close();
+            } finally {
+              release.run();
+            }
+          }
+        });
+    try {
+      long sent = System.nanoTime();
+      HttpResponse<InputStream> response = client.send(request, handler);
+      Metrics.upstreamFirstByte(System.nanoTime() - sent);
+      return response;
+    } catch(Exception e) {
+      failures.increment();
+      release.run();
+      throw e;
+    }
+  }
+
+  /**
+   * Forward the request to the registry and stream the response back to the client.
+   */
+  public void forward(String url, HttpServletRequest request, HttpServletResponse response) throws Exception {
+    String query = request.getQueryString();
+    if(StringUtils.isNotBlank(query) && !url.contains("?")) {
+      url = url + "?" + query;
+    }
+    HttpRequest.Builder builder = requestBuilder(url, request);
+    // the registry builds its location headers from these
+    if(request.getHeader("X-Forwarded-Host") == null) {
+      builder.header("X-Forwarded-Host", request.getHeader("Host"));
+    }
+    if(request.getHeader("X-Forwarded-Proto") == null) {
+      builder.header("X-Forwarded-Proto", request.getScheme());
+    }
+    builder.method(request.getMethod(), body(request));
+    relay(send(builder.build()), response, !"HEAD".equalsIgnoreCase(request.getMethod()));
+  }
+
+  /**
+   * Send the upstream response to the client, status, end-to-end headers and optionally the body.
+   */
+  public static void relay(HttpResponse<InputStream> r, HttpServletResponse response, boolean body)
+      throws IOException {
+    try(InputStream in = r.body()) {
+      relayHeaders(r, response);
+      if(body) {
+        in.transferTo(response.getOutputStream());
+      }
+    }
+  }
+
+  /**
+   * Send the status and end-to-end headers of the upstream response to the client.
+   */
+  public static void relayHeaders(HttpResponse<?> r, HttpServletResponse response) {
+    response.setStatus(r.statusCode());
+    for(Map.Entry<String, List<String>> header : r.headers().map().entrySet()) {
+      String name = header.getKey();
+      if(name.startsWith(":") || SKIP_RESPONSE_HEADERS.contains(StringUtils.lowerCase(name))) {
+        continue;
+      }
+      for(String value : header.getValue()) {
+        response.addHeader(name, value);
+      }
+    }
+  }
+
+  private BodyPublisher body(HttpServletRequest request) {
+    long length = request.getContentLengthLong();
+    if(length == 0) {
+      return BodyPublishers.noBody();
+    }
+    if((length < 0) && (request.getHeader("Transfer-Encoding") == null)) {
+      return BodyPublishers.noBody();
+    }
+    BodyPublisher publisher = BodyPublishers.ofInputStream(() -> {
+      try {
+        return request.getInputStream();
+      } catch(IOException e) {
+        throw new DockerProxyException("failed to read request body", e);
+      }
+    });
+    return length > 0 ? BodyPublishers.fromPublisher(publisher, length) : publisher;
+  }
+
+  /**
+   * Copy the named headers (if present) from the upstream response to the client response.
+   */
+  public static void copyHeaders(HttpResponse<?> from, HttpServletResponse to, String... names) {
+    for(String name : names) {
+      from.headers().firstValue(name).ifPresent(v -> to.setHeader(name, v));
+    }
+  }
+
+  /**
+   * @return the registry url for the request uri, including the query string if any
+   */
+  public static String url(String registry, HttpServletRequest request) {
+    String query = request.getQueryString();
+    return registry + request.getRequestURI() + (StringUtils.isBlank(query) ? "" : "?" + query);
+  }
+
+  public static int getInFlight() {
+    return inFlight.get();
+  }
+
+  public int getMaxRequestsPerRegistry() {
+    return config.getMaxRequestsPerRegistry();
+  }
+
+  public static long getRequests() {
+    return requests.sum();
+  }
+
+  public static long getFailures() {
+    return failures.sum();
+  }
+
+  public static long getSaturated() {
+    return saturated.sum();
+  }
+
+  public static long getWaitNanos() {
+    return waitNanos.sum();
+  }
+
+  public static long getMaxWaitNanos() {
+    return maxWaitNanos.get();
+  }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for the upstream registry client, see {@link Upstream}.
+ * <pre>
+ * upstream:
+ *   maxRequestsPerRegistry: 64
+ *   idleTimeout: 60
+ *   connectTimeout: 10
+ *   readTimeout: 60
+ *   http2: false
+ *   forward: true
+ *   virtualThreads: false
+ * </pre>
+ * The idle timeout sets the jvm wide {@code jdk.httpclient.keepalive.timeout} system property unless it
+ * is already set. The jdk http client reads it once, changes need a restart.
+ * <p>
+ * Every registry (see {@link RegistryConfig}) has its own limit of concurrent requests, so a slow registry
+ * can't take the requests of the others. With http/1.1 this is also the number of connections to the
+ * registry, with http2 the requests share a connection and the limit applies to the streams. Requests wait
+ * up to the connect timeout for the limit and are answered with 503 otherwise.
+ */
+public class UpstreamConfig {
+
+  static final UpstreamConfig DEFAULT = new UpstreamConfig();
+
+  // max concurrent requests to each registry (connections for http/1.1, streams for http2)
+  private int maxRequestsPerRegistry = 64;
+
+  // seconds
+  private long idleTimeout = 60;
+
+  // seconds
+  private long connectTimeout = 10;
+
+  // seconds until the response headers have to be received, 0 to disable
+  private long readTimeout = 60;
+
+  // h2c for http, alpn for https registries
+  private boolean http2 = false;
+
+  // use this client instead of rproxy for all forwarded requests
+  private boolean forward = false;
+
+  // run upstream i/o on virtual threads, requires java 21
+  private boolean virtualThreads = false;
+
+  public int getMaxRequestsPerRegistry() {
+    return maxRequestsPerRegistry;
+  }
+
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  public long getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public long getReadTimeout() {
+    return readTimeout;
+  }
+
+  public boolean isHttp2() {
+    return http2;
+  }
+
+  public boolean isForward() {
+    return forward;
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(maxRequestsPerRegistry, idleTimeout, connectTimeout, readTimeout, http2, forward,
+        virtualThreads);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    UpstreamConfig other = (UpstreamConfig)obj;
+    return (maxRequestsPerRegistry == other.maxRequestsPerRegistry)
+        && (idleTimeout == other.idleTimeout)
+        && (connectTimeout == other.connectTimeout)
+        && (readTimeout == other.readTimeout)
+        && (http2 == other.http2)
+        && (forward == other.forward)
+        && (virtualThreads == other.virtualThreads);
+  }
+
+  @Override
+  public String toString() {
+    return "UpstreamConfig [maxRequestsPerRegistry=" + maxRequestsPerRegistry + ", idleTimeout=" + idleTimeout
+        + ", connectTimeout=" + connectTimeout + ", readTimeout=" + readTimeout + ", http2=" + http2
+        + ", forward=" + forward + ", virtualThreads=" + virtualThreads + "]";
+  }
+
+}
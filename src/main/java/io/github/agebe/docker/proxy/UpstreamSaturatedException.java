@@ -13,23 +13,17 @@
  */
 package io.github.agebe.docker.proxy;
 
-import java.util.List;
+import java.io.IOException;
 
-public class Catalog {
-
-  private List<String> repositories;
-
-  public Catalog() {
-    super();
-  }
+/**
+ * Thrown by {@link Upstream} if the request limit of the registry is still reached after the connect timeout.
+ */
+public class UpstreamSaturatedException extends IOException {
 
-  public Catalog(List<String> repositories) {
-    super();
-    this.repositories = repositories;
-  }
+  private static final long serialVersionUID = 4871504170264389151L;
 
-  public List<String> getRepositories() {
-    return repositories;
+  public UpstreamSaturatedException(String message) {
+    super(message);
   }
 
 }
@@ -14,12 +14,15 @@
 package io.github.agebe.docker.proxy;
 
 import java.util.List;
-
-import com.hrakaroo.glob.GlobPattern;
-import com.hrakaroo.glob.MatchingEngine;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class User {
 
+  // upper bound of cached access decisions per user
+  private static final int MAX_DECISIONS = 1024;
+
   private String name;
 
   private Password password;
@@ -28,6 +31,36 @@ public class User {
 
   private List<String> repos;
 
+  private transient RepoMatcher repoMatcher;
+
+  private transient Map<String, Boolean> decisions;
+
+  public User() {
+    super();
+  }
+
+  public User(String name, Password password, Role role, List<String> repos) {
+    super();
+    this.name = name;
+    this.password = password;
+    this.role = role;
+    this.repos = repos;
+    init();
+  }
+
+  /**
+   * User with already compiled repository patterns, e.g. shared by all users of a htpasswd file.
+   */
+  User(String name, Password password, Role role, List<String> repos, RepoMatcher repoMatcher) {
+    super();
+    this.name = name;
+    this.password = password;
+    this.role = role;
+    this.repos = repos;
+    this.repoMatcher = repoMatcher;
+    this.decisions = ((repoMatcher != null) && repoMatcher.hasGlobs()) ? new ConcurrentHashMap<>() : null;
+  }
+
   public String getName() {
     return name;
   }
@@ -44,18 +77,65 @@ public class User {
     return repos;
   }
 
-  public boolean canAccessRepo(String repo) {
+  /**
+   * Compile the repository patterns, called once when the configuration is loaded.
+   */
+  void init() {
     if((repos == null) || repos.isEmpty()) {
-      return true;
+      repos = null;
+      repoMatcher = null;
+      decisions = null;
     } else {
-      for(String pattern : repos) {
-        MatchingEngine matcher = GlobPattern.compile(pattern);
-        if(matcher.matches(repo)) {
-          return true;
-        }
+      repos = List.copyOf(repos);
+      repoMatcher = new RepoMatcher(repos);
+      decisions = repoMatcher.hasGlobs() ? new ConcurrentHashMap<>() : null;
+    }
+  }
+
+  public boolean canAccessRepo(String repo) {
+    if(repoMatcher == null) {
+      return true;
+    }
+    if((decisions == null) || (repo == null)) {
+      return repoMatcher.matches(repo);
+    }
+    Boolean decision = decisions.get(repo);
+    if(decision == null) {
+      decision = repoMatcher.matches(repo);
+      if(decisions.size() >= MAX_DECISIONS) {
+        decisions.clear();
       }
+      decisions.put(repo, decision);
+    }
+    return decision;
+  }
+
+  /**
+   * Check repository access without going through the decision cache, for bulk checks like the catalog
+   * where caching every repository would only evict the useful entries.
+   */
+  public boolean matchesRepo(String repo) {
+    return (repoMatcher == null) || repoMatcher.matches(repo);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(name, password, role, repos);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
       return false;
     }
+    User other = (User)obj;
+    return Objects.equals(name, other.name)
+        && Objects.equals(password, other.password)
+        && Objects.equals(role, other.role)
+        && Objects.equals(repos, other.repos);
   }
 
   @Override
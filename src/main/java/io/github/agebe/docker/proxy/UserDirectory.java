@@ -0,0 +1,169 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Users by name, built once per configuration snapshot from the configuration file and the htpasswd
+ * files. Building is incremental, users whose definition didn't change are taken over from the previous
+ * directory (including their compiled repository patterns and access decisions) and htpasswd files that
+ * didn't change are not read again. Users of a htpasswd file share one compiled {@link RepoMatcher}.
+ */
+public class UserDirectory {
+
+  private static final Logger log = LoggerFactory.getLogger(UserDirectory.class);
+
+  static final UserDirectory EMPTY = new UserDirectory(Map.of(), Map.of());
+
+  private static class HtpasswdFile {
+    private final HtpasswdConfig config;
+    private final long lastModified;
+    private final long length;
+    private final List<User> users;
+
+    private HtpasswdFile(HtpasswdConfig config, long lastModified, long length, List<User> users) {
+      this.config = config;
+      this.lastModified = lastModified;
+      this.length = length;
+      this.users = users;
+    }
+  }
+
+  private final Map<String, User> users;
+
+  // file path -> parsed file
+  private final Map<String, HtpasswdFile> files;
+
+  private UserDirectory(Map<String, User> users, Map<String, HtpasswdFile> files) {
+    super();
+    this.users = users;
+    this.files = files;
+  }
+
+  /**
+   * @param previous the directory of the current configuration, users and files are reused from it if
+   * unchanged
+   */
+  public static UserDirectory build(List<User> configUsers, List<HtpasswdConfig> htpasswd, UserDirectory previous) {
+    Map<String, User> users = new HashMap<>(configUsers.size() * 2);
+    for(User user : configUsers) {
+      if(StringUtils.isBlank(user.getName())) {
+        throw new DockerProxyException("check configuration, user without name");
+      }
+      User old = previous.users.get(user.getName());
+      if(user.equals(old)) {
+        user = old;
+      } else {
+        user.init();
+      }
+      if(users.put(user.getName(), user) != null) {
+        throw new DockerProxyException("check configuration, user '%s' duplicated".formatted(user.getName()));
+      }
+    }
+    Map<String, HtpasswdFile> files = new HashMap<>();
+    for(HtpasswdConfig cfg : htpasswd) {
+      HtpasswdFile file = read(cfg, previous);
+      files.put(cfg.getFile(), file);
+      for(User user : file.users) {
+        User existing = users.putIfAbsent(user.getName(), user);
+        if(existing != null) {
+          log.warn("user '{}' of htpasswd file '{}' already defined, ignored", user.getName(), cfg.getFile());
+        }
+      }
+    }
+    return new UserDirectory(users, files);
+  }
+
+  private static HtpasswdFile read(HtpasswdConfig cfg, UserDirectory previous) {
+    if(StringUtils.isBlank(cfg.getFile())) {
+      throw new DockerProxyException("check configuration, htpasswd without file");
+    }
+    File f = new File(cfg.getFile());
+    long lastModified = f.lastModified();
+    long length = f.length();
+    HtpasswdFile old = previous.files.get(cfg.getFile());
+    if((old != null) && old.config.equals(cfg) && (old.lastModified == lastModified) && (old.length == length)) {
+      return old;
+    }
+    // reuse unchanged users only if role and repos are the same, otherwise everything is new
+    Map<String, User> oldUsers = new HashMap<>();
+    if((old != null) && old.config.equals(cfg)) {
+      old.users.forEach(u -> oldUsers.put(u.getName(), u));
+    }
+    RepoMatcher matcher = ((cfg.getRepos() != null) && !cfg.getRepos().isEmpty()) ? new RepoMatcher(cfg.getRepos()) : null;
+    List<String> repos = matcher != null ? List.copyOf(cfg.getRepos()) : null;
+    List<User> users = new ArrayList<>();
+    int lineNumber = 0;
+    int reused = 0;
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+    } catch(IOException e) {
+      throw new DockerProxyException("failed to read htpasswd file '%s'".formatted(cfg.getFile()), e);
+    }
+    for(String line : lines) {
+      lineNumber++;
+      line = line.strip();
+      if(line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String name = StringUtils.substringBefore(line, ":");
+      String hash = StringUtils.substringAfter(line, ":");
+      if(StringUtils.isBlank(name) || !StringUtils.startsWithAny(hash, "$2a$", "$2y$", "$2b$")) {
+        log.warn("htpasswd file '{}', line {} ignored, only bcrypt hashes are supported", cfg.getFile(), lineNumber);
+        continue;
+      }
+      Password password = new Password(hash);
+      User user = oldUsers.get(name);
+      if((user != null) && password.equals(user.getPassword())) {
+        reused++;
+      } else {
+        user = new User(name, password, cfg.getRole(), repos, matcher);
+      }
+      users.add(user);
+    }
+    log.info("htpasswd file '{}' read, {} users, {} unchanged", cfg.getFile(), users.size(), reused);
+    return new HtpasswdFile(cfg, lastModified, length, Collections.unmodifiableList(users));
+  }
+
+  /**
+   * @return the user or {@code null} if unknown
+   */
+  public User get(String name) {
+    return name != null ? users.get(name) : null;
+  }
+
+  public Collection<User> getUsers() {
+    return Collections.unmodifiableCollection(users.values());
+  }
+
+  public int size() {
+    return users.size();
+  }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Access to virtual threads (java 21+) while still building and running on java 17.
+ */
+public class VirtualThreads {
+
+  private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+  public static boolean isSupported() {
+    return Runtime.version().feature() >= 21;
+  }
+
+  /**
+   * @return an executor that starts a new virtual thread per task or {@code null} if not supported by
+   * the runtime
+   */
+  public static ExecutorService newPerTaskExecutor() {
+    if(!isSupported()) {
+      log.warn("virtual threads require java 21+, running on '{}'", Runtime.version());
+      return null;
+    }
+    try {
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch(Exception e) {
+      log.warn("failed to create virtual thread executor", e);
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.mindrot.jbcrypt.BCrypt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.yaml.snakeyaml.Yaml;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+/**
+ * Warms up a freshly started proxy before it reports ready. Synthetic requests are sent through the
+ * local connector (filters, PH1 to PH3) against an in-process stub registry. While the warm-up runs the
+ * live components are configured with a warm-up configuration: synthetic users (random password) and the
+ * settings of the configuration file apart from registries, users, audit and prefetch. Until it's done the
+ * {@link MetricsFilter} answers 503 to the ready path and to all requests that don't come from the
+ * warm-up (loopback address and the random secret of the running warm-up), so clients never see the
+ * synthetic users or stub data. Afterwards all components are rebuilt from the configuration file, the
+ * metrics start over and the proxy reports ready.
+ */
+public class Warmup {
+
+  private static final Logger log = LoggerFactory.getLogger(Warmup.class);
+
+  // settings taken over from the configuration file so the warm-up takes the same code paths as the client
+  // requests. Audit and prefetch stay off, the synthetic requests are not audited and don't fetch upstream
+  // in the background
+  private static final Set<String> KEEP = Set.of("upstream", "coalescing", "authCache", "token", "compression",
+      "hedging", "metrics", "limits", "authBackoff", "manifestCache", "tagsCache", "blobCache", "blobMount");
+
+  /**
+   * Request header with the secret of the running warm-up.
+   */
+  static final String HEADER = "X-Docker-Proxy-Warmup";
+
+  private static final int USERS = 16;
+
+  private static final int REPOSITORIES = 200;
+
+  private static final int TAGS = 50;
+
+  private static final String MANIFEST_TYPE = "application/vnd.docker.distribution.manifest.v2+json";
+
+  private static volatile String readyPath;
+
+  private static volatile boolean ready = true;
+
+  // the running warm-up, its requests pass the MetricsFilter
+  private static volatile Warmup running;
+
+  private final File configFile;
+
+  private final WarmupConfig config;
+
+  private final long deadline;
+
+  private final Map<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+
+  private final byte[] manifest;
+
+  private final String manifestDigest;
+
+  // of the synthetic users, only known to this warm-up
+  private final String password;
+
+  private final String secret;
+
+  private Warmup(File configFile, WarmupConfig config) {
+    super();
+    this.configFile = configFile;
+    this.config = config;
+    this.deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getTimeout());
+    this.manifest = ("{\"schemaVersion\":2,\"mediaType\":\"" + MANIFEST_TYPE + "\",\"config\":"
+        + "{\"mediaType\":\"application/vnd.docker.container.image.v1+json\",\"size\":2,\"digest\":\"" + digest("{}")
+        + "\"},\"layers\":[{\"mediaType\":\"application/vnd.docker.image.rootfs.diff.tar.gzip\",\"size\":1024,"
+        + "\"digest\":\"" + digest("layer") + "\"}]}").getBytes(StandardCharsets.UTF_8);
+    this.manifestDigest = digest(new String(manifest, StandardCharsets.UTF_8));
+    SecureRandom random = new SecureRandom();
+    byte[] bytes = new byte[32];
+    random.nextBytes(bytes);
+    this.password = HexFormat.of().formatHex(bytes);
+    random.nextBytes(bytes);
+    this.secret = HexFormat.of().formatHex(bytes);
+  }
+
+  /**
+   * Start the warm-up in the background, the proxy is not ready until it's done.
+   */
+  public static void start(File configFile, WarmupConfig config) {
+    readyPath = config.getReadyPath();
+    ready = false;
+    Thread t = new Thread(() -> new Warmup(configFile, config).run(), "warmup");
+    t.setDaemon(true);
+    t.start();
+  }
+
+  /**
+   * @return {@code true} if the uri is the ready path of an enabled warm-up
+   */
+  public static boolean isReadyPath(String uri) {
+    return (readyPath != null) && readyPath.equals(uri);
+  }
+
+  public static boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * @return {@code true} if the request belongs to the running warm-up
+   */
+  static boolean isWarmupRequest(HttpServletRequest request) {
+    Warmup warmup = running;
+    return (warmup != null) && warmup.matches(request);
+  }
+
+  private boolean matches(HttpServletRequest request) {
+    String header = request.getHeader(HEADER);
+    if((header == null) || !MessageDigest.isEqual(secret.getBytes(StandardCharsets.US_ASCII),
+        header.getBytes(StandardCharsets.US_ASCII))) {
+      return false;
+    }
+    try {
+      // the local address of the connection, not affected by forwarded headers
+      return InetAddress.getByName(request.getLocalAddr()).isLoopbackAddress();
+    } catch(UnknownHostException e) {
+      return false;
+    }
+  }
+
+  private void run() {
+    long start = System.nanoTime();
+    HttpServer stub = null;
+    Path file = null;
+    Path blobs = null;
+    Config live = null;
+    try {
+      stub = stub();
+      HttpClient client = HttpClient.newBuilder()
+          .version(HttpClient.Version.HTTP_1_1)
+          .connectTimeout(Duration.ofSeconds(5))
+          .build();
+      String proxy = "http://127.0.0.1:" + config.getPort();
+      awaitConnector(client, proxy);
+      file = Files.createTempFile("docker-proxy-warmup", ".yaml");
+      blobs = Files.createTempDirectory("docker-proxy-warmup");
+      Files.writeString(file, warmupConfig("http://127.0.0.1:" + stub.getAddress().getPort(), blobs));
+      Config warmupConfig = Config.parse(file.toFile());
+      running = this;
+      live = Config.getConfiguration();
+      Config.apply(warmupConfig);
+      send(client, proxy);
+      log.info("warm-up done in {}ms, responses by status {}",
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), statuses);
+    } catch(Exception e) {
+      log.warn("warm-up failed", e);
+    } finally {
+      running = null;
+      if(live != null) {
+        restore(live);
+      }
+      if(stub != null) {
+        stub.stop(0);
+      }
+      if(file != null) {
+        file.toFile().delete();
+      }
+      if(blobs != null) {
+        delete(blobs);
+      }
+      Metrics.reset();
+      ready = true;
+    }
+    if(config.isExit()) {
+      log.info("warm-up finished, exit");
+      System.exit(0);
+    }
+  }
+
+  /**
+   * Rebuild the components from scratch so nothing the warm-up cached, spooled or counted is left behind,
+   * then apply the configuration file (it might have changed while the warm-up ran).
+   */
+  private static void restore(Config live) {
+    Config.apply(new Config(null, List.of()));
+    PH1AuthenticationHandler.getCredentialCache().clear();
+    Limiter.get().clear();
+    if(!Config.reload()) {
+      Config.apply(live);
+    }
+  }
+
+  private static void delete(Path dir) {
+    try(Stream<Path> files = Files.walk(dir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    } catch(IOException e) {
+      log.debug("failed to delete '{}'", dir, e);
+    }
+  }
+
+  private void awaitConnector(HttpClient client, String proxy) throws Exception {
+    HttpRequest request = HttpRequest.newBuilder(URI.create(proxy + config.getReadyPath())).build();
+    for(;;) {
+      try {
+        client.send(request, BodyHandlers.discarding());
+        return;
+      } catch(ConnectException e) {
+        if(System.nanoTime() > deadline) {
+          throw new DockerProxyException("connector on port %d not started".formatted(config.getPort()), e);
+        }
+        Thread.sleep(100);
+      }
+    }
+  }
+
+  private String warmupConfig(String registry, Path blobs) throws IOException {
+    Map<String, Object> data;
+    try(InputStream in = new FileInputStream(configFile)) {
+      data = new Yaml().load(in);
+    }
+    Map<String, Object> warmup = new LinkedHashMap<>();
+    warmup.put("registry", registry);
+    if(data != null) {
+      data.forEach((k, v) -> {
+        if(KEEP.contains(k)) {
+          warmup.put(k, v);
+        }
+        if(k.equals("blobCache") && (v instanceof Map<?, ?> m)) {
+          Map<Object, Object> blobCache = new LinkedHashMap<>(m);
+          blobCache.put("directory", blobs.toString());
+          warmup.put(k, blobCache);
+        }
+      });
+    }
+    // low cost hashes, the same code paths as the real users at a fraction of the time
+    String hash = BCrypt.hashpw(password, BCrypt.gensalt(4));
+    List<Map<String, Object>> users = new ArrayList<>();
+    users.add(Map.of("name", "warmup-admin", "password", hash, "role", "admin"));
+    for(int i=0;i<USERS;i++) {
+      users.add(Map.of("name", "warmup-" + i, "password", BCrypt.hashpw(password, BCrypt.gensalt(4)),
+          "role", i % 2 == 0 ? "reader" : "writer",
+          "repos", List.of("team-%d/*".formatted(i), "lib/app-?%d".formatted(i), "shared")));
+    }
+    warmup.put("users", users);
+    return new Yaml().dump(warmup);
+  }
+
+  private void send(HttpClient client, String proxy) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, config.getThreads()), r -> {
+      Thread t = new Thread(r, "warmup-client");
+      t.setDaemon(true);
+      return t;
+    });
+    AtomicInteger next = new AtomicInteger();
+    try {
+      for(int t=0;t<Math.max(1, config.getThreads());t++) {
+        executor.execute(() -> {
+          for(int i=next.getAndIncrement();(i<config.getRequests()) && (System.nanoTime()<deadline);
+              i=next.getAndIncrement()) {
+            try {
+              HttpRequest request = request(proxy, i);
+              int status = client.send(request, BodyHandlers.discarding()).statusCode();
+              statuses.computeIfAbsent(status, k -> new LongAdder()).increment();
+            } catch(Exception e) {
+              statuses.computeIfAbsent(-1, k -> new LongAdder()).increment();
+              log.debug("warm-up request failed", e);
+            }
+          }
+        });
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(Math.max(1, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * A mix of the requests of pulling and pushing clients, including rejected ones.
+   */
+  private HttpRequest request(String proxy, int i) {
+    int u = i % USERS;
+    String user = "warmup-" + u;
+    String repo = "team-%d/app-%d".formatted(u, i % 10);
+    String basic = basic(user, password);
+    return switch(i % 12) {
+    case 0 -> get(proxy + "/v2/", null);
+    case 1 -> get(proxy + "/v2/", basic);
+    case 2 -> get(proxy + "/v2/_catalog", basic);
+    case 3 -> get(proxy + "/v2/_catalog?n=20", basic(u % 4 == 0 ? "warmup-admin" : user, password));
+    case 4 -> get(proxy + "/v2/" + repo + "/tags/list", basic);
+    case 5 -> builder(proxy + "/v2/" + repo + "/manifests/latest", basic).header("Accept", MANIFEST_TYPE).build();
+    case 6 -> builder(proxy + "/v2/" + repo + "/manifests/latest", basic)
+        .method("HEAD", BodyPublishers.noBody()).build();
+    case 7 -> builder(proxy + "/v2/" + repo + "/blobs/" + digest("layer"), basic)
+        .method("HEAD", BodyPublishers.noBody()).build();
+    case 8 -> get(proxy + "/v2/other/app/manifests/latest", basic);
+    case 9 -> get(proxy + "/v2/", basic(user, "wrong-" + (i % 100)));
+    case 10 -> builder(proxy + "/v2/" + repo + "/manifests/latest", basic)
+        .header("Content-Type", MANIFEST_TYPE)
+        .PUT(BodyPublishers.ofByteArray(manifest)).build();
+    default -> get(proxy + "/token?service=warmup&scope=repository:" + repo + ":pull", basic);
+    };
+  }
+
+  private HttpRequest get(String url, String authorization) {
+    return builder(url, authorization).GET().build();
+  }
+
+  private HttpRequest.Builder builder(String url, String authorization) {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(url))
+        .timeout(Duration.ofSeconds(10))
+        .header(HEADER, secret);
+    if(authorization != null) {
+      builder.header("Authorization", authorization);
+    }
+    return builder;
+  }
+
+  private static String basic(String user, String password) {
+    return "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Minimal registry answering the warm-up requests.
+   */
+  private HttpServer stub() throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newFixedThreadPool(Math.max(1, config.getThreads()), r -> {
+      Thread t = new Thread(r, "warmup-registry");
+      t.setDaemon(true);
+      return t;
+    }));
+    server.createContext("/", exchange -> {
+      try(exchange) {
+        registry(exchange);
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  private void registry(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    exchange.getResponseHeaders().set("Docker-Distribution-Api-Version", "registry/2.0");
+    if(path.equals("/v2/")) {
+      send(exchange, 200, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+    } else if(path.equals("/v2/_catalog")) {
+      StringBuilder json = new StringBuilder("{\"repositories\":[");
+      for(int i=0;i<REPOSITORIES;i++) {
+        json.append(i > 0 ? "," : "").append("\"team-%d/app-%d\"".formatted(i % USERS, i % 10));
+      }
+      send(exchange, 200, "application/json", json.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+    } else if(path.endsWith("/tags/list")) {
+      StringBuilder json = new StringBuilder("{\"name\":\"")
+          .append(StringUtils.substringBetween(path, "/v2/", "/tags/")).append("\",\"tags\":[");
+      for(int i=0;i<TAGS;i++) {
+        json.append(i > 0 ? "," : "").append("\"1.").append(i).append('"');
+      }
+      send(exchange, 200, "application/json", json.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+    } else if(path.contains("/manifests/")) {
+      exchange.getResponseHeaders().set("Docker-Content-Digest", manifestDigest);
+      if("PUT".equals(exchange.getRequestMethod())) {
+        exchange.getRequestBody().transferTo(OutputStream.nullOutputStream());
+        exchange.getResponseHeaders().set("Location", path);
+        send(exchange, 201, null, new byte[0]);
+      } else {
+        send(exchange, 200, MANIFEST_TYPE, manifest);
+      }
+    } else if(path.contains("/blobs/")) {
+      send(exchange, 200, "application/octet-stream", new byte[1024]);
+    } else {
+      send(exchange, 404, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+    if(contentType != null) {
+      exchange.getResponseHeaders().set("Content-Type", contentType);
+    }
+    boolean head = "HEAD".equals(exchange.getRequestMethod());
+    if(head) {
+      exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+    }
+    exchange.sendResponseHeaders(status, head || (body.length == 0) ? -1 : body.length);
+    if(!head) {
+      exchange.getResponseBody().write(body);
+    }
+  }
+
+  private static String digest(String content) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+      return "sha256:" + HexFormat.of().formatHex(hash);
+    } catch(Exception e) {
+      throw new DockerProxyException("failed to digest", e);
+    }
+  }
+
+}
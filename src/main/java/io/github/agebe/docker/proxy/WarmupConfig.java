@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.util.Objects;
+
+/**
+ * Settings for the startup warm-up, see {@link Warmup}. Point the readiness probe to the ready path, it
+ * answers 503 until the warm-up is done, like all client requests.
+ * <pre>
+ * warmup:
+ *   enabled: true
+ *   requests: 2000
+ *   threads: 4
+ *   port: 8080
+ *   readyPath: /ready
+ *   timeout: 120
+ * </pre>
+ */
+public class WarmupConfig {
+
+  static final WarmupConfig DEFAULT = new WarmupConfig();
+
+  private boolean enabled = false;
+
+  // synthetic requests sent through the proxy
+  private int requests = 2000;
+
+  private int threads = 4;
+
+  // local port of the http connector
+  private int port = 8080;
+
+  private String readyPath = "/ready";
+
+  // seconds, upper bound of the warm-up including the wait for the connector
+  private long timeout = 120;
+
+  // stop the jvm after the warm-up, used for the class data sharing training run of the docker image
+  private boolean exit = false;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public int getRequests() {
+    return requests;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  public String getReadyPath() {
+    return readyPath;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  public boolean isExit() {
+    return exit;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(enabled, requests, threads, port, readyPath, timeout, exit);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if(this == obj) {
+      return true;
+    }
+    if((obj == null) || (getClass() != obj.getClass())) {
+      return false;
+    }
+    WarmupConfig other = (WarmupConfig)obj;
+    return (enabled == other.enabled) && (requests == other.requests) && (threads == other.threads)
+        && (port == other.port) && Objects.equals(readyPath, other.readyPath) && (timeout == other.timeout)
+        && (exit == other.exit);
+  }
+
+  @Override
+  public String toString() {
+    return "WarmupConfig [enabled=" + enabled + ", requests=" + requests + ", threads=" + threads + ", port=" + port
+        + ", readyPath=" + readyPath + ", timeout=" + timeout + ", exit=" + exit + "]";
+  }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.Gson;
+
+public class BlobCacheTest {
+
+  @TempDir
+  Path dir;
+
+  @AfterEach
+  public void reset() {
+    Config.apply(new Config(null, List.of()));
+  }
+
+  private BlobCache cache(long maxSize) throws Exception {
+    BlobCacheConfig config = new Gson().fromJson("{\"enabled\":true,\"directory\":\"%s\",\"maxSize\":%d,\"verifyRepo\":false}"
+        .formatted(dir.toString().replace("\\", "\\\\"), maxSize), BlobCacheConfig.class);
+    return new BlobCache(config);
+  }
+
+  private static byte[] blob(char c, int size) {
+    return String.valueOf(c).repeat(size).getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static String digest(byte[] content) throws Exception {
+    return "sha256:" + HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+  }
+
+  private static String path(String digest) {
+    return "/v2/library/alpine/blobs/" + digest;
+  }
+
+  private static Servlets.Response get(BlobCache cache, FakeRegistry registry, String digest) throws Exception {
+    Servlets.Response response = new Servlets.Response();
+    assertTrue(cache.serve(registry.url() + path(digest), "library/alpine", digest,
+        new Servlets.Request("GET", path(digest)).build(), response.build()));
+    return response;
+  }
+
+  @Test
+  public void fillsOnMissAndServesFromDisk() throws Exception {
+    byte[] content = blob('a', 1000);
+    String digest = digest(content);
+    try(FakeRegistry registry = new FakeRegistry()) {
+      Config.apply(new Config(registry.url(), List.of()));
+      registry.resource(path(digest), content, "Docker-Content-Digest", digest);
+      BlobCache cache = cache(1_000_000);
+      assertArrayEquals(content, get(cache, registry, digest).body());
+      assertTrue(cache.contains(digest));
+      assertEquals(1, cache.getFills());
+      assertEquals(1000, cache.getSize());
+      Servlets.Response response = get(cache, registry, digest);
+      assertArrayEquals(content, response.body());
+      assertEquals(digest, response.header("Docker-Content-Digest"));
+      assertEquals(1, cache.getHits());
+      assertEquals(1, registry.requests(path(digest)));
+      assertArrayEquals(content, Files.readAllBytes(cache.lookup(digest)));
+    }
+  }
+
+  @Test
+  public void digestMismatchIsNotCached() throws Exception {
+    byte[] content = blob('a', 1000);
+    String digest = digest(content);
+    byte[] corrupt = blob('b', 1000);
+    try(FakeRegistry registry = new FakeRegistry()) {
+      Config.apply(new Config(registry.url(), List.of()));
+      registry.resource(path(digest), corrupt);
+      BlobCache cache = cache(1_000_000);
+      // the client gets what the registry sent and has to verify the digest itself
+      assertArrayEquals(corrupt, get(cache, registry, digest).body());
+      assertFalse(cache.contains(digest));
+      assertNull(cache.lookup(digest));
+      assertEquals(0, cache.getFills());
+      assertEquals(0, cache.getSize());
+    }
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() throws Exception {
+    byte[] a = blob('a', 100);
+    byte[] b = blob('b', 100);
+    byte[] c = blob('c', 100);
+    try(FakeRegistry registry = new FakeRegistry()) {
+      Config.apply(new Config(registry.url(), List.of()));
+      for(byte[] content : List.of(a, b, c)) {
+        registry.resource(path(digest(content)), content);
+      }
+      BlobCache cache = cache(250);
+      get(cache, registry, digest(a));
+      Thread.sleep(10);
+      get(cache, registry, digest(b));
+      Thread.sleep(10);
+      Path pathB = cache.lookup(digest(b));
+      Thread.sleep(10);
+      assertNotNull(cache.lookup(digest(a)));
+      Thread.sleep(10);
+      get(cache, registry, digest(c));
+      // over the max size, evicted down to 90% starting with the least recently used
+      assertTrue(cache.contains(digest(a)));
+      assertFalse(cache.contains(digest(b)));
+      assertTrue(cache.contains(digest(c)));
+      assertFalse(Files.exists(pathB));
+      assertEquals(1, cache.getEvictions());
+      assertEquals(200, cache.getSize());
+    }
+  }
+
+  @Test
+  public void servesBlobEvictedWhileSending() throws Exception {
+    byte[] a = blob('a', 100);
+    byte[] b = blob('b', 100);
+    try(FakeRegistry registry = new FakeRegistry()) {
+      Config.apply(new Config(registry.url(), List.of()));
+      registry.resource(path(digest(a)), a);
+      registry.resource(path(digest(b)), b);
+      BlobCache cache = cache(150);
+      get(cache, registry, digest(a));
+      Path pathA = cache.lookup(digest(a));
+      CountDownLatch writable = new CountDownLatch(1);
+      Servlets.Response response = new Servlets.Response().blockWrites(writable);
+      CompletableFuture<Boolean> served = CompletableFuture.supplyAsync(() -> {
+        try {
+          return cache.serve(registry.url() + path(digest(a)), "library/alpine", digest(a),
+              new Servlets.Request("GET", path(digest(a))).build(), response.build());
+        } catch(Exception e) {
+          throw new RuntimeException(e);
+        }
+      });
+      while(response.header("Content-Length") == null) {
+        Thread.sleep(1);
+      }
+      // the content length of a is committed, filling b evicts it
+      get(cache, registry, digest(b));
+      assertFalse(cache.contains(digest(a)));
+      assertFalse(Files.exists(pathA));
+      writable.countDown();
+      assertTrue(served.get());
+      assertArrayEquals(a, response.body());
+    }
+  }
+
+  @Test
+  public void missingFileIsRefilled() throws Exception {
+    byte[] content = blob('a', 100);
+    String digest = digest(content);
+    try(FakeRegistry registry = new FakeRegistry()) {
+      Config.apply(new Config(registry.url(), List.of()));
+      registry.resource(path(digest), content);
+      BlobCache cache = cache(1_000_000);
+      get(cache, registry, digest);
+      Files.delete(cache.lookup(digest));
+      assertArrayEquals(content, get(cache, registry, digest).body());
+      assertEquals(2, registry.requests(path(digest)));
+      assertEquals(0, cache.getHits());
+    }
+  }
+
+  @Test
+  public void rescansDirectory() throws Exception {
+    byte[] content = blob('a', 100);
+    String digest = digest(content);
+    try(FakeRegistry registry = new FakeRegistry()) {
+      Config.apply(new Config(registry.url(), List.of()));
+      registry.resource(path(digest), content);
+      get(cache(1_000_000), registry, digest);
+    }
+    BlobCache cache = cache(1_000_000);
+    assertTrue(cache.contains(digest));
+    assertEquals(100, cache.getSize());
+  }
+
+  @Test
+  public void rejectsInvalidDigests() throws Exception {
+    assertTrue(BlobCache.isDigest("sha256:" + "0".repeat(64)));
+    assertFalse(BlobCache.isDigest("sha256:" + "0".repeat(63)));
+    assertFalse(BlobCache.isDigest("sha256:../../" + "0".repeat(58)));
+    assertFalse(BlobCache.isDigest("sha512:" + "0".repeat(64)));
+    assertFalse(cache(1_000_000).serve("http://localhost/v2/x/blobs/sha256:00", "x", "sha256:00",
+        new Servlets.Request("GET", "/v2/x/blobs/sha256:00").build(), new Servlets.Response().build()));
+  }
+
+}
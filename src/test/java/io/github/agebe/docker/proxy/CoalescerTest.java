@@ -0,0 +1,230 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpExchange;
+
+public class CoalescerTest {
+
+  private static final String PATH = "/v2/library/alpine/blobs/sha256:0";
+
+  private static final byte[] CONTENT = "0123456789".repeat(1000).getBytes(StandardCharsets.US_ASCII);
+
+  // time the follower gets to join the flight before the leader is released
+  private static final long JOIN_MS = 200;
+
+  @TempDir
+  Path dir;
+
+  private FakeRegistry registry;
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  // counted down when the registry received the leader's request
+  private final CountDownLatch requested = new CountDownLatch(1);
+
+  // the registry holds the response until released
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @BeforeEach
+  public void setup() throws Exception {
+    registry = new FakeRegistry();
+  }
+
+  @AfterEach
+  public void reset() {
+    release.countDown();
+    executor.shutdownNow();
+    registry.close();
+  }
+
+  private void await(CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Respond with the first bytes of the content once released, then the rest or fail the response.
+   */
+  private void serve(int beforeRelease, boolean fail) {
+    registry.handler(PATH, exchange -> {
+      requested.countDown();
+      if(beforeRelease < 0) {
+        await(release);
+        if(fail) {
+          exchange.close();
+          return;
+        }
+      }
+      exchange.sendResponseHeaders(200, CONTENT.length);
+      OutputStream out = exchange.getResponseBody();
+      int first = Math.max(0, beforeRelease);
+      out.write(CONTENT, 0, first);
+      out.flush();
+      if(beforeRelease >= 0) {
+        await(release);
+      }
+      if(fail) {
+        // length announced but not sent
+        exchange.close();
+        return;
+      }
+      out.write(CONTENT, first, CONTENT.length - first);
+      out.close();
+    });
+  }
+
+  private Future<Boolean> fetch(Coalescer coalescer, Servlets.Response response) {
+    return executor.submit(() -> coalescer.fetch(PATH, registry.url() + PATH,
+        new Servlets.Request("GET", PATH).build(), response.build(), null));
+  }
+
+  private static Throwable cause(Future<?> future) {
+    ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+    return e.getCause();
+  }
+
+  @Test
+  public void followerSharesLeaderFetch() throws Exception {
+    serve(100, false);
+    Coalescer coalescer = new Coalescer(dir);
+    long coalesced = Coalescer.getCoalesced();
+    Servlets.Response leader = new Servlets.Response();
+    Servlets.Response follower = new Servlets.Response();
+    Future<Boolean> lead = fetch(coalescer, leader);
+    await(requested);
+    Future<Boolean> follow = fetch(coalescer, follower);
+    Thread.sleep(JOIN_MS);
+    release.countDown();
+    assertTrue(lead.get(10, TimeUnit.SECONDS));
+    assertTrue(follow.get(10, TimeUnit.SECONDS));
+    assertArrayEquals(CONTENT, leader.body());
+    assertArrayEquals(CONTENT, follower.body());
+    assertEquals(200, follower.status());
+    assertEquals(1, registry.requests(PATH));
+    assertEquals(coalesced + 1, Coalescer.getCoalesced());
+  }
+
+  @Test
+  public void slowLeaderClientDoesNotSlowFollower() throws Exception {
+    serve(100, false);
+    Coalescer coalescer = new Coalescer(dir);
+    CountDownLatch writable = new CountDownLatch(1);
+    Servlets.Response leader = new Servlets.Response().blockWrites(writable);
+    Servlets.Response follower = new Servlets.Response();
+    Future<Boolean> lead = fetch(coalescer, leader);
+    await(requested);
+    Future<Boolean> follow = fetch(coalescer, follower);
+    Thread.sleep(JOIN_MS);
+    release.countDown();
+    assertTrue(follow.get(10, TimeUnit.SECONDS));
+    assertArrayEquals(CONTENT, follower.body());
+    assertFalse(lead.isDone());
+    writable.countDown();
+    assertTrue(lead.get(10, TimeUnit.SECONDS));
+    assertArrayEquals(CONTENT, leader.body());
+    assertEquals(1, registry.requests(PATH));
+  }
+
+  @Test
+  public void leaderFailureBeforeResponseLetsFollowerForward() throws Exception {
+    serve(-1, true);
+    Coalescer coalescer = new Coalescer(dir);
+    Servlets.Response follower = new Servlets.Response();
+    Future<Boolean> lead = fetch(coalescer, new Servlets.Response());
+    await(requested);
+    Future<Boolean> follow = fetch(coalescer, follower);
+    Thread.sleep(JOIN_MS);
+    release.countDown();
+    assertTrue(cause(lead) instanceof IOException);
+    // nothing sent yet, the follower's request is forwarded instead
+    assertFalse(follow.get(10, TimeUnit.SECONDS));
+    assertEquals(0, follower.body().length);
+  }
+
+  @Test
+  public void leaderFailureMidStreamFailsFollower() throws Exception {
+    serve(100, true);
+    Coalescer coalescer = new Coalescer(dir);
+    Servlets.Response follower = new Servlets.Response();
+    Future<Boolean> lead = fetch(coalescer, new Servlets.Response());
+    await(requested);
+    Future<Boolean> follow = fetch(coalescer, follower);
+    Thread.sleep(JOIN_MS);
+    release.countDown();
+    // the leader follows the spool file like any other request
+    assertTrue(cause(lead) instanceof DockerProxyException);
+    assertTrue(cause(follow) instanceof DockerProxyException);
+    // a new request starts a new fetch
+    assertEquals(1, registry.requests(PATH));
+  }
+
+  @Test
+  public void followerTimesOutWaitingForResponse() throws Exception {
+    serve(-1, false);
+    Coalescer coalescer = new Coalescer(dir, 100);
+    Future<Boolean> lead = fetch(coalescer, new Servlets.Response());
+    await(requested);
+    Servlets.Response follower = new Servlets.Response();
+    assertFalse(fetch(coalescer, follower).get(10, TimeUnit.SECONDS));
+    assertEquals(0, follower.body().length);
+    release.countDown();
+    assertTrue(lead.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void followerTimesOutWaitingForData() throws Exception {
+    serve(100, false);
+    Coalescer coalescer = new Coalescer(dir, 100);
+    Servlets.Response leader = new Servlets.Response();
+    Future<Boolean> lead = fetch(coalescer, leader);
+    await(requested);
+    Future<Boolean> follow = fetch(coalescer, new Servlets.Response());
+    Throwable e = cause(follow);
+    assertTrue(e instanceof DockerProxyException);
+    assertTrue(e.getMessage().contains("timeout"), e.getMessage());
+    // the leader waits for data like any follower
+    e = cause(lead);
+    assertTrue(e instanceof DockerProxyException);
+    assertTrue(e.getMessage().contains("timeout"), e.getMessage());
+    release.countDown();
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class CredentialCacheTest {
+
+  private static final String AUTHORIZATION = "Basic dXNlcjpzZWNyZXQ=";
+
+  private static User user(String password, Role role, String... repos) {
+    return new User("user", new Password(password), role, List.of(repos));
+  }
+
+  @Test
+  public void verifiedCredentialsAreCached() {
+    CredentialCache cache = new CredentialCache();
+    User user = user("secret", Role.READER);
+    assertFalse(cache.isVerified(AUTHORIZATION, user));
+    cache.verified(AUTHORIZATION, user);
+    assertTrue(cache.isVerified(AUTHORIZATION, user));
+    assertTrue(cache.isVerified(AUTHORIZATION, user("secret", Role.READER)));
+    assertFalse(cache.isVerified("Basic dXNlcjpvdGhlcg==", user));
+  }
+
+  @Test
+  public void passwordChangeInvalidates() {
+    CredentialCache cache = new CredentialCache();
+    User user = user("secret", Role.READER);
+    cache.verified(AUTHORIZATION, user);
+    assertFalse(cache.isVerified(AUTHORIZATION, user("changed", Role.READER)));
+    // the stale entry is gone, even for the old configuration
+    assertFalse(cache.isVerified(AUTHORIZATION, user));
+  }
+
+  @Test
+  public void roleOrRepoChangeInvalidates() {
+    CredentialCache cache = new CredentialCache();
+    cache.verified(AUTHORIZATION, user("secret", Role.READER));
+    assertFalse(cache.isVerified(AUTHORIZATION, user("secret", Role.WRITER)));
+    cache.verified(AUTHORIZATION, user("secret", Role.READER, "library/*"));
+    assertFalse(cache.isVerified(AUTHORIZATION, user("secret", Role.READER, "other/*")));
+  }
+
+  @Test
+  public void failedCredentialsAreCachedUntilUserChanges() {
+    CredentialCache cache = new CredentialCache();
+    User user = user("secret", Role.READER);
+    cache.failed(AUTHORIZATION, user);
+    assertTrue(cache.isFailed(AUTHORIZATION, user));
+    assertFalse(cache.isVerified(AUTHORIZATION, user));
+    // e.g. the password has been reset to the one the client sends
+    assertFalse(cache.isFailed(AUTHORIZATION, user("changed", Role.READER)));
+    assertFalse(cache.isFailed(AUTHORIZATION, user));
+  }
+
+}
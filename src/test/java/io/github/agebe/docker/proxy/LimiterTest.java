@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LimiterTest {
+
+  // 10 requests per second, 100ms per token
+  private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @TempDir
+  Path dir;
+
+  private final Limiter limiter = Limiter.get();
+
+  // state is kept per user name for the lifetime of the limiter
+  private final String name = "user-" + UUID.randomUUID();
+
+  @BeforeEach
+  public void setup() throws Exception {
+    configure("""
+        roles:
+          reader:
+            requestsPerSecond: 10
+            burst: 5
+            streams: 2
+        users:
+          %s-unlimited:
+            requestsPerSecond: 0
+        """.formatted(name));
+  }
+
+  @AfterEach
+  public void reset() {
+    Config.apply(new Config(null, List.of()));
+  }
+
+  private void configure(String limits) throws Exception {
+    Path f = dir.resolve("config.yaml");
+    Files.writeString(f, "limits:\n" + limits.indent(2));
+    Config.apply(Config.parse(f.toFile()));
+  }
+
+  private User user(Role role) {
+    return new User(name, new Password("secret"), role, List.of());
+  }
+
+  @Test
+  public void burstThenRate() {
+    User user = user(Role.READER);
+    for(int i=0;i<5;i++) {
+      assertEquals(0, limiter.acquireRequest(user), "request " + i);
+    }
+    long wait = limiter.acquireRequest(user);
+    assertTrue((wait > 0) && (wait <= INTERVAL), "wait " + wait);
+    // rejected requests don't take a token, the wait doesn't grow
+    assertTrue(limiter.acquireRequest(user) <= wait);
+  }
+
+  @Test
+  public void refillsOneTokenPerInterval() throws Exception {
+    User user = user(Role.READER);
+    for(int i=0;i<5;i++) {
+      limiter.acquireRequest(user);
+    }
+    long wait = limiter.acquireRequest(user);
+    TimeUnit.NANOSECONDS.sleep(wait + TimeUnit.MILLISECONDS.toNanos(10));
+    assertEquals(0, limiter.acquireRequest(user));
+    assertTrue(limiter.acquireRequest(user) > 0);
+  }
+
+  @Test
+  public void idleBucketHoldsBurstOnly() throws Exception {
+    User user = user(Role.READER);
+    limiter.acquireRequest(user);
+    // much longer than it takes to refill the bucket
+    TimeUnit.NANOSECONDS.sleep(INTERVAL * 8);
+    for(int i=0;i<5;i++) {
+      assertEquals(0, limiter.acquireRequest(user), "request " + i);
+    }
+    assertTrue(limiter.acquireRequest(user) > 0);
+  }
+
+  @Test
+  public void userLimitReplacesRoleLimit() throws Exception {
+    User user = new User(name + "-unlimited", new Password("secret"), Role.READER, List.of());
+    for(int i=0;i<100;i++) {
+      assertEquals(0, limiter.acquireRequest(user));
+    }
+    // no limit configured for the role
+    User writer = user(Role.WRITER);
+    for(int i=0;i<100;i++) {
+      assertEquals(0, limiter.acquireRequest(writer));
+    }
+  }
+
+  @Test
+  public void limitsFollowConfiguration() throws Exception {
+    User user = user(Role.READER);
+    for(int i=0;i<5;i++) {
+      limiter.acquireRequest(user);
+    }
+    assertTrue(limiter.acquireRequest(user) > 0);
+    configure("""
+        roles:
+          reader:
+            requestsPerSecond: 0
+        """);
+    assertEquals(0, limiter.acquireRequest(user));
+  }
+
+  @Test
+  public void limitsConcurrentStreams() {
+    User user = user(Role.READER);
+    assertTrue(limiter.acquireStream(user));
+    assertTrue(limiter.acquireStream(user));
+    assertFalse(limiter.acquireStream(user));
+    limiter.releaseStream(user);
+    assertTrue(limiter.acquireStream(user));
+    limiter.releaseStream(user);
+    limiter.releaseStream(user);
+  }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+
+public class ManifestCacheTest {
+
+  private static final String TAG_PATH = "/v2/library/alpine/manifests/latest";
+
+  private static final String CONTENT_TYPE = "application/vnd.oci.image.manifest.v1+json";
+
+  private FakeRegistry registry;
+
+  private final AtomicReference<String> manifest = new AtomicReference<>("{\"schemaVersion\":2,\"v\":1}");
+
+  // If-None-Match header of each upstream manifest request
+  private final Queue<String> conditions = new ConcurrentLinkedQueue<>();
+
+  @BeforeEach
+  public void setup() throws Exception {
+    registry = new FakeRegistry();
+    registry.handler(TAG_PATH, exchange -> {
+      byte[] content = manifest.get().getBytes(StandardCharsets.UTF_8);
+      String etag = "\"" + digest(content) + "\"";
+      String condition = exchange.getRequestHeaders().getFirst("If-None-Match");
+      conditions.add(String.valueOf(condition));
+      exchange.getResponseHeaders().add("Docker-Content-Digest", digest(content));
+      exchange.getResponseHeaders().add("Etag", etag);
+      if(etag.equals(condition)) {
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+        return;
+      }
+      exchange.getResponseHeaders().add("Content-Type", CONTENT_TYPE);
+      FakeRegistry.send(exchange, 200, content);
+    });
+    Config.apply(new Config(registry.url(), List.of()));
+  }
+
+  @AfterEach
+  public void reset() {
+    registry.close();
+    Config.apply(new Config(null, List.of()));
+  }
+
+  private static String digest(byte[] content) {
+    try {
+      return "sha256:" + HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    } catch(Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String digest(String content) {
+    return digest(content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static ManifestCache cache(long tagTtl) {
+    return new ManifestCache(new Gson().fromJson("{\"enabled\":true,\"tagTtl\":%d}".formatted(tagTtl),
+        ManifestCacheConfig.class));
+  }
+
+  private Servlets.Response get(ManifestCache cache, String path, String reference, String accept)
+      throws Exception {
+    Servlets.Response response = new Servlets.Response();
+    Servlets.Request request = new Servlets.Request("GET", path);
+    if(accept != null) {
+      request.header("Accept", accept);
+    }
+    assertTrue(cache.serve(registry.url() + TAG_PATH, "library/alpine", reference, request.build(),
+        response.build()));
+    return response;
+  }
+
+  private Servlets.Response get(ManifestCache cache) throws Exception {
+    return get(cache, TAG_PATH, "latest", CONTENT_TYPE);
+  }
+
+  @Test
+  public void tagServedFromCacheWithinTtl() throws Exception {
+    ManifestCache cache = cache(30);
+    assertEquals(manifest.get(), get(cache).text());
+    Servlets.Response response = get(cache);
+    assertEquals(200, response.status());
+    assertEquals(manifest.get(), response.text());
+    assertEquals(digest(manifest.get()), response.header("Docker-Content-Digest"));
+    assertEquals(CONTENT_TYPE, response.header("Content-Type"));
+    assertEquals(1, registry.requests(TAG_PATH));
+    assertEquals(1, cache.getHits());
+    assertEquals(0, cache.getRevalidations());
+  }
+
+  @Test
+  public void expiredTagIsRevalidated() throws Exception {
+    ManifestCache cache = cache(0);
+    String content = manifest.get();
+    get(cache);
+    Servlets.Response response = get(cache);
+    assertEquals(200, response.status());
+    assertEquals(content, response.text());
+    assertEquals(1, cache.getRevalidations());
+    assertEquals(1, cache.getHits());
+    // the revalidation is conditional on the cached digest and answered with 304
+    assertEquals(List.of("null", "\"" + digest(content) + "\""), List.copyOf(conditions));
+  }
+
+  @Test
+  public void movedTagIsRefetched() throws Exception {
+    ManifestCache cache = cache(0);
+    String v1 = manifest.get();
+    get(cache);
+    manifest.set("{\"schemaVersion\":2,\"v\":2}");
+    Servlets.Response response = get(cache);
+    assertEquals(manifest.get(), response.text());
+    assertEquals(digest(manifest.get()), response.header("Docker-Content-Digest"));
+    assertEquals(1, cache.getRevalidations());
+    // the previous manifest is still cached by digest
+    int requests = registry.requests(TAG_PATH);
+    assertEquals(v1, get(cache, "/v2/library/alpine/manifests/" + digest(v1), digest(v1), CONTENT_TYPE).text());
+    assertEquals(requests, registry.requests(TAG_PATH));
+  }
+
+  @Test
+  public void tagsAreCachedPerAcceptHeader() throws Exception {
+    ManifestCache cache = cache(30);
+    get(cache, TAG_PATH, "latest", CONTENT_TYPE);
+    get(cache, TAG_PATH, "latest", "application/vnd.docker.distribution.manifest.v2+json");
+    assertEquals(2, registry.requests(TAG_PATH));
+    get(cache, TAG_PATH, "latest", CONTENT_TYPE);
+    assertEquals(2, registry.requests(TAG_PATH));
+  }
+
+  @Test
+  public void invalidatedTagIsRefetched() throws Exception {
+    ManifestCache cache = cache(30);
+    get(cache);
+    cache.invalidate("library/alpine", "latest");
+    get(cache);
+    assertEquals(2, registry.requests(TAG_PATH));
+  }
+
+  @Test
+  public void etagMatchAnswersNotModified() throws Exception {
+    ManifestCache cache = cache(30);
+    get(cache);
+    Servlets.Response response = new Servlets.Response();
+    cache.serve(registry.url() + TAG_PATH, "library/alpine", "latest", new Servlets.Request("GET", TAG_PATH)
+        .header("Accept", CONTENT_TYPE)
+        .header("If-None-Match", "\"" + digest(manifest.get()) + "\"").build(), response.build());
+    assertEquals(304, response.status());
+    assertEquals(0, response.body().length);
+  }
+
+  @Test
+  public void digestMismatchIsNotCached() throws Exception {
+    registry.handler(TAG_PATH, exchange -> {
+      exchange.getResponseHeaders().add("Docker-Content-Digest", digest("other"));
+      FakeRegistry.send(exchange, 200, manifest.get().getBytes(StandardCharsets.UTF_8));
+    });
+    ManifestCache cache = cache(30);
+    Servlets.Response response = get(cache);
+    assertEquals(manifest.get(), response.text());
+    assertNull(response.header("Etag"));
+    get(cache);
+    assertEquals(2, registry.requests(TAG_PATH));
+    assertEquals(0, cache.getSize());
+  }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+  private static String render() throws Exception {
+    StringWriter w = new StringWriter();
+    Metrics.render(w);
+    return w.toString();
+  }
+
+  @Test
+  public void countsRequestsByHandlerStatusAndRole() throws Exception {
+    Metrics.request("MetricsTest", 200, Role.READER, 1_000_000);
+    Metrics.request("MetricsTest", 200, Role.READER, 1_000_000);
+    Metrics.request("MetricsTest", 404, null, 1_000_000);
+    Metrics.request("MetricsTest", 999, Role.ADMIN, 1_000_000);
+    String metrics = render();
+    assertTrue(metrics.contains("proxy_requests_total{handler=\"MetricsTest\",status=\"200\",role=\"reader\"} 2\n"));
+    assertTrue(metrics.contains("proxy_requests_total{handler=\"MetricsTest\",status=\"404\",role=\"none\"} 1\n"));
+    assertTrue(metrics.contains("proxy_requests_total{handler=\"MetricsTest\",status=\"999\",role=\"admin\"} 1\n"));
+    assertTrue(metrics.contains("proxy_request_duration_seconds_count{handler=\"MetricsTest\"} 4\n"));
+  }
+
+  @Test
+  public void resetStartsOver() throws Exception {
+    Metrics.request("MetricsResetTest", 200, Role.WRITER, 1_000_000);
+    Metrics.reset();
+    assertFalse(render().contains("handler=\"MetricsResetTest\""));
+    Metrics.request("MetricsResetTest", 200, Role.WRITER, 1_000_000);
+    assertTrue(render().contains(
+        "proxy_requests_total{handler=\"MetricsResetTest\",status=\"200\",role=\"writer\"} 1\n"));
+  }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+public class PH3CatalogHandlerTest {
+
+  private static final List<String> REPOSITORIES = List.of(
+      "apps/api",
+      "apps/web",
+      "library/alpine",
+      "library/ubuntu",
+      "team-a/one",
+      "team-a/two",
+      "team-b/one",
+      "zeta");
+
+  private static final User RESTRICTED = new User("user", new Password("secret"), Role.READER,
+      List.of("team-a/*", "library/alpine"));
+
+  private static final Pattern LINK = Pattern.compile("<(/v2/_catalog\\?(.*))>; rel=\"next\"");
+
+  @AfterEach
+  public void reset() {
+    Config.apply(new Config(null, List.of()));
+  }
+
+  private static List<String> repositories(String json) {
+    JsonArray array = JsonParser.parseString(json).getAsJsonObject().getAsJsonArray("repositories");
+    List<String> list = new ArrayList<>();
+    array.forEach(e -> list.add(e.getAsString()));
+    return list;
+  }
+
+  private static Servlets.Response get(Servlets.Request request) {
+    Servlets.Response response = new Servlets.Response();
+    new PH3CatalogHandler().handle(request.attribute("user", RESTRICTED).build(), response.build());
+    return response;
+  }
+
+  @Test
+  public void userCatalogFiltersRepositories() throws Exception {
+    String upstream = "{\"repositories\":[\"apps/api\",\"team-a/one\",\"library/alpine\",\"library/ubuntu\"],"
+        + "\"other\":{\"list\":[1,2]}}";
+    StringWriter out = new StringWriter();
+    JsonWriter writer = new JsonWriter(out);
+    PH3CatalogHandler.userCatalog(RESTRICTED, new JsonReader(new StringReader(upstream)), writer);
+    writer.flush();
+    assertEquals(List.of("team-a/one", "library/alpine"), repositories(out.toString()));
+    // other members are copied as is
+    JsonObject other = JsonParser.parseString(out.toString()).getAsJsonObject().getAsJsonObject("other");
+    assertEquals("{\"list\":[1,2]}", other.toString());
+  }
+
+  @Test
+  public void unpagedCatalogIsFiltered() throws Exception {
+    try(FakeRegistry registry = new FakeRegistry(REPOSITORIES)) {
+      Config.apply(new Config(registry.url(), List.of()));
+      Servlets.Response response = get(new Servlets.Request("GET", "/v2/_catalog"));
+      assertEquals(200, response.status());
+      assertEquals(List.of("library/alpine", "team-a/one", "team-a/two"), repositories(response.text()));
+      assertNull(response.header("Link"));
+    }
+  }
+
+  private static List<String> manyRepositories() {
+    // 50 accessible repositories spread over 400, more than fit in a single upstream page
+    return IntStream.range(0, 400)
+        .mapToObj(i -> (i % 8 == 0 ? "team-a/svc-%03d" : "other/svc-%03d").formatted(i))
+        .toList();
+  }
+
+  private static List<String> accessible(List<String> repositories) {
+    return repositories.stream().filter(RESTRICTED::canAccessRepo).sorted().toList();
+  }
+
+  @Test
+  public void pagesFollowLinkCursor() throws Exception {
+    List<String> all = manyRepositories();
+    try(FakeRegistry registry = new FakeRegistry(all)) {
+      Config.apply(new Config(registry.url(), List.of()));
+      List<String> collected = new ArrayList<>();
+      Servlets.Request request = new Servlets.Request("GET", "/v2/_catalog").parameter("n", "7");
+      for(int pages=1;;pages++) {
+        assertTrue(pages < 100, "link loop");
+        Servlets.Response response = get(request);
+        assertEquals(200, response.status());
+        List<String> page = repositories(response.text());
+        assertTrue(page.size() <= 7);
+        collected.addAll(page);
+        String link = response.header("Link");
+        if(link == null) {
+          break;
+        }
+        Matcher m = LINK.matcher(link);
+        assertTrue(m.matches(), link);
+        Map<String, String> query = FakeRegistry.query(m.group(2));
+        assertEquals("7", query.get("n"));
+        // the cursor is the last returned repository, url encoded
+        assertEquals(page.get(page.size()-1), query.get("last"));
+        assertTrue(link.contains("last=team-a%2F"), link);
+        request = new Servlets.Request("GET", "/v2/_catalog").parameter("n", query.get("n"))
+            .parameter("last", query.get("last"));
+      }
+      assertEquals(accessible(all), collected);
+    }
+  }
+
+  @Test
+  public void lastPageHasNoLink() throws Exception {
+    List<String> all = manyRepositories();
+    try(FakeRegistry registry = new FakeRegistry(all)) {
+      Config.apply(new Config(registry.url(), List.of()));
+      Servlets.Response response = get(new Servlets.Request("GET", "/v2/_catalog").parameter("n", "1000"));
+      assertEquals(accessible(all), repositories(response.text()));
+      assertNull(response.header("Link"));
+    }
+  }
+
+  @Test
+  public void startsAfterLast() throws Exception {
+    try(FakeRegistry registry = new FakeRegistry(REPOSITORIES)) {
+      Config.apply(new Config(registry.url(), List.of()));
+      Servlets.Response response = get(new Servlets.Request("GET", "/v2/_catalog")
+          .parameter("n", "1").parameter("last", "library/alpine"));
+      assertEquals(List.of("team-a/one"), repositories(response.text()));
+      assertNotNull(response.header("Link"));
+      response = get(new Servlets.Request("GET", "/v2/_catalog")
+          .parameter("n", "5").parameter("last", "team-a/one"));
+      assertEquals(List.of("team-a/two"), repositories(response.text()));
+      assertNull(response.header("Link"));
+    }
+  }
+
+  @Test
+  public void emptyPageSkipsUpstream() throws Exception {
+    try(FakeRegistry registry = new FakeRegistry(REPOSITORIES)) {
+      Config.apply(new Config(registry.url(), List.of()));
+      Servlets.Response response = get(new Servlets.Request("GET", "/v2/_catalog").parameter("n", "0"));
+      assertEquals(List.of(), repositories(response.text()));
+      assertNull(response.header("Link"));
+      assertEquals(0, registry.catalogRequests.get());
+    }
+  }
+
+}
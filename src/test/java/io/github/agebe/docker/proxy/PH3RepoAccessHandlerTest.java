@@ -0,0 +1,89 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PH3RepoAccessHandlerTest {
+
+  private static final User USER = new User("user", new Password("secret"), Role.READER, List.of("library/*"));
+
+  private static final String BLOB = "/v2/library/alpine/blobs/sha256:" + "0".repeat(64);
+
+  @TempDir
+  Path dir;
+
+  @AfterEach
+  public void reset() {
+    Config.apply(new Config(null, List.of()));
+  }
+
+  /**
+   * Configure the proxy in front of a registry that is not reachable.
+   */
+  private void configure(String yaml) throws Exception {
+    String registry;
+    try(FakeRegistry closed = new FakeRegistry()) {
+      registry = closed.url();
+    }
+    Path f = dir.resolve("config.yaml");
+    Files.writeString(f, "registry: %s\n%s".formatted(registry, yaml.formatted(dir)));
+    Config.apply(Config.parse(f.toFile()));
+  }
+
+  private static Servlets.Response get(String uri) {
+    Servlets.Response response = new Servlets.Response();
+    new PH3RepoAccessHandler().process(new Servlets.Request("GET", uri).attribute("user", USER).build(),
+        response.build());
+    return response;
+  }
+
+  @Test
+  public void coalescedFetchFailureIsBadGateway() throws Exception {
+    configure("""
+        coalescing:
+          enabled: true
+          spoolDirectory: %s
+        """);
+    assertEquals(502, get(BLOB).status());
+  }
+
+  @Test
+  public void blobCacheFillFailureIsBadGateway() throws Exception {
+    configure("""
+        blobCache:
+          enabled: true
+          directory: %s
+        """);
+    assertEquals(502, get(BLOB).status());
+  }
+
+  @Test
+  public void manifestCacheFetchFailureIsBadGateway() throws Exception {
+    configure("""
+        manifestCache:
+          enabled: true
+        """);
+    assertEquals(502, get("/v2/library/alpine/manifests/latest").status());
+  }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+public class RegistryErrorsTest {
+
+  private static record DockerRegistryError(String code, String message, String detail) {};
+
+  private static record DockerRegistryErrors(List<DockerRegistryError> errors) {};
+
+  // the error bodies as rendered before RegistryErrors, gson written with println
+  private static final Gson gson = new GsonBuilder()
+      .disableHtmlEscaping()
+      .disableJdkUnsafe()
+      .serializeNulls()
+      .create();
+
+  private static byte[] gson(String code, String message) {
+    return (gson.toJson(new DockerRegistryErrors(List.of(new DockerRegistryError(code, message, null)))) + "\n")
+        .getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void constantsMatchGson() {
+    assertArrayEquals(gson("UNAUTHORIZED", "authentication required"), RegistryErrors.UNAUTHORIZED);
+    assertArrayEquals(gson("DENIED", "access denied"), RegistryErrors.DENIED);
+    assertArrayEquals(gson("DENIED", "read-only access"), RegistryErrors.READ_ONLY);
+    assertArrayEquals(gson("DENIED", "delete access denied"), RegistryErrors.DELETE_DENIED);
+  }
+
+  @Test
+  public void messagesMatchGson() {
+    List<String> messages = List.of(
+        "",
+        "access denied, repository 'library/alpine'",
+        "rate limit <exceeded> & retry = later",
+        "quote \" and backslash \\",
+        "tab\t newline\n return\r backspace\b formfeed\f",
+        "control \u0000 \u0001 \u001f delete \u007f",
+        "line separators \u2028 \u2029",
+        "unicode \u00e4\u00f6\u00fc \u20ac",
+        "surrogates \ud83d\udc33",
+        "/v2/library/alpine/manifests/sha256:abc?n=1");
+    for(String message : messages) {
+      assertArrayEquals(gson("DENIED", message), RegistryErrors.body("DENIED", message), message);
+    }
+    assertArrayEquals(gson("CODE\"", "m"), RegistryErrors.body("CODE\"", "m"));
+  }
+
+  @Test
+  public void handlerWritesBodyWithLength() {
+    Servlets.Response response = new Servlets.Response();
+    new PH2MethodHandler().process(new Servlets.Request("DELETE", "/v2/library/alpine/manifests/latest")
+        .attribute("user", new User("user", new Password("secret"), Role.READER, List.of()))
+        .build(), response.build());
+    assertEquals(403, response.status());
+    assertArrayEquals(gson("DENIED", "read-only access"), response.body());
+    assertEquals(Integer.toString(response.body().length), response.header("Content-Length"));
+    assertEquals("application/json; charset=utf-8", response.header("Content-Type"));
+  }
+
+}
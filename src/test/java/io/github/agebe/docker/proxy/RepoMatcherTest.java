@@ -0,0 +1,125 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.hrakaroo.glob.GlobPattern;
+
+public class RepoMatcherTest {
+
+  private static final List<String> PATTERNS = List.of(
+      "library/alpine",
+      "library/*",
+      "team-a*",
+      "*/base",
+      "app?",
+      "a*b*c",
+      "lit\\*eral",
+      "pre\\*fix*",
+      "",
+      "*-snapshot");
+
+  private static final List<String> REPOS = List.of(
+      "library/alpine",
+      "library/ubuntu",
+      "library",
+      "library/",
+      "librar",
+      "team-a",
+      "team-a/svc",
+      "team-b/svc",
+      "images/base",
+      "base",
+      "app1",
+      "app",
+      "app12",
+      "abc",
+      "a/b/c",
+      "axbxcx",
+      "lit*eral",
+      "litxeral",
+      "pre*fix/one",
+      "prexfix/one",
+      "",
+      "svc-snapshot",
+      "svc-release");
+
+  // the glob semantics before the precompiled matcher, every pattern compiled and matched on each check
+  private static boolean globMatches(List<String> patterns, String repo) {
+    for(String pattern : patterns) {
+      if(GlobPattern.compile(pattern).matches(repo)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void matchesLikeGlobs() {
+    for(String pattern : PATTERNS) {
+      RepoMatcher matcher = new RepoMatcher(List.of(pattern));
+      for(String repo : REPOS) {
+        assertEquals(globMatches(List.of(pattern), repo), matcher.matches(repo),
+            "pattern '%s', repo '%s'".formatted(pattern, repo));
+      }
+    }
+  }
+
+  @Test
+  public void matchesLikeGlobsCombined() {
+    RepoMatcher matcher = new RepoMatcher(PATTERNS);
+    for(String repo : REPOS) {
+      assertEquals(globMatches(PATTERNS, repo), matcher.matches(repo), "repo '%s'".formatted(repo));
+    }
+  }
+
+  @Test
+  public void starMatchesAll() {
+    RepoMatcher matcher = new RepoMatcher(List.of("library/alpine", "*"));
+    assertTrue(matcher.matches("any/repo"));
+    assertTrue(matcher.matches(null));
+  }
+
+  @Test
+  public void hasGlobs() {
+    assertFalse(new RepoMatcher(List.of("library/alpine", "library/*", "*")).hasGlobs());
+    assertTrue(new RepoMatcher(List.of("*/base")).hasGlobs());
+  }
+
+  @Test
+  public void userDecisionCacheAgreesWithMatcher() {
+    User user = new User("user", new Password("secret"), Role.READER, PATTERNS);
+    for(int i=0;i<2;i++) {
+      for(String repo : REPOS) {
+        assertEquals(globMatches(PATTERNS, repo), user.canAccessRepo(repo), "repo '%s'".formatted(repo));
+        assertEquals(globMatches(PATTERNS, repo), user.matchesRepo(repo), "repo '%s'".formatted(repo));
+      }
+    }
+  }
+
+  @Test
+  public void userWithoutReposAccessesAll() {
+    User user = new User("user", new Password("secret"), Role.READER, List.of());
+    assertTrue(user.canAccessRepo("any/repo"));
+    assertTrue(user.matchesRepo("any/repo"));
+  }
+
+}
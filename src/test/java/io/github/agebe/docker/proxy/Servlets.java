@@ -0,0 +1,245 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal servlet request and response fakes for handler tests, methods that are not implemented return
+ * the default value of their return type.
+ */
+final class Servlets {
+
+  private Servlets() {
+  }
+
+  static class Request {
+
+    private final String method;
+
+    private final String uri;
+
+    private final Map<String, String> parameters = new LinkedHashMap<>();
+
+    private final Map<String, String> headers = new HashMap<>();
+
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    Request(String method, String uri) {
+      super();
+      this.method = method;
+      this.uri = uri;
+    }
+
+    Request parameter(String name, String value) {
+      parameters.put(name, value);
+      return this;
+    }
+
+    Request header(String name, String value) {
+      headers.put(name.toLowerCase(), value);
+      return this;
+    }
+
+    Request attribute(String name, Object value) {
+      attributes.put(name, value);
+      return this;
+    }
+
+    private String query() {
+      if(parameters.isEmpty()) {
+        return null;
+      }
+      return parameters.entrySet().stream()
+          .map(e -> e.getKey() + "=" + URLEncoder.encode(e.getValue(), StandardCharsets.UTF_8))
+          .collect(Collectors.joining("&"));
+    }
+
+    HttpServletRequest build() {
+      return (HttpServletRequest)Proxy.newProxyInstance(Servlets.class.getClassLoader(),
+          new Class<?>[] {HttpServletRequest.class}, (proxy, m, args) -> switch(m.getName()) {
+          case "getMethod" -> method;
+          case "getRequestURI" -> uri;
+          case "getContextPath" -> "";
+          case "getScheme" -> "http";
+          case "getRemoteAddr", "getLocalAddr" -> "127.0.0.1";
+          case "getQueryString" -> query();
+          case "getParameter" -> parameters.get(args[0]);
+          case "getHeader" -> headers.get(((String)args[0]).toLowerCase());
+          case "getHeaders" -> Collections.enumeration(headers.containsKey(((String)args[0]).toLowerCase())
+              ? List.of(headers.get(((String)args[0]).toLowerCase())) : List.of());
+          case "getHeaderNames" -> Collections.enumeration(new ArrayList<>(headers.keySet()));
+          case "getAttribute" -> attributes.get(args[0]);
+          case "setAttribute" -> attributes.put((String)args[0], args[1]);
+          case "getContentLengthLong" -> 0L;
+          case "getContentLength" -> 0;
+          default -> defaultValue(m.getReturnType());
+          });
+    }
+
+  }
+
+  static class Response {
+
+    private int status = HttpServletResponse.SC_OK;
+
+    private final Map<String, List<String>> headers = new HashMap<>();
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private boolean committed;
+
+    private CountDownLatch writable;
+
+    /**
+     * Block writes until the latch is counted down, like a slow client.
+     */
+    Response blockWrites(CountDownLatch writable) {
+      this.writable = writable;
+      return this;
+    }
+
+    private void awaitWritable() throws IOException {
+      try {
+        if((writable != null) && !writable.await(10, TimeUnit.SECONDS)) {
+          throw new IOException("write timeout");
+        }
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException(e);
+      }
+    }
+
+    int status() {
+      return status;
+    }
+
+    String header(String name) {
+      List<String> values = headers.get(name.toLowerCase());
+      return values != null ? values.get(0) : null;
+    }
+
+    byte[] body() {
+      return body.toByteArray();
+    }
+
+    String text() {
+      return body.toString(StandardCharsets.UTF_8);
+    }
+
+    private void set(String name, String value) {
+      List<String> values = new ArrayList<>();
+      values.add(value);
+      headers.put(name.toLowerCase(), values);
+    }
+
+    HttpServletResponse build() {
+      ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          awaitWritable();
+          committed = true;
+          body.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          awaitWritable();
+          committed = true;
+          body.write(b, off, len);
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+        }
+      };
+      return (HttpServletResponse)Proxy.newProxyInstance(Servlets.class.getClassLoader(),
+          new Class<?>[] {HttpServletResponse.class}, (proxy, m, args) -> switch(m.getName()) {
+          case "setStatus" -> {
+            status = (Integer)args[0];
+            yield null;
+          }
+          case "sendError" -> {
+            status = (Integer)args[0];
+            committed = true;
+            yield null;
+          }
+          case "getStatus" -> status;
+          case "setHeader" -> {
+            set((String)args[0], (String)args[1]);
+            yield null;
+          }
+          case "addHeader" -> {
+            headers.computeIfAbsent(((String)args[0]).toLowerCase(), k -> new ArrayList<>()).add((String)args[1]);
+            yield null;
+          }
+          case "setContentType" -> {
+            set("Content-Type", (String)args[0]);
+            yield null;
+          }
+          case "setContentLength", "setContentLengthLong" -> {
+            set("Content-Length", args[0].toString());
+            yield null;
+          }
+          case "getHeader" -> header((String)args[0]);
+          case "containsHeader" -> headers.containsKey(((String)args[0]).toLowerCase());
+          case "getOutputStream" -> out;
+          case "getWriter" -> new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), true);
+          case "isCommitted" -> committed;
+          default -> defaultValue(m.getReturnType());
+          });
+    }
+
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if(!type.isPrimitive() || (type == void.class)) {
+      return null;
+    } else if(type == boolean.class) {
+      return false;
+    } else if(type == long.class) {
+      return 0L;
+    } else if(type == int.class) {
+      return 0;
+    } else {
+      throw new UnsupportedOperationException("default value of " + type);
+    }
+  }
+
+}
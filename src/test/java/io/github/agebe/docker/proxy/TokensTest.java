@@ -0,0 +1,183 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonParser;
+
+public class TokensTest {
+
+  private static final String REALM = "https://registry.example.com/token";
+
+  private static final User USER = new User("alice", new Password("secret"), Role.WRITER, List.of("team-a/*"));
+
+  @TempDir
+  Path dir;
+
+  @AfterEach
+  public void reset() {
+    Config.apply(new Config(null, List.of()));
+  }
+
+  private Tokens configure(String token) throws Exception {
+    Path f = dir.resolve("config.yaml");
+    Files.writeString(f, "token:\n" + token.indent(2));
+    Config.apply(Config.parse(f.toFile()));
+    return Tokens.get();
+  }
+
+  private Tokens tokens() throws Exception {
+    return configure("""
+        enabled: true
+        secret: test-secret
+        realm: %s
+        service: test-registry
+        """.formatted(REALM));
+  }
+
+  private static String tamper(String token) {
+    String[] parts = token.split("\\.");
+    String claims = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8)
+        .replace("WRITER", "ADMIN");
+    return parts[0] + "." + Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + "." + parts[2];
+  }
+
+  @Test
+  public void verifiesIssuedToken() throws Exception {
+    Tokens tokens = tokens();
+    assertTrue(tokens.isEnabled());
+    Tokens.Claims claims = tokens.verify(tokens.issue(USER));
+    assertNotNull(claims);
+    assertEquals("alice", claims.sub());
+    assertEquals("WRITER", claims.role());
+    assertEquals(List.of("team-a/*"), claims.repos());
+    assertEquals("test-registry", claims.aud());
+    assertTrue(claims.exp() > claims.iat());
+    assertTrue(tokens.matches(claims, USER));
+  }
+
+  @Test
+  public void rejectsModifiedTokens() throws Exception {
+    Tokens tokens = tokens();
+    String token = tokens.issue(USER);
+    assertNull(tokens.verify(tamper(token)));
+    assertNull(tokens.verify(token.substring(0, token.length() - 2)));
+    assertNull(tokens.verify(token + "x"));
+    assertNull(tokens.verify("not a token"));
+    assertNull(tokens.verify(""));
+    assertNull(tokens.verify("e30." + token.substring(token.indexOf('.') + 1)));
+  }
+
+  @Test
+  public void rejectsExpiredTokens() throws Exception {
+    Tokens tokens = configure("""
+        enabled: true
+        secret: test-secret
+        realm: %s
+        ttl: 0
+        """.formatted(REALM));
+    assertNull(tokens.verify(tokens.issue(USER)));
+  }
+
+  @Test
+  public void rejectsTokensOfOtherSecretsAndServices() throws Exception {
+    String token = tokens().issue(USER);
+    assertNotNull(tokens().verify(token));
+    Tokens other = configure("""
+        enabled: true
+        secret: other-secret
+        realm: %s
+        service: test-registry
+        """.formatted(REALM));
+    assertNull(other.verify(token));
+    Tokens otherService = configure("""
+        enabled: true
+        secret: test-secret
+        realm: %s
+        service: other-registry
+        """.formatted(REALM));
+    assertNull(otherService.verify(token));
+  }
+
+  @Test
+  public void scopeFollowsUserConfiguration() throws Exception {
+    Tokens tokens = tokens();
+    Tokens.Claims claims = tokens.verify(tokens.issue(USER));
+    assertTrue(tokens.matches(claims, new User("alice", new Password("secret"), Role.WRITER, List.of("team-a/*"))));
+    assertFalse(tokens.matches(claims, null));
+    assertFalse(tokens.matches(claims, new User("bob", new Password("secret"), Role.WRITER, List.of("team-a/*"))));
+    assertFalse(tokens.matches(claims, new User("alice", new Password("secret"), Role.READER, List.of("team-a/*"))));
+    assertFalse(tokens.matches(claims, new User("alice", new Password("secret"), Role.WRITER, List.of("team-*"))));
+    assertFalse(tokens.matches(claims, new User("alice", new Password("secret"), Role.WRITER, List.of())));
+    // a password change revokes issued tokens
+    assertFalse(tokens.matches(claims, new User("alice", new Password("changed"), Role.WRITER, List.of("team-a/*"))));
+  }
+
+  @Test
+  public void requiresRealm() throws Exception {
+    Tokens tokens = configure("""
+        enabled: true
+        secret: test-secret
+        """);
+    assertFalse(tokens.isEnabled());
+    assertEquals("Bearer realm=\"%s\",service=\"test-registry\"".formatted(REALM), tokens().getChallenge());
+  }
+
+  @Test
+  public void tokenEndpointRequiresBasicAuthentication() throws Exception {
+    Tokens tokens = tokens();
+    Servlets.Response response = new Servlets.Response();
+    new PH3TokenHandler().process(new Servlets.Request("GET", "/token")
+        .attribute("user", USER)
+        .build(), response.build());
+    assertEquals(403, response.status());
+    response = new Servlets.Response();
+    new PH3TokenHandler().process(new Servlets.Request("GET", "/token")
+        .attribute("user", USER)
+        .attribute(PH1AuthenticationHandler.AUTH_METHOD, PH1AuthenticationHandler.BASIC)
+        .build(), response.build());
+    assertEquals(200, response.status());
+    assertEquals("no-store", response.header("Cache-Control"));
+    String token = JsonParser.parseString(response.text()).getAsJsonObject().get("token").getAsString();
+    assertTrue(tokens.matches(tokens.verify(token), USER));
+  }
+
+  @Test
+  public void tokenEndpointDisabled() throws Exception {
+    configure("enabled: false\n");
+    Servlets.Response response = new Servlets.Response();
+    new PH3TokenHandler().process(new Servlets.Request("GET", "/token")
+        .attribute("user", USER)
+        .attribute(PH1AuthenticationHandler.AUTH_METHOD, PH1AuthenticationHandler.BASIC)
+        .build(), response.build());
+    assertEquals(404, response.status());
+  }
+
+}
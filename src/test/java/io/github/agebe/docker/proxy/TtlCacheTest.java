@@ -0,0 +1,76 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+public class TtlCacheTest {
+
+  @Test
+  public void getReturnsPutValue() {
+    TtlCache<String, String> cache = new TtlCache<>(10, Duration.ofMinutes(1));
+    cache.put("a", "1");
+    assertEquals("1", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void expiredEntriesAreMisses() throws Exception {
+    TtlCache<String, String> cache = new TtlCache<>(10, Duration.ofMillis(1));
+    cache.put("a", "1");
+    Thread.sleep(5);
+    assertNull(cache.get("a"));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void evictsOverMaxSize() {
+    TtlCache<Integer, Integer> cache = new TtlCache<>(100, Duration.ofMinutes(1));
+    for(int i=0;i<1000;i++) {
+      cache.put(i, i);
+      assertTrue(cache.size() <= 100);
+    }
+    assertTrue(cache.getEvictions() >= 900);
+    // the most recent entry survives
+    assertEquals(999, cache.get(999));
+  }
+
+  @Test
+  public void zeroSizeDisablesCache() {
+    TtlCache<String, String> cache = new TtlCache<>(0, Duration.ofMinutes(1));
+    cache.put("a", "1");
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void removeAndClear() {
+    TtlCache<String, String> cache = new TtlCache<>(10, Duration.ofMinutes(1));
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.remove("a");
+    assertNull(cache.get("a"));
+    assertEquals("2", cache.get("b"));
+    cache.clear();
+    assertEquals(0, cache.size());
+  }
+
+}
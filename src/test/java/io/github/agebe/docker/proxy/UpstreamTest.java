@@ -0,0 +1,77 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class UpstreamTest {
+
+  @TempDir
+  Path dir;
+
+  @AfterEach
+  public void reset() {
+    Config.apply(new Config(null, List.of()));
+  }
+
+  private Upstream configure(String upstream) throws Exception {
+    Path f = dir.resolve("config.yaml");
+    Files.writeString(f, "upstream:\n" + upstream.indent(2));
+    Config.apply(Config.parse(f.toFile()));
+    return Upstream.get();
+  }
+
+  private static HttpResponse<InputStream> get(Upstream upstream, FakeRegistry registry) throws Exception {
+    return upstream.send(upstream.request(registry.url() + "/v2/").GET().build());
+  }
+
+  private static int status(Upstream upstream, FakeRegistry registry) throws Exception {
+    HttpResponse<InputStream> response = get(upstream, registry);
+    try(InputStream in = response.body()) {
+      in.readAllBytes();
+    }
+    return response.statusCode();
+  }
+
+  @Test
+  public void limitsRequestsPerRegistry() throws Exception {
+    Upstream upstream = configure("""
+        maxRequestsPerRegistry: 1
+        connectTimeout: 1
+        """);
+    try(FakeRegistry slow = new FakeRegistry(); FakeRegistry other = new FakeRegistry()) {
+      // the permit is held until the body is closed
+      HttpResponse<InputStream> held = get(upstream, slow);
+      long saturated = Upstream.getSaturated();
+      assertThrows(UpstreamSaturatedException.class, () -> get(upstream, slow));
+      assertEquals(saturated + 1, Upstream.getSaturated());
+      // other registries are not affected
+      assertEquals(200, status(upstream, other));
+      held.body().close();
+      assertEquals(200, status(upstream, slow));
+    }
+  }
+
+}
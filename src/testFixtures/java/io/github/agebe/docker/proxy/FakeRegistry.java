@@ -0,0 +1,356 @@
+/*
+ * Copyright 2024 Andre Gebers
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.github.agebe.docker.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for an upstream registry (v2 api), shared by the tests and the load test. Serves the
+ * catalog with {@code n}/{@code last} paging and resources (blobs, manifests, tag lists) registered by the
+ * test. With synthetic images every repository has the tags latest and 1.0 of one manifest and the layers
+ * it references (like images built on a common base), blob uploads and manifest pushes are accepted.
+ */
+public class FakeRegistry implements AutoCloseable {
+
+  private static final String MANIFEST_TYPE = "application/vnd.docker.distribution.manifest.v2+json";
+
+  private static final int CHUNK = 64 * 1024;
+
+  private final HttpServer server;
+
+  private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "fake-registry");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private final List<String> repositories;
+
+  private final List<byte[]> layers = new ArrayList<>();
+
+  private final List<String> layerDigests = new ArrayList<>();
+
+  private final byte[] manifest;
+
+  private final String manifestDigest;
+
+  private final long throttleMs;
+
+  public final AtomicInteger catalogRequests = new AtomicInteger();
+
+  private final Map<String, HttpHandler> resources = new ConcurrentHashMap<>();
+
+  private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+
+  private final LongAdder total = new LongAdder();
+
+  public FakeRegistry() throws IOException {
+    this(List.of());
+  }
+
+  public FakeRegistry(List<String> repositories) throws IOException {
+    this(repositories, 0, 0, 0);
+  }
+
+  /**
+   * Registry with synthetic images, see class comment.
+   * @param throttleMs pause after each 64k chunk of a blob, emulates a slow upstream
+   */
+  public FakeRegistry(List<String> repositories, int layerCount, int layerSize, long throttleMs) throws IOException {
+    super();
+    this.repositories = new ArrayList<>(repositories);
+    Collections.sort(this.repositories);
+    this.throttleMs = throttleMs;
+    for(int i=0;i<layerCount;i++) {
+      byte[] layer = new byte[layerSize];
+      for(int j=0;j<layerSize;j++) {
+        layer[j] = (byte)((i * 31) + j);
+      }
+      layers.add(layer);
+      layerDigests.add(digest(layer));
+    }
+    if(layerCount > 0) {
+      String layerJson = layerDigests.stream()
+          .map(d -> "{\"mediaType\":\"application/vnd.docker.image.rootfs.diff.tar.gzip\",\"size\":%d,\"digest\":\"%s\"}"
+              .formatted(layerSize, d))
+          .collect(Collectors.joining(","));
+      manifest = ("{\"schemaVersion\":2,\"mediaType\":\"" + MANIFEST_TYPE + "\",\"config\":"
+          + "{\"mediaType\":\"application/vnd.docker.container.image.v1+json\",\"size\":%d,\"digest\":\"%s\"},"
+          .formatted(layerSize, layerDigests.get(0))
+          + "\"layers\":[" + layerJson + "]}").getBytes(StandardCharsets.UTF_8);
+      manifestDigest = digest(manifest);
+    } else {
+      manifest = null;
+      manifestDigest = null;
+    }
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+    server.setExecutor(executor);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  private static String digest(byte[] content) {
+    try {
+      return "sha256:" + HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public String url() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  public List<String> repositories() {
+    return repositories;
+  }
+
+  /**
+   * @return the digests of the layers of the synthetic images
+   */
+  public List<String> layerDigests() {
+    return layerDigests;
+  }
+
+  /**
+   * Serve the body with status 200 and the headers (name, value pairs) for GET and HEAD requests of the path.
+   */
+  public void resource(String path, byte[] body, String... headers) {
+    handler(path, exchange -> {
+      for(int i=0;i<headers.length;i+=2) {
+        exchange.getResponseHeaders().add(headers[i], headers[i+1]);
+      }
+      if("HEAD".equals(exchange.getRequestMethod())) {
+        exchange.getResponseHeaders().add("Content-Length", Integer.toString(body.length));
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      } else {
+        send(exchange, 200, body);
+      }
+    });
+  }
+
+  public void handler(String path, HttpHandler handler) {
+    resources.put(path, handler);
+  }
+
+  /**
+   * @return number of requests (any method) received for the path
+   */
+  public int requests(String path) {
+    AtomicInteger count = requests.get(path);
+    return count != null ? count.get() : 0;
+  }
+
+  /**
+   * @return number of requests received
+   */
+  public long requests() {
+    return total.sum();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    total.increment();
+    String path = exchange.getRequestURI().getPath();
+    AtomicInteger count = requests.get(path);
+    if(count == null) {
+      count = requests.computeIfAbsent(path, k -> new AtomicInteger());
+    }
+    count.incrementAndGet();
+    HttpHandler resource = resources.get(path);
+    if(resource != null) {
+      resource.handle(exchange);
+      return;
+    }
+    try(exchange) {
+      exchange.getResponseHeaders().set("Docker-Distribution-Api-Version", "registry/2.0");
+      if("/v2/_catalog".equals(path)) {
+        catalog(exchange);
+      } else if("/v2/".equals(path)) {
+        send(exchange, 200, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+      } else if((manifest != null) && path.startsWith("/v2/")) {
+        image(exchange, exchange.getRequestMethod(), path);
+      } else {
+        notFound(exchange, "NOT_FOUND");
+      }
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void catalog(HttpExchange exchange) throws IOException {
+    catalogRequests.incrementAndGet();
+    Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+    String last = query.get("last");
+    int n = query.containsKey("n") ? Integer.parseInt(query.get("n")) : Integer.MAX_VALUE;
+    int start = 0;
+    if(last != null) {
+      int idx = Collections.binarySearch(repositories, last);
+      start = idx >= 0 ? idx + 1 : -idx - 1;
+    }
+    int end = (int)Math.min(repositories.size(), (long)start + n);
+    List<String> page = repositories.subList(start, end);
+    if(end < repositories.size()) {
+      exchange.getResponseHeaders().add("Link", "</v2/_catalog?last=%s&n=%d>; rel=\"next\"".formatted(
+          page.get(page.size()-1), n));
+    }
+    String json = page.stream().map(r -> "\"" + r + "\"").collect(Collectors.joining(",", "{\"repositories\":[", "]}"));
+    send(exchange, 200, "application/json", json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void image(HttpExchange exchange, String method, String path) throws IOException, InterruptedException {
+    try(InputStream in = exchange.getRequestBody()) {
+      in.transferTo(OutputStream.nullOutputStream());
+    }
+    if(path.endsWith("/tags/list")) {
+      send(exchange, 200, "application/json", "{\"name\":\"%s\",\"tags\":[\"latest\",\"1.0\"]}"
+          .formatted(repo(path, "/tags/")).getBytes(StandardCharsets.UTF_8));
+    } else if(path.contains("/manifests/")) {
+      exchange.getResponseHeaders().set("Docker-Content-Digest", manifestDigest);
+      if(method.equals("PUT")) {
+        exchange.getResponseHeaders().set("Location", path);
+        send(exchange, 201, null, new byte[0]);
+      } else {
+        exchange.getResponseHeaders().set("Etag", "\"" + manifestDigest + "\"");
+        if(("\"" + manifestDigest + "\"").equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+          exchange.sendResponseHeaders(304, -1);
+        } else {
+          send(exchange, 200, MANIFEST_TYPE, manifest);
+        }
+      }
+    } else if(path.contains("/blobs/uploads/")) {
+      upload(exchange, method, path);
+    } else if(path.contains("/blobs/")) {
+      blob(exchange, method, path);
+    } else {
+      notFound(exchange, "NOT_FOUND");
+    }
+  }
+
+  private String repo(String path, String marker) {
+    return path.substring("/v2/".length(), path.indexOf(marker));
+  }
+
+  private void upload(HttpExchange exchange, String method, String path) throws IOException {
+    String repo = repo(path, "/blobs/");
+    if(method.equals("POST")) {
+      exchange.getResponseHeaders().set("Location", "/v2/%s/blobs/uploads/%s".formatted(repo, UUID.randomUUID()));
+      exchange.getResponseHeaders().set("Range", "0-0");
+      send(exchange, 202, null, new byte[0]);
+    } else if(method.equals("PATCH")) {
+      exchange.getResponseHeaders().set("Location", path);
+      send(exchange, 202, null, new byte[0]);
+    } else {
+      String digest = query(exchange.getRequestURI().getRawQuery()).get("digest");
+      exchange.getResponseHeaders().set("Docker-Content-Digest", digest);
+      exchange.getResponseHeaders().set("Location", "/v2/%s/blobs/%s".formatted(repo, digest));
+      send(exchange, 201, null, new byte[0]);
+    }
+  }
+
+  private void blob(HttpExchange exchange, String method, String path) throws IOException, InterruptedException {
+    String digest = path.substring(path.lastIndexOf('/') + 1);
+    int idx = layerDigests.indexOf(digest);
+    if(idx < 0) {
+      notFound(exchange, "BLOB_UNKNOWN");
+      return;
+    }
+    byte[] layer = layers.get(idx);
+    exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+    exchange.getResponseHeaders().set("Docker-Content-Digest", digest);
+    exchange.getResponseHeaders().set("Etag", "\"" + digest + "\"");
+    if(method.equals("HEAD")) {
+      exchange.getResponseHeaders().set("Content-Length", Integer.toString(layer.length));
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    exchange.sendResponseHeaders(200, layer.length);
+    OutputStream out = exchange.getResponseBody();
+    for(int off=0;off<layer.length;off+=CHUNK) {
+      out.write(layer, off, Math.min(CHUNK, layer.length - off));
+      if(throttleMs > 0) {
+        out.flush();
+        Thread.sleep(throttleMs);
+      }
+    }
+  }
+
+  private static void notFound(HttpExchange exchange, String code) throws IOException {
+    send(exchange, 404, "application/json", "{\"errors\":[{\"code\":\"%s\"}]}".formatted(code)
+        .getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+    if(contentType != null) {
+      exchange.getResponseHeaders().set("Content-Type", contentType);
+    }
+    boolean head = exchange.getRequestMethod().equals("HEAD");
+    if(head) {
+      exchange.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+    }
+    exchange.sendResponseHeaders(status, (head || (body.length == 0)) ? -1 : body.length);
+    if(!head && (body.length > 0)) {
+      exchange.getResponseBody().write(body);
+    }
+  }
+
+  public static Map<String, String> query(String query) {
+    Map<String, String> map = new HashMap<>();
+    if(query != null) {
+      for(String param : query.split("&")) {
+        String[] kv = param.split("=", 2);
+        map.put(kv[0], kv.length > 1 ? URLDecoder.decode(kv[1], StandardCharsets.UTF_8) : "");
+      }
+    }
+    return map;
+  }
+
+  public static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(status, body.length);
+    try(OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+}